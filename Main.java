@@ -62,7 +62,7 @@ public class Main {
 		try{Thread.sleep(2500);}
 		catch(InterruptedException e){}
 
-		water.kill();
+		water.shutdown();
 		println("done");
 	}
 
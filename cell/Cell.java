@@ -2,12 +2,14 @@ package cell;
 
 /**
  * A Cell specifies an individual region within a 3D space, particularly a 
- * Farm region with different Soil and Plant types.
+ * Farm region with different Soil and Plant types. Once a Cell is part of a
+ * Farm's grid it is bound to the Farm's GridStore and only acts as a view of
+ * the cell's entry in the store.
  * @author nacosta
  */
 public class Cell
 {
-  private static double cellSize = 6400/Farm.SIZE; // Length = width in centimeters
+  private static double cellSize = 6400/Farm.SIZE; // Length = width in centimeters of cells in a farm of the default size
   private double height; // In centimeters
   private boolean surface; // True if cell is a surface cell
   private double depth; // Distance to surface in centimeters
@@ -17,6 +19,9 @@ public class Cell
   private Soil soil; // Name of soil type
   private Plant plant; // Name of plant type
 
+  private GridStore store; // Store backing this cell, or null if unbound
+  private int index; // Index of this cell within the store
+
   /**
    * Creates a Cell with the specified parameters as attributes.
    * 
@@ -47,17 +52,30 @@ public class Cell
    */
   public void copyFromCell(Cell cell)
   {
-    this.height = cell.getHeight();
-    this.surface = cell.isSurface();
-    this.depth = cell.getDepth();
-    this.waterVolume = cell.getWaterVolume();
-    this.coordinate = cell.getCoordinate();
-    this.soil = cell.getSoil();
-    this.plant = cell.getPlant();
+    setHeight(cell.getHeight());
+    setSurface(cell.isSurface());
+    setDepth(cell.getDepth());
+    setWaterVolume(cell.getWaterVolume());
+    setCoordinate(cell.getCoordinate());
+    setSoil(cell.getSoil());
+    setPlant(cell.getPlant());
+  }
+
+  /**
+   * Makes this Cell a view of the given entry of a GridStore. The store is
+   * expected to already hold this cell's values.
+   * @param store the store backing this cell
+   * @param index the index of this cell within the store
+   */
+  void bind(GridStore store, int index)
+  {
+    this.store = store;
+    this.index = index;
   }
   
   /**
-   * @return the cellSize of this cell
+   * @return the cellSize of cells in a farm of the default size. Farms made
+   * with another size keep theirs in {@link GridStore#getCellSize()}
    */
   public static double getCellSize()
   {
@@ -77,60 +95,72 @@ public class Cell
   /**
    * @param height the height to set
    */
-  public void setHeight(double height) { this.height = height; }
+  public void setHeight(double height)
+  { if(store != null) store.setHeight(index, height); else this.height = height;
+  }
 
   /**
    * @return the height
    */
-  public double getHeight() { return height; }
+  public double getHeight() { return store != null ? store.getHeight(index) : height; }
 
   /**
    * @return the soil
    */
-  public Soil getSoil() { return soil; }
+  public Soil getSoil() { return store != null ? store.getSoil(index) : soil; }
 
   /**
    * @param soil the soil to set
    */
-  public void setSoil(Soil soil) { this.soil = soil; }
+  public void setSoil(Soil soil)
+  { if(store != null) store.setSoil(index, soil); else this.soil = soil;
+  }
 
   /**
    * @return the plant
    */
-  public Plant getPlant() { return plant; }
+  public Plant getPlant() { return store != null ? store.getPlant(index) : plant; }
 
   /**
    * @param plant the plant to set
    */
-  public void setPlant(Plant plant) { this.plant = plant; }
+  public void setPlant(Plant plant)
+  { if(store != null) store.setPlant(index, plant); else this.plant = plant;
+  }
   
   /**
    * @return the waterVolume
    */
-  public double getWaterVolume() { return waterVolume; }
+  public double getWaterVolume() { return store != null ? store.getWaterVolume(index) : waterVolume; }
 
   /**
    * @param waterVolume the waterVolume to set
    */
-  public void setWaterVolume(double volume) { this.waterVolume = volume; }
+  public void setWaterVolume(double volume)
+  { if(store != null) store.setWaterVolume(index, volume); else this.waterVolume = volume;
+  }
 
   /**
    * @return the surface
    */
-  public boolean isSurface() { return surface; }
+  public boolean isSurface() { return store != null ? store.isSurface(index) : surface; }
 
   /**
    * @param surface the surface to set
    */
-  public void setSurface(boolean surface) { this.surface = surface; }
+  public void setSurface(boolean surface)
+  { if(store != null) store.setSurface(index, surface); else this.surface = surface;
+  }
 
   /**
    * @return the depth
    */
-  public double getDepth() { return depth; }
+  public double getDepth() { return store != null ? store.getDepth(index) : depth; }
   
   /**
    * @param depth the depth to set
    */
-  public void setDepth(double depth) { this.depth = depth; }
+  public void setDepth(double depth)
+  { if(store != null) store.setDepth(index, depth); else this.depth = depth;
+  }
 }
@@ -32,7 +32,7 @@ public class Crops {
 			throw new Exception("Invalid Quadrant Entered");
 		
 		//declare variables to set crop by quadrant
-		int minX = 0, minY = 0, midX = farm.SIZE/2, midY = farm.SIZE/2, maxX = farm.SIZE, maxY = farm.SIZE;
+		int minX = 0, minY = 0, midX = farm.getXCellCount()/2, midY = farm.getYCellCount()/2, maxX = farm.getXCellCount(), maxY = farm.getYCellCount();
 
 		this._plant = plant;
 		this._farm = farm;
@@ -107,7 +107,7 @@ public class Crops {
 		Plant currentPlant = null;
 		
 		//declare variables to set crop by quadrant
-		int minX = 0, minY = 0, midX = this._farm.SIZE/2, midY = this._farm.SIZE/2, maxX = this._farm.SIZE, maxY = this._farm.SIZE;
+		int minX = 0, minY = 0, midX = this._farm.getXCellCount()/2, midY = this._farm.getYCellCount()/2, maxX = this._farm.getXCellCount(), maxY = this._farm.getYCellCount();
 		
 		
 		if (this._quadrant == 0) {
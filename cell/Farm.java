@@ -3,25 +3,56 @@ package cell;
 /**
  * Farm contains a 3D array of Cells (grid) that has a
  * latitude, longitude, and a relief along with a string
- * to display errors (errorText). The x and y cellCounts are
- * set corresponding to ten centimeters so x and y evaluate
- * to 40960000 square centimeters, a bit over one acre.
+ * to display errors (errorText). By default the x and y
+ * cellCounts are set corresponding to one meter so x and y
+ * evaluate to 40960000 square centimeters, a bit over one acre.
+ * Each Farm can be given its own cell counts and cell size
+ * instead, so farms of different sizes can be simulated side
+ * by side.
  * @author nacosta
  */
 public class Farm
 {
 	private double money = 1000.00d;
-	public static final int SIZE = 64;
+	public static final int SIZE = 64; //Default width and length of the grid in cell amount
 	Crops[] planted = new Crops[4];
 	private int waterQty = 10;
   public String errorText; //Error messages
-  public static final int xCellCount = SIZE; //Width of the grid in cell amount
-  public static final int yCellCount = SIZE; //Length of the grid in cell amount
+  public static final int xCellCount = SIZE; //Width of the grid of a farm of the default size
+  public static final int yCellCount = SIZE; //Length of the grid of a farm of the default size
   public int zCellCount; //Height of the grid in cell amount.
+  private final int xCount, yCount; //Width and length of this farm's grid in cell amount
+  private final double cellSize; //Length = width of this farm's cells in centimeters
   
   private double latitude, longitude, relief; //Chosen location
   private Cell[][][] grid; //Contains all cells above and below the surface.
+  private GridStore store; //Primitive storage backing the cells of grid.
+  private Point3D[] coordinates; //Coordinates for cells created from store, or null to create new ones.
   
+  /**
+   * Creates a farm of the default size, SIZE by SIZE cells of
+   * Cell.getCellSize() centimeters.
+   */
+  public Farm()
+  { this(SIZE, SIZE, Cell.getCellSize());
+  }
+
+  /**
+   * Creates a farm of the given size. Its grid or store has to have
+   * the same amount of cells in the x and y axes.
+   * @param xCount the amount of cells in the x axis.
+   * @param yCount the amount of cells in the y axis.
+   * @param cellSize the length and width of every cell in centimeters.
+   */
+  public Farm(int xCount, int yCount, double cellSize)
+  { if(xCount < 1 || yCount < 1 || cellSize <= 0)
+    { throw new IllegalArgumentException("Invalid farm: " + xCount + "x" + yCount + " cells of " + cellSize + " cm");
+    }
+    this.xCount = xCount;
+    this.yCount = yCount;
+    this.cellSize = cellSize;
+  }
+
   /**
    * @param zCount the amount of cells in the z axis.
    */
@@ -33,15 +64,22 @@ public class Farm
    * @return the zCellCount
    */
   public int getZCellCount()
-  { return grid[0][0].length;
+  { return store.getZCount();
   }
   public int getXCellCount()
   {
-    return SIZE;	  
+    return xCount;
   }
   public int getYCellCount()
   {
-    return SIZE;	  
+    return yCount;
+  }
+
+  /**
+   * @return the length and width of every cell in centimeters
+   */
+  public double getCellSize()
+  { return cellSize;
   }
   
   /**
@@ -87,17 +125,85 @@ public class Farm
   }
   
   /**
-   * @return the grid
+   * @return the grid. A Farm whose store was set directly creates its cells
+   * the first time this is called.
    */
   public Cell[][][] getGrid()
-  { return grid;
+  { if(grid == null && store != null)
+    { grid = store.createCells(coordinates);
+    }
+    return grid;
   }
   
   /**
+   * @return the grid if its cells have been created, or null. Unlike getGrid
+   * this never creates them.
+   */
+  Cell[][][] getCreatedGrid()
+  { return grid;
+  }
+
+  /**
+   * @return the coordinates that cells created from the store get, indexed
+   * like the store, or null if they get new ones
+   */
+  Point3D[] getCoordinates()
+  { return coordinates;
+  }
+
+  /**
+   * Sets the grid and moves its cells into a new GridStore. The cells in
+   * grid become views of the store.
    * @param grid the grid to set
    */
   public void setGrid(Cell[][][] grid)
-  { this.grid = grid;
+  { checkSize(grid.length, grid[0].length);
+    this.grid = grid;
+    this.store = GridStore.fromCells(grid, cellSize);
+    this.coordinates = null;
+  }
+
+  /**
+   * Sets a store that was filled in directly instead of from cells. The
+   * cells and their coordinates are only created if getGrid is called.
+   * @param store the store backing the farm
+   */
+  public void setStore(GridStore store)
+  { setStore(store, null);
+  }
+
+  /**
+   * Sets a store that was filled in directly instead of from cells. The
+   * cells are only created if getGrid is called.
+   * @param store the store backing the farm
+   * @param coordinates the coordinate of each cell, indexed like the store,
+   * or null to create new ones
+   */
+  void setStore(GridStore store, Point3D[] coordinates)
+  { checkSize(store.getXCount(), store.getYCount());
+    if(store.getCellSize() != cellSize)
+    { throw new IllegalArgumentException("The store has cells of " + store.getCellSize() + " cm, not " + cellSize);
+    }
+    this.grid = null;
+    this.store = store;
+    this.coordinates = coordinates;
+  }
+
+  /**
+   * Makes sure a grid has the size of this farm.
+   */
+  private void checkSize(int xCount, int yCount)
+  { if(xCount != this.xCount || yCount != this.yCount)
+    { throw new IllegalArgumentException("A " + xCount + "x" + yCount + " grid doesn't fit a " + this.xCount + "x" +
+                                         this.yCount + " farm");
+    }
+  }
+
+  /**
+   * @return the store backing the grid
+   */
+  public GridStore getStore()
+  { return store;
   }
 
 	public void setMoney(double money) {
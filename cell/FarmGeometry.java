@@ -0,0 +1,103 @@
+package cell;
+
+/**
+ * A FarmGeometry is the shape of a piece of land on its own: which cells are
+ * air, which are at the surface, their heights, depths and coordinates, and
+ * where the land is. It never changes once it has been made, so any number of
+ * Farms can be made from one and share it, each with its own water, soil and
+ * plants, without generating the land again.
+ */
+public class FarmGeometry
+{
+  private final int xCount, yCount, zCount; // Dimensions of the grid in cells
+  private final double cellSize; // Length = width of every cell in centimeters
+  private final boolean[] valid; // False for air cells
+  private final boolean[] surface; // True for surface cells
+  private final double[] height; // In centimeters
+  private final double[] depth; // Distance to surface in centimeters
+  private final Point3D[] coordinates; // Coordinate of each cell, null for air
+  private final double latitude, longitude, relief;
+
+  /**
+   * Copies the shape of a Farm's land. Later changes to the farm don't affect
+   * the geometry.
+   * @param farm the farm to copy the shape of
+   */
+  public FarmGeometry(Farm farm)
+  {
+    GridStore store = farm.getStore();
+    this.xCount = store.getXCount();
+    this.yCount = store.getYCount();
+    this.zCount = store.getZCount();
+    this.cellSize = store.getCellSize();
+    this.valid = store.getValidMask().clone();
+    this.surface = store.getSurfaceMask().clone();
+    this.height = store.getHeights().clone();
+    this.depth = store.getDepths().clone();
+    this.latitude = farm.getLatitude();
+    this.longitude = farm.getLongitude();
+    this.relief = farm.getRelief();
+
+    //The coordinates come from the cells if the farm has made them, otherwise
+    // from the ones its cells would get, so a lazy grid is never created here
+    this.coordinates = new Point3D[store.size()];
+    Cell[][][] grid = farm.getCreatedGrid();
+    Point3D[] farmCoordinates = farm.getCoordinates();
+    for(int k = 0; k < zCount; k++)
+    { for(int j = 0; j < yCount; j++)
+      { for(int i = 0; i < xCount; i++)
+        { int index = store.index(i, j, k);
+          if(valid[index])
+          { Point3D coordinate = null;
+            if(grid != null)
+            { coordinate = grid[i][j][k].getCoordinate();
+            }
+            else if(farmCoordinates != null)
+            { coordinate = farmCoordinates[index];
+            }
+            coordinates[index] = coordinate != null ? coordinate : new Point3D(i, j, k);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes a Farm with this shape, no water, no soil and no plants. Its store
+   * shares the geometry's arrays, which must not be changed through it, and
+   * its cells are only created if its grid is asked for.
+   * @return a new Farm
+   */
+  public Farm createFarm()
+  {
+    Farm farm = new Farm(xCount, yCount, cellSize);
+    farm.setLatitude(latitude);
+    farm.setLongitude(longitude);
+    farm.setRelief(relief);
+    farm.setZCellCount(zCount);
+    farm.setStore(new GridStore(xCount, yCount, zCount, cellSize, valid, surface, height, depth),
+                  coordinates);
+    return farm;
+  }
+
+  /**
+   * @return the xCount
+   */
+  public int getXCount()
+  { return xCount;
+  }
+
+  /**
+   * @return the yCount
+   */
+  public int getYCount()
+  { return yCount;
+  }
+
+  /**
+   * @return the zCount
+   */
+  public int getZCount()
+  { return zCount;
+  }
+}
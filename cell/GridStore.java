@@ -0,0 +1,331 @@
+package cell;
+
+import java.util.Arrays;
+
+/**
+ * A GridStore keeps the attributes of every cell in a Farm in flat primitive arrays rather than
+ * in individual Cell objects. Cells are laid out x-fastest, then y, then z, so the cell at
+ * (x, y, z) lives at index (z * yCount + y) * xCount + x. Air cells (null in a Cell[][][]) are
+ * marked as not valid. A Cell that has been bound to a GridStore is only a view of its entry.
+ */
+public class GridStore
+{
+  /** Soil ordinal used for cells whose soil has not been set. */
+  public static final byte NO_SOIL = -1;
+
+  private static final Soil[] SOILS = Soil.values();
+
+  private final int xCount, yCount, zCount; // Dimensions of the grid in cells
+  private final double cellSize; // Length = width of every cell in centimeters
+  private final boolean[] valid; // False for air cells
+  private final boolean[] surface; // True for surface cells
+  private final double[] height; // In centimeters
+  private final double[] depth; // Distance to surface in centimeters
+  private double[] water; // Water within each cell in milliliters
+  private final byte[] soil; // Soil ordinal of each cell, or NO_SOIL
+  private final Plant[] plant; // Plant growing in each cell, or null
+
+  /**
+   * Creates a GridStore where every cell is air, with cells of the default size.
+   * @param xCount the amount of cells in the x axis.
+   * @param yCount the amount of cells in the y axis.
+   * @param zCount the amount of cells in the z axis.
+   */
+  public GridStore(int xCount, int yCount, int zCount)
+  { this(xCount, yCount, zCount, Cell.getCellSize());
+  }
+
+  /**
+   * Creates a GridStore where every cell is air.
+   * @param xCount the amount of cells in the x axis.
+   * @param yCount the amount of cells in the y axis.
+   * @param zCount the amount of cells in the z axis.
+   * @param cellSize the length and width of every cell in centimeters.
+   */
+  public GridStore(int xCount, int yCount, int zCount, double cellSize)
+  {
+    checkSize(xCount, yCount, zCount);
+    this.xCount = xCount;
+    this.cellSize = cellSize;
+    this.yCount = yCount;
+    this.zCount = zCount;
+    int size = xCount * yCount * zCount;
+    this.valid = new boolean[size];
+    this.surface = new boolean[size];
+    this.height = new double[size];
+    this.depth = new double[size];
+    this.water = new double[size];
+    this.soil = new byte[size];
+    this.plant = new Plant[size];
+    Arrays.fill(soil, NO_SOIL);
+  }
+
+  /**
+   * Creates a GridStore that shares the shape of the grid with other stores but
+   * has its own water, soil and plants. The shared arrays must not be changed
+   * while any store uses them.
+   * @param xCount the amount of cells in the x axis.
+   * @param yCount the amount of cells in the y axis.
+   * @param zCount the amount of cells in the z axis.
+   * @param cellSize the length and width of every cell in centimeters.
+   * @param valid the validity mask to share
+   * @param surface the surface mask to share
+   * @param height the cell heights to share
+   * @param depth the cell depths to share
+   */
+  GridStore(int xCount, int yCount, int zCount, double cellSize, boolean[] valid, boolean[] surface, double[] height,
+            double[] depth)
+  {
+    this.xCount = xCount;
+    this.cellSize = cellSize;
+    this.yCount = yCount;
+    this.zCount = zCount;
+    int size = xCount * yCount * zCount;
+    this.valid = valid;
+    this.surface = surface;
+    this.height = height;
+    this.depth = depth;
+    this.water = new double[size];
+    this.soil = new byte[size];
+    this.plant = new Plant[size];
+    Arrays.fill(soil, NO_SOIL);
+  }
+
+  /**
+   * Makes sure a grid of the given size can be indexed with an int.
+   */
+  private static void checkSize(int xCount, int yCount, int zCount)
+  { if(xCount < 1 || yCount < 1 || zCount < 1 || (long) xCount * yCount * zCount > Integer.MAX_VALUE)
+    { throw new IllegalArgumentException("Invalid grid size: " + xCount + "x" + yCount + "x" + zCount);
+    }
+  }
+
+  /**
+   * Copies every cell of the grid into a new GridStore with cells of the default size.
+   * @param grid the cells to store. Null entries are treated as air.
+   * @return the GridStore backing the grid
+   */
+  public static GridStore fromCells(Cell[][][] grid)
+  { return fromCells(grid, Cell.getCellSize());
+  }
+
+  /**
+   * Copies every cell of the grid into a new GridStore and binds the cells to it, so that
+   * from then on the cells read and write their attributes through the store.
+   * @param grid the cells to store. Null entries are treated as air.
+   * @param cellSize the length and width of every cell in centimeters.
+   * @return the GridStore backing the grid
+   */
+  public static GridStore fromCells(Cell[][][] grid, double cellSize)
+  {
+    GridStore store = new GridStore(grid.length, grid[0].length, grid[0][0].length, cellSize);
+    for(int k = 0; k < store.zCount; k++)
+    { for(int j = 0; j < store.yCount; j++)
+      { for(int i = 0; i < store.xCount; i++)
+        { Cell cell = grid[i][j][k];
+          if(cell == null)
+          { continue;
+          }
+          int index = store.index(i, j, k);
+          store.valid[index] = true;
+          store.surface[index] = cell.isSurface();
+          store.height[index] = cell.getHeight();
+          store.depth[index] = cell.getDepth();
+          store.water[index] = cell.getWaterVolume();
+          store.setSoil(index, cell.getSoil());
+          store.plant[index] = cell.getPlant();
+          cell.bind(store, index);
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Creates a Cell for every valid entry of the store, bound to it.
+   * @param coordinates the coordinate of each cell, indexed like the store,
+   * or null to give each cell a new coordinate
+   * @return the cells, with null for air
+   */
+  Cell[][][] createCells(Point3D[] coordinates)
+  {
+    Cell[][][] grid = new Cell[xCount][yCount][zCount];
+    for(int k = 0; k < zCount; k++)
+    { for(int j = 0; j < yCount; j++)
+      { for(int i = 0; i < xCount; i++)
+        { int index = index(i, j, k);
+          if(!valid[index])
+          { continue;
+          }
+          Cell cell = new Cell();
+          cell.setCoordinate(coordinates != null ? coordinates[index] : new Point3D(i, j, k));
+          cell.bind(this, index);
+          grid[i][j][k] = cell;
+        }
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * @return the index of the cell at the given coordinates
+   */
+  public int index(int x, int y, int z)
+  { return (z * yCount + y) * xCount + x;
+  }
+
+  /**
+   * @return the amount of cells in the store, including air
+   */
+  public int size()
+  { return water.length;
+  }
+
+  /**
+   * @return the xCount
+   */
+  public int getXCount()
+  { return xCount;
+  }
+
+  /**
+   * @return the yCount
+   */
+  public int getYCount()
+  { return yCount;
+  }
+
+  /**
+   * @return the zCount
+   */
+  public int getZCount()
+  { return zCount;
+  }
+
+  /**
+   * @return the length and width of every cell in centimeters
+   */
+  public double getCellSize()
+  { return cellSize;
+  }
+
+  /**
+   * @return true if the cell at index is not air
+   */
+  public boolean isValid(int index)
+  { return valid[index];
+  }
+
+  /**
+   * @param valid false to make the cell at index air
+   */
+  public void setValid(int index, boolean valid)
+  { this.valid[index] = valid;
+  }
+
+  /**
+   * @return the soil of the cell at index, or null if it has not been set
+   */
+  public Soil getSoil(int index)
+  { return soil[index] == NO_SOIL ? null : SOILS[soil[index]];
+  }
+
+  /**
+   * @param soil the soil to set for the cell at index
+   */
+  public void setSoil(int index, Soil soil)
+  { this.soil[index] = soil == null ? NO_SOIL : (byte) soil.ordinal();
+  }
+
+  /**
+   * @return the plant of the cell at index
+   */
+  public Plant getPlant(int index) { return plant[index]; }
+
+  /**
+   * @param plant the plant to set for the cell at index
+   */
+  public void setPlant(int index, Plant plant) { this.plant[index] = plant; }
+
+  /**
+   * @return the water volume of the cell at index
+   */
+  public double getWaterVolume(int index) { return water[index]; }
+
+  /**
+   * @param volume the water volume to set for the cell at index
+   */
+  public void setWaterVolume(int index, double volume) { this.water[index] = volume; }
+
+  /**
+   * @return the height of the cell at index
+   */
+  public double getHeight(int index) { return height[index]; }
+
+  /**
+   * @param height the height to set for the cell at index
+   */
+  public void setHeight(int index, double height) { this.height[index] = height; }
+
+  /**
+   * @return the depth of the cell at index
+   */
+  public double getDepth(int index) { return depth[index]; }
+
+  /**
+   * @param depth the depth to set for the cell at index
+   */
+  public void setDepth(int index, double depth) { this.depth[index] = depth; }
+
+  /**
+   * @return true if the cell at index is a surface cell
+   */
+  public boolean isSurface(int index) { return surface[index]; }
+
+  /**
+   * @param surface the surface flag to set for the cell at index
+   */
+  public void setSurface(int index, boolean surface) { this.surface[index] = surface; }
+
+  /*
+   * The arrays below are handed out directly so that the flow calculations can work on them
+   * without going through a method call per cell. They are indexed with index(x, y, z).
+   */
+
+  /** @return the validity mask. False entries are air. */
+  public boolean[] getValidMask() { return valid; }
+
+  /** @return the surface mask */
+  public boolean[] getSurfaceMask() { return surface; }
+
+  /** @return the cell heights in centimeters */
+  public double[] getHeights() { return height; }
+
+  /** @return the cell depths in centimeters */
+  public double[] getDepths() { return depth; }
+
+  /** @return the water volumes in milliliters */
+  public double[] getWaterVolumes() { return water; }
+
+  /**
+   * Replaces the water volumes with another array of the same size. This lets
+   * a calculation write new volumes into a second buffer and then swap it in
+   * instead of copying.
+   * @param volumes the new water volumes
+   * @return the previous water volumes, which can be reused as the next buffer
+   */
+  public double[] swapWaterVolumes(double[] volumes)
+  { if(volumes.length != water.length)
+    { throw new IllegalArgumentException("Expected " + water.length + " volumes, got " + volumes.length);
+    }
+    double[] previous = water;
+    this.water = volumes;
+    return previous;
+  }
+
+  /** @return the soil ordinals, NO_SOIL where no soil is set */
+  public byte[] getSoils() { return soil; }
+
+  /** @return the plants */
+  public Plant[] getPlants() { return plant; }
+}
@@ -184,6 +184,27 @@ public enum Plant {
 		return _rootCellCoordinates;
 	}
 
+	/**
+	 * @return Returns how many more days this Plant can go without water before it dies.
+	 */
+	public int getAllowableDaysWithoutWater() {
+		return this._allowableDaysWithoutWater;
+	}
+
+
+	/**
+	 * Puts back the growth of this Plant type, for example when a saved simulation is loaded.
+	 * @param rootDepth the current root depth
+	 * @param allowableDaysWithoutWater how many more days it can go without water
+	 * @param alive true if it is alive
+	 */
+	public void restore(int rootDepth, int allowableDaysWithoutWater, boolean alive) {
+		this._rootDepth = rootDepth;
+		this._allowableDaysWithoutWater = allowableDaysWithoutWater;
+		this._deadOrAlive = alive;
+	}
+
+
 	/**
 	 * Method to killPlant
 	 */
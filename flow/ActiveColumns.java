@@ -0,0 +1,141 @@
+package flow;
+
+import java.util.Arrays;
+
+/**
+ * ActiveColumns keeps track of which (x, y) columns of the grid need to be visited during a time step. Water can only
+ * leave a cell once its percent saturation is above its soil's water adhesion, so a column is "wet" if it has such a
+ * cell or has water waiting to be added to it. Only wet columns and the columns next to them can change in a time
+ * step, so those are the only ones the flux and apply phases visit. Hydraulic heads only need to be recalculated for
+ * columns whose water may have changed, which are the columns that were active in the previous time step.
+ */
+class ActiveColumns {
+	private final int xCount, yCount;
+
+	private boolean[] wet;        //Columns that can give water in the next time step
+	private boolean[] wetNext;    //Wet columns found while applying the current time step
+	boolean[]         active;     //Columns visited by the flux and apply phases
+	private boolean[] lastActive; //Columns that were active during the previous time step
+	boolean[]         heads;      //Columns whose hydraulic heads have to be recalculated
+	boolean[]         activeRows; //Rows with at least one active column
+	boolean[]         headRows;   //Rows with at least one column in heads
+	int               activeCount; //Number of active columns in the current time step
+
+
+	/**
+	 * Creates a tracker for a grid of the given size. Every column starts out needing its hydraulic heads calculated.
+	 * @param xCount the amount of cells in the x axis
+	 * @param yCount the amount of cells in the y axis
+	 */
+	ActiveColumns(int xCount, int yCount) {
+		this.xCount = xCount;
+		this.yCount = yCount;
+		this.wet = new boolean[xCount * yCount];
+		this.wetNext = new boolean[xCount * yCount];
+		this.active = new boolean[xCount * yCount];
+		this.lastActive = new boolean[xCount * yCount];
+		this.heads = new boolean[xCount * yCount];
+		this.activeRows = new boolean[yCount];
+		this.headRows = new boolean[yCount];
+		Arrays.fill(lastActive, true);
+	}
+
+
+	/**
+	 * Marks a column as wet, for example because rain or water from another farm is about to be added to it
+	 * @param column the index of the column, y * xCount + x
+	 */
+	void markWet(int column) {
+		wet[column] = true;
+	}
+
+
+	/**
+	 * Records that a column has water that can move after the current time step. Called by the workers during the
+	 *  apply phase. Only ever writes true, so workers racing on the same column is harmless.
+	 * @param column the index of the column, y * xCount + x
+	 */
+	void markWetNext(int column) {
+		wetNext[column] = true;
+	}
+
+
+	/**
+	 * Adds a column to the active set during the current time step. Used when water is taken out of a column during the
+	 *  head phase.
+	 * @param column the index of the column, y * xCount + x
+	 */
+	void markActive(int column) {
+		active[column] = true;
+		activeRows[column / xCount] = true;
+	}
+
+
+	/**
+	 * Forgets everything that is known about the columns, so that the next time step recalculates every hydraulic
+	 *  head. Use this whenever the water in the grid may have been changed from outside of the model.
+	 * @param wetColumns which columns are wet right now
+	 */
+	void reset(boolean[] wetColumns) {
+		System.arraycopy(wetColumns, 0, wet, 0, wet.length);
+		Arrays.fill(lastActive, true);
+	}
+
+
+	/** Works out the active columns and the columns that need new hydraulic heads for the coming time step */
+	void beginStep() {
+		Arrays.fill(activeRows, false);
+		Arrays.fill(headRows, false);
+		activeCount = 0;
+		for(int j = 0; j < yCount; j++) {
+			for(int i = 0; i < xCount; i++) {
+				int col = j * xCount + i;
+				boolean a = wet[col]
+				            || (i != 0 && wet[col - 1]) || (i != xCount - 1 && wet[col + 1])
+				            || (j != 0 && wet[col - xCount]) || (j != yCount - 1 && wet[col + xCount]);
+				active[col] = a;
+				if(a) {
+					activeCount++;
+				}
+				heads[col] = a || lastActive[col];
+				activeRows[j] |= a;
+				headRows[j] |= heads[col];
+			}
+		}
+	}
+
+
+	/** Makes the wet columns found during the apply phase the wet columns for the next time step */
+	void endStep() {
+		boolean[] swap = lastActive;
+		lastActive = active;
+		active = swap;
+
+		swap = wet;
+		wet = wetNext;
+		wetNext = swap;
+		Arrays.fill(wetNext, false);
+	}
+
+
+	/**
+	 * @param forHeads true to check the columns that need hydraulic heads, false to check the active columns
+	 * @return true if any row of the tile has a column to visit
+	 */
+	boolean any(Tile t, boolean forHeads) {
+		boolean[] rows = forHeads ? headRows : activeRows;
+		for(int j = t.minY; j < t.maxY; j++) {
+			if(rows[j]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/** Makes every column recalculate its hydraulic heads in the current time step, so that every plant gets handled */
+	void includeAllHeads() {
+		Arrays.fill(heads, true);
+		Arrays.fill(headRows, true);
+	}
+}
@@ -0,0 +1,107 @@
+package flow;
+
+import cell.Farm;
+import cell.Soil;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * AllocationCheck makes sure that running the model doesn't create garbage. It counts the bytes allocated by the
+ * threads running the model while time steps are taken, after a warmup so that one time allocations like the worker
+ * buffers and JIT compilation are out of the way. Reports are left out, since printing them builds strings.<p />
+ * Exits with status 1 if anything was allocated. Needs a JVM whose ThreadMXBean counts allocated bytes, like HotSpot.
+ * This should only be used for testing purposes.
+ */
+public class AllocationCheck {
+	private static final int WARMUP = 3000; //time steps
+	private static final int MEASURED = 199; //time steps. Reports are 200 time steps apart
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+	/**
+	 * Runs the checks
+	 * @param args optional: the number of threads to check with besides 1
+	 */
+	public static void main(String[] args) {
+		int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		boolean passed = true;
+		for(int p : parallelism == 1 ? new int[] {1} : new int[] {1, parallelism}) {
+			Farm farm = FlowBenchmark.testFarm(Soil.GILASAND, true, 14, 42);
+			WaterFlow flow = new WaterFlow(farm, p, 0, 0, 1);
+			long[] ids = threadIds();
+			try {
+				//Time steps on their own
+				flow.refreshActiveColumns();
+				for(int i = 0; i < WARMUP; i++) {
+					flow.step();
+				}
+				allocatedBytes(ids); //The first call may allocate
+				long before = allocatedBytes(ids);
+				for(int i = 0; i < MEASURED; i++) {
+					flow.step();
+				}
+				long bytes = allocatedBytes(ids) - before;
+				passed &= check("step with " + p + " thread(s)", bytes);
+
+				//Time steps with rain and flows between farms, but no reports
+				flow.update(WARMUP * 1000);
+				flow.update(1000); //Reports are made at the start of this step
+				before = allocatedBytes(ids);
+				flow.update(MEASURED * 1000);
+				bytes = allocatedBytes(ids) - before;
+				passed &= check("update with " + p + " thread(s)", bytes);
+			}
+			finally {
+				flow.shutdown();
+			}
+		}
+
+		if(!passed) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Prints the result of one check
+	 * @param name what was checked
+	 * @param bytes the bytes allocated while running it
+	 * @return true if nothing was allocated
+	 */
+	private static boolean check(String name, long bytes) {
+		System.out.println(name + ": " + (double) bytes / MEASURED + " bytes per time step" + (bytes == 0 ? "" : " FAILED"));
+		return bytes == 0;
+	}
+
+
+	/** @return the ids of this thread and the worker threads */
+	private static long[] threadIds() {
+		long[] ids = new long[1];
+		ids[0] = Thread.currentThread().getId();
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith("FlowWorker-")) {
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = thread.getId();
+			}
+		}
+		return ids;
+	}
+
+
+	/**
+	 * @param ids the threads to count
+	 * @return the total bytes allocated so far by the threads
+	 */
+	private static long allocatedBytes(long[] ids) {
+		long total = 0;
+		for(long id : ids) {
+			total += threads.getThreadAllocatedBytes(id);
+		}
+		return total;
+	}
+}
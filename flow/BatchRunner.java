@@ -0,0 +1,164 @@
+package flow;
+
+import cell.*;
+import topo.Topography;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A BatchRunner runs many {@link Scenario}s on the same land at once. The land is generated once and shared as a
+ * {@link FarmGeometry}, so every scenario only gets its own water, soil and plants. Scenarios are spread over one
+ * fixed pool of threads, and each one runs its WaterFlow on the pool thread it was given instead of starting workers of
+ * its own, so the machine runs one model per thread and never more threads than it was asked for.<p />
+ * Plants keep their growth in the shared Plant constants, so scenarios that let plants grow affect each other. The
+ * water itself is always independent.
+ */
+public class BatchRunner {
+	private final FarmGeometry    geometry;
+	private final ExecutorService pool;
+
+
+	/**
+	 * Creates a runner for scenarios on the given land
+	 * @param geometry the land that every scenario runs on
+	 * @param threads the amount of scenarios to run at the same time, usually the amount of processors
+	 */
+	public BatchRunner(FarmGeometry geometry, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1: " + threads);
+		}
+		this.geometry = geometry;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Scenario-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * Runs every scenario and waits for all of them to finish. A scenario that fails doesn't stop the others; its
+	 *  result tells what went wrong.
+	 * @param scenarios the scenarios to run
+	 * @return the result of each scenario, in the same order
+	 * @throws InterruptedException if the thread is interrupted while waiting. The scenarios that haven't started
+	 *                              yet are cancelled
+	 */
+	public List<ScenarioResult> run(List<Scenario> scenarios) throws InterruptedException {
+		List<Future<ScenarioResult>> futures = new ArrayList<Future<ScenarioResult>>(scenarios.size());
+		for(final Scenario scenario : scenarios) {
+			futures.add(pool.submit(new Callable<ScenarioResult>() {
+				public ScenarioResult call() {
+					return runScenario(scenario);
+				}
+			}));
+		}
+
+		List<ScenarioResult> results = new ArrayList<ScenarioResult>(scenarios.size());
+		try {
+			for(int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				}
+				catch(ExecutionException e) { //runScenario catches everything, so this only happens for Errors
+					results.add(new ScenarioResult(scenarios.get(i), null, 0, 0, e.getCause()));
+				}
+			}
+		}
+		finally {
+			if(results.size() < futures.size()) {
+				for(Future<ScenarioResult> future : futures) {
+					future.cancel(false);
+				}
+			}
+		}
+		return results;
+	}
+
+
+	/**
+	 * Sets up a farm for a scenario and runs it on this thread
+	 * @param scenario the scenario to run
+	 * @return how it went
+	 */
+	private ScenarioResult runScenario(Scenario scenario) {
+		long time = System.currentTimeMillis();
+		WaterFlow flow = null;
+		try {
+			Farm farm = geometry.createFarm();
+			GridStore store = farm.getStore();
+			for(int c = 0; c < store.size(); c++) {
+				if(store.isValid(c)) {
+					store.setSoil(c, scenario.getSoil());
+					store.setWaterVolume(c, scenario.getInitialWater());
+					if(store.isSurface(c)) {
+						store.setPlant(c, scenario.getPlant());
+					}
+				}
+			}
+
+			flow = new WaterFlow(farm, 1, 0, 0, 1);
+			flow.setReport(false);
+			flow.setRain(scenario.getRainPerCell());
+			flow.update(scenario.getSeconds());
+			return new ScenarioResult(scenario, flow.getWaterBalance(), flow.getMetrics().getSteps(),
+			                          System.currentTimeMillis() - time, null);
+		}
+		catch(RuntimeException e) {
+			return new ScenarioResult(scenario, null, 0, System.currentTimeMillis() - time, e);
+		}
+		finally {
+			if(flow != null) {
+				flow.shutdown();
+			}
+		}
+	}
+
+
+	/** Stops the threads once the scenarios that are running have finished */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+
+	/** This should only be used for testing purposes */
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 200000;
+
+		long time = System.currentTimeMillis();
+		FarmGeometry geometry = new FarmGeometry(Topography.createFarm(1000, 1000));
+		System.out.println("Topography: " + (System.currentTimeMillis() - time) + " ms");
+
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		for(Soil soil : new Soil[] {Soil.GILASAND, Soil.GILALOAM}) {
+			for(double rain : new double[] {5, 11, 20}) {
+				Scenario scenario = new Scenario(soil + " " + rain + " mL", soil, Plant.CHILE, rain, seconds);
+				scenario.setInitialWater(20);
+				scenarios.add(scenario);
+			}
+		}
+
+		BatchRunner runner = new BatchRunner(geometry, threads);
+		time = System.currentTimeMillis();
+		List<ScenarioResult> results = runner.run(scenarios);
+		long elapsed = System.currentTimeMillis() - time;
+		runner.shutdown();
+
+		for(ScenarioResult result : results) {
+			System.out.println(result);
+		}
+		System.out.println(scenarios.size() + " scenarios on " + threads + " thread(s) in " + elapsed + " ms, " +
+		                   String.format("%.0f", scenarios.size() * 3600000.0 / elapsed) + " scenarios/hour");
+	}
+}
@@ -0,0 +1,131 @@
+package flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A BinaryStateSink writes the samples of a {@link StateOutput} to a file as fixed-size little-endian records, so a
+ * run of any length can be read back one record at a time or by seeking straight to a sample.<p />
+ * The file starts with a header of ints: a magic number, the format version, the x, y and z cell counts, the amount
+ * of sides and a bit mask of the recorded fields (bit n for {@link StateOutput.Field} ordinal n). Every record then
+ * holds the simulated time (double), the step count (long) and the total water (double), followed by the recorded
+ * fields in declaration order: the surface water of every column as floats, the total of every layer as doubles and
+ * the outflow of every side as doubles. Surface water is stored as floats because it is by far the largest field.
+ */
+public class BinaryStateSink implements StateSink {
+	static final int MAGIC   = 0x53544657; //"WFTS" when read as little-endian bytes
+	static final int VERSION = 1;
+
+	private final File  file;
+	private FileChannel channel;
+	private ByteBuffer  record; //Reused for every sample
+
+
+	/**
+	 * Creates a sink that writes to a file, replacing it if it exists
+	 * @param file the file to write
+	 */
+	public BinaryStateSink(File file) {
+		this.file = file;
+	}
+
+
+	public void open(StateOutput output) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                           StandardOpenOption.TRUNCATE_EXISTING);
+		int mask = 0;
+		for(StateOutput.Field field : StateOutput.Field.values()) {
+			if(output.has(field)) {
+				mask |= 1 << field.ordinal();
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(4 * 7).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.putInt(output.getXCount()).putInt(output.getYCount()).putInt(output.getZCount());
+		header.putInt(output.getSides()).putInt(mask);
+		header.flip();
+		writeFully(header);
+
+		int size = 8 + 8 + 8;
+		if(output.has(StateOutput.Field.SURFACE_WATER)) {
+			size += 4 * output.getXCount() * output.getYCount();
+		}
+		if(output.has(StateOutput.Field.LAYER_TOTALS)) {
+			size += 8 * output.getZCount();
+		}
+		if(output.has(StateOutput.Field.OUTFLOW)) {
+			size += 8 * output.getSides();
+		}
+		record = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	public void write(StateSample sample) throws IOException {
+		record.clear();
+		record.putDouble(sample.simulatedTime).putLong(sample.steps).putDouble(sample.totalWater);
+		if(sample.surfaceWater != null) {
+			for(double water : sample.surfaceWater) {
+				record.putFloat((float) water);
+			}
+		}
+		if(sample.layerTotals != null) {
+			record.asDoubleBuffer().put(sample.layerTotals);
+			record.position(record.position() + 8 * sample.layerTotals.length);
+		}
+		if(sample.outflow != null) {
+			record.asDoubleBuffer().put(sample.outflow);
+			record.position(record.position() + 8 * sample.outflow.length);
+		}
+		record.flip();
+		writeFully(record);
+	}
+
+
+	public void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+
+	/**
+	 * @param buffer the bytes to write, all of which are written
+	 * @throws IOException if they can't be written
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+
+	/**
+	 * Prints the time, step and total water of every record in a file. This should only be used for testing purposes.
+	 * @param args the file to read
+	 */
+	public static void main(String[] args) throws IOException {
+		try(FileChannel in = FileChannel.open(new File(args[0]).toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(args[0] + " is not a state file of version " + VERSION);
+			}
+			int x = buffer.getInt(), y = buffer.getInt(), z = buffer.getInt(), sides = buffer.getInt();
+			int mask = buffer.getInt();
+			int size = 8 + 8 + 8 + ((mask & 1) != 0 ? 4 * x * y : 0) + ((mask & 2) != 0 ? 8 * z : 0) +
+			           ((mask & 4) != 0 ? 8 * sides : 0);
+			System.out.println(x + "x" + y + "x" + z + " grid, fields " + Integer.toBinaryString(mask) + ", " +
+			                   buffer.remaining() / size + " records of " + size + " bytes");
+			while(buffer.remaining() >= size) {
+				int start = buffer.position();
+				System.out.println(buffer.getDouble() + " s, step " + buffer.getLong() + ", " + buffer.getDouble() + " mL");
+				buffer.position(start + size);
+			}
+		}
+	}
+}
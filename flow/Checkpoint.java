@@ -0,0 +1,494 @@
+package flow;
+
+import cell.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Checkpoint is a copy of everything needed to carry on a WaterFlow run later: the shape of the grid, the soil,
+ * water and plant of every cell, the water waiting to be added, the reservoirs, the plant growth, the water balance and
+ * the clock with its upcoming events. A WaterFlow restored from a checkpoint continues exactly like the original would
+ * have, without having to generate the farm again. See {@link WaterFlow#checkpoint()} and
+ * {@link WaterFlow#restore(Checkpoint)}.<p />
+ * Checkpoints are saved in a little-endian binary format that starts with a magic number and a version, followed by
+ * the header values and then one array at a time, each written and read in bulk copies through a memory-mapped file.
+ * The file is mapped up to a gigabyte at a time, so checkpoints of grids larger than 2 GB work too.
+ * Only the simulation is saved; the Farm's money, crops and other game state are not.
+ */
+public class Checkpoint {
+	private static final int MAGIC   = 0x50434657; //"WFCP" when read as little-endian bytes
+	private static final int VERSION = 2; //2 added the cell size
+	private static final int VALID   = 1; //Flag bits of each cell
+	private static final int SURFACE = 2;
+	private static final int CELL_BYTES = 1 + 1 + 1 + 8 * 4; //Flags, soil, plant, height, depth, water and change
+	private static final int HEADER_BYTES = 4 * 5 + 8 + 8 * 3 + 4 + 1 + 8 * 9 + 8 * 2; //Up to the ledger
+	private static final int WINDOW = 1 << 30; //bytes. Most of the file mapped at once, well under the 2 GB limit
+
+	//Grid
+	int      xCount, yCount, zCount;
+	double   cellSize; //centimeters
+	double   latitude, longitude, relief;
+	byte[]   flags;  //VALID and SURFACE bits of each cell
+	byte[]   soil;   //Soil ordinal of each cell, or GridStore.NO_SOIL
+	byte[]   plant;  //Plant ordinal of each cell, or -1
+	double[] height; //centimeters
+	double[] depth;  //centimeters
+	double[] water;  //mL
+	double[] change; //mL. Water waiting to be added to each cell
+	//Plant growth, indexed by Plant ordinal. Every plant of a type shares its growth
+	int[]     rootDepth;
+	int[]     daysWithoutWater;
+	boolean[] alive;
+	//Water outside of the grid
+	double[][][] reservoirs; //mL
+	double[]     ledger;     //See WaterBalance.copyTo
+	//Clock
+	int     timeStep;
+	boolean adaptive;
+	double  minStep, maxStep, stepSize, desiredStep; //seconds
+	double  simulatedTime; //seconds
+	double  nextReport, nextFlowOut, nextRain, nextPlantDay; //seconds
+	long    steps, realTime;
+
+
+	/** Checkpoints are made by {@link WaterFlow#checkpoint()} or {@link #read(File)} */
+	Checkpoint() {
+	}
+
+
+	/** @return the simulated time the checkpoint was taken at, in seconds */
+	public double getSimulatedTime() {
+		return simulatedTime;
+	}
+
+
+	/** @return the amount of cells in the x axis */
+	public int getXCount() {
+		return xCount;
+	}
+
+
+	/** @return the amount of cells in the y axis */
+	public int getYCount() {
+		return yCount;
+	}
+
+
+	/** @return the amount of cells in the z axis */
+	public int getZCount() {
+		return zCount;
+	}
+
+
+	/**
+	 * Builds a Farm with the grid, soil, water and plants that were saved, ready to be given to a new WaterFlow and
+	 *  restored with {@link WaterFlow#restore(Checkpoint)}
+	 * @return a new Farm
+	 */
+	public Farm createFarm() {
+		GridStore store = new GridStore(xCount, yCount, zCount, cellSize);
+		Soil[] soils = Soil.values();
+		Plant[] plants = Plant.values();
+		for(int c = 0; c < flags.length; c++) {
+			if((flags[c] & VALID) == 0) {
+				continue;
+			}
+			store.setValid(c, true);
+			store.setSurface(c, (flags[c] & SURFACE) != 0);
+			store.setHeight(c, height[c]);
+			store.setDepth(c, depth[c]);
+			store.setWaterVolume(c, water[c]);
+			store.setSoil(c, soil[c] == GridStore.NO_SOIL ? null : soils[soil[c]]);
+			store.setPlant(c, plant[c] < 0 ? null : plants[plant[c]]);
+		}
+
+		Farm farm = new Farm(xCount, yCount, cellSize);
+		farm.setLatitude(latitude);
+		farm.setLongitude(longitude);
+		farm.setRelief(relief);
+		farm.setZCellCount(zCount);
+		farm.setStore(store);
+		return farm;
+	}
+
+
+	/**
+	 * Copies the cells of a store into this checkpoint
+	 * @param store the store to copy
+	 */
+	void copyGrid(GridStore store) {
+		int size = store.size();
+		xCount = store.getXCount();
+		yCount = store.getYCount();
+		zCount = store.getZCount();
+		cellSize = store.getCellSize();
+		flags = new byte[size];
+		plant = new byte[size];
+		boolean[] valid = store.getValidMask();
+		boolean[] surface = store.getSurfaceMask();
+		Plant[] plants = store.getPlants();
+		for(int c = 0; c < size; c++) {
+			flags[c] = (byte) ((valid[c] ? VALID : 0) | (surface[c] ? SURFACE : 0));
+			plant[c] = (byte) (plants[c] == null ? -1 : plants[c].ordinal());
+		}
+		soil = store.getSoils().clone();
+		height = store.getHeights().clone();
+		depth = store.getDepths().clone();
+		water = store.getWaterVolumes().clone();
+
+		Plant[] types = Plant.values();
+		rootDepth = new int[types.length];
+		daysWithoutWater = new int[types.length];
+		alive = new boolean[types.length];
+		for(int p = 0; p < types.length; p++) {
+			rootDepth[p] = types[p].getRootDepth();
+			daysWithoutWater[p] = types[p].getAllowableDaysWithoutWater();
+			alive[p] = types[p].isDeadOrAlive();
+		}
+	}
+
+
+	/** Puts the saved growth back into every plant type */
+	void restorePlants() {
+		Plant[] types = Plant.values();
+		for(int p = 0; p < types.length; p++) {
+			types[p].restore(rootDepth[p], daysWithoutWater[p], alive[p]);
+		}
+	}
+
+
+	/**
+	 * Saves the checkpoint to a file. It is written to a temporary file next to it first and then moved into place,
+	 *  so a crash while writing never leaves a half-written checkpoint behind.
+	 * @param file the file to save to. It is replaced if it exists
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file) throws IOException {
+		Path target = file.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                                           StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedFile out = new MappedFile(channel, FileChannel.MapMode.READ_WRITE, byteCount());
+			ByteBuffer buffer = out.need(HEADER_BYTES);
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putInt(xCount).putInt(yCount).putInt(zCount).putDouble(cellSize);
+			buffer.putDouble(latitude).putDouble(longitude).putDouble(relief);
+			buffer.putInt(timeStep).put((byte) (adaptive ? 1 : 0));
+			buffer.putDouble(minStep).putDouble(maxStep).putDouble(stepSize).putDouble(desiredStep);
+			buffer.putDouble(simulatedTime);
+			buffer.putDouble(nextReport).putDouble(nextFlowOut).putDouble(nextRain).putDouble(nextPlantDay);
+			buffer.putLong(steps).putLong(realTime);
+			out.put(ledger);
+
+			out.need(4).putInt(rootDepth.length);
+			for(int p = 0; p < rootDepth.length; p++) {
+				out.need(4 + 4 + 1).putInt(rootDepth[p]).putInt(daysWithoutWater[p]).put((byte) (alive[p] ? 1 : 0));
+			}
+
+			out.put(flags);
+			out.put(soil);
+			out.put(plant);
+			out.put(height);
+			out.put(depth);
+			out.put(water);
+			out.put(change);
+			out.need(4 * 3).putInt(reservoirs.length).putInt(reservoirs[0].length).putInt(reservoirs[0][0].length);
+			for(double[][] side : reservoirs) {
+				for(double[] column : side) {
+					out.put(column);
+				}
+			}
+			out.force();
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Loads a checkpoint saved by {@link #write(File)}
+	 * @param file the file to load
+	 * @return the checkpoint
+	 * @throws IOException if the file can't be read or isn't a checkpoint of this version
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			try {
+				return read(new MappedFile(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+			}
+			catch(RuntimeException e) { //Anything a corrupt file gets past the checks
+				throw new IOException(file + " is not a valid checkpoint", e);
+			}
+		}
+	}
+
+
+	/**
+	 * @param in the saved checkpoint
+	 * @return the checkpoint
+	 * @throws IOException if the file isn't a checkpoint of this version
+	 */
+	private static Checkpoint read(MappedFile in) throws IOException {
+		if(in.remaining() < 8 || in.need(8).getInt() != MAGIC) {
+			throw new IOException("Not a checkpoint");
+		}
+		ByteBuffer buffer = in.need(HEADER_BYTES - 8);
+		int version = buffer.getInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported checkpoint version " + version + ", expected " + VERSION);
+		}
+
+		Checkpoint cp = new Checkpoint();
+		cp.xCount = buffer.getInt();
+		cp.yCount = buffer.getInt();
+		cp.zCount = buffer.getInt();
+		cp.cellSize = buffer.getDouble();
+		cp.latitude = buffer.getDouble();
+		cp.longitude = buffer.getDouble();
+		cp.relief = buffer.getDouble();
+		cp.timeStep = buffer.getInt();
+		cp.adaptive = buffer.get() != 0;
+		cp.minStep = buffer.getDouble();
+		cp.maxStep = buffer.getDouble();
+		cp.stepSize = buffer.getDouble();
+		cp.desiredStep = buffer.getDouble();
+		cp.simulatedTime = buffer.getDouble();
+		cp.nextReport = buffer.getDouble();
+		cp.nextFlowOut = buffer.getDouble();
+		cp.nextRain = buffer.getDouble();
+		cp.nextPlantDay = buffer.getDouble();
+		cp.steps = buffer.getLong();
+		cp.realTime = buffer.getLong();
+		cp.ledger = in.get(new double[WaterBalance.LEDGER_SIZE]);
+
+		int types = in.need(4).getInt();
+		if(types != Plant.values().length) {
+			throw new IOException("Checkpoint has " + types + " plant types, expected " + Plant.values().length);
+		}
+		cp.rootDepth = new int[types];
+		cp.daysWithoutWater = new int[types];
+		cp.alive = new boolean[types];
+		for(int p = 0; p < types; p++) {
+			buffer = in.need(4 + 4 + 1);
+			cp.rootDepth[p] = buffer.getInt();
+			cp.daysWithoutWater[p] = buffer.getInt();
+			cp.alive[p] = buffer.get() != 0;
+		}
+
+		//The sizes are checked against the length of the file before anything is allocated from them
+		if(cp.xCount < 1 || cp.yCount < 1 || cp.zCount < 1) {
+			throw new IOException("Checkpoint has an invalid grid of " + cp.xCount + "x" + cp.yCount + "x" + cp.zCount);
+		}
+		long cells = (long) cp.xCount * cp.yCount * cp.zCount;
+		long cellBytes = cells * CELL_BYTES;
+		if(cells > Integer.MAX_VALUE || in.remaining() < cellBytes + 4 * 3) {
+			throw new IOException("Checkpoint is too short for a grid of " + cp.xCount + "x" + cp.yCount + "x" +
+			                      cp.zCount);
+		}
+		ByteBuffer dimensions = in.peek(in.position() + cellBytes, 4 * 3);
+		int sides = dimensions.getInt();
+		int rows = dimensions.getInt();
+		int layers = dimensions.getInt();
+		if(sides < 1 || rows < 1 || layers < 1) {
+			throw new IOException("Checkpoint has invalid reservoirs of " + sides + "x" + rows + "x" + layers);
+		}
+		long expected = byteCount(cells, types, (long) sides * rows * layers);
+		if(expected != in.size()) {
+			throw new IOException("Checkpoint is " + in.size() + " bytes, expected " + expected);
+		}
+
+		int size = (int) cells;
+		cp.flags = in.get(new byte[size]);
+		cp.soil = in.get(new byte[size]);
+		cp.plant = in.get(new byte[size]);
+		cp.height = in.get(new double[size]);
+		cp.depth = in.get(new double[size]);
+		cp.water = in.get(new double[size]);
+		cp.change = in.get(new double[size]);
+		in.skip(4 * 3); //The reservoir dimensions, read above
+		cp.reservoirs = new double[sides][rows][layers];
+		for(double[][] side : cp.reservoirs) {
+			for(double[] column : side) {
+				in.get(column);
+			}
+		}
+		return cp;
+	}
+
+
+	/** @return the size of the saved checkpoint in bytes */
+	private long byteCount() {
+		return byteCount((long) xCount * yCount * zCount, rootDepth.length,
+		                 (long) reservoirs.length * reservoirs[0].length * reservoirs[0][0].length);
+	}
+
+
+	/**
+	 * @param cells the cells of the grid
+	 * @param types the plant types
+	 * @param reservoirCells the cells of every reservoir
+	 * @return the size of a saved checkpoint in bytes
+	 */
+	private static long byteCount(long cells, int types, long reservoirCells) {
+		return HEADER_BYTES
+		       + 8 * WaterBalance.LEDGER_SIZE         //Ledger
+		       + 4 + types * (4 + 4 + 1)              //Plant growth
+		       + cells * CELL_BYTES                   //Cells
+		       + 4 * 3 + reservoirCells * 8;          //Reservoirs
+	}
+
+
+	/**
+	 * A file mapped one window at a time, since one mapping can't be larger than 2 GB. Arrays are still copied in bulk,
+	 *  one copy per window they fall in.
+	 */
+	private static class MappedFile {
+		private final FileChannel         channel;
+		private final FileChannel.MapMode mode;
+		private final long                size; //bytes
+		private MappedByteBuffer          buffer;
+		private long                      start; //Position of the window in the file
+
+
+		/**
+		 * Maps the start of a file
+		 * @param channel the file
+		 * @param mode how to map it. Mapping for writing makes the file as long as size
+		 * @param size the length of the file in bytes
+		 */
+		MappedFile(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+			this.channel = channel;
+			this.mode = mode;
+			this.size = size;
+			map(0);
+		}
+
+
+		/** Moves the window to start at a position of the file */
+		private void map(long position) throws IOException {
+			if(buffer != null && mode == FileChannel.MapMode.READ_WRITE) {
+				buffer.force();
+			}
+			start = position;
+			buffer = channel.map(mode, position, Math.min(WINDOW, size - position));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+
+		/**
+		 * @param bytes the bytes about to be read or written, at most a few hundred
+		 * @return the window, with at least the given amount of bytes left in it
+		 * @throws IOException if the file ends first
+		 */
+		ByteBuffer need(int bytes) throws IOException {
+			if(buffer.remaining() < bytes) {
+				if(remaining() < bytes) {
+					throw new IOException("Checkpoint ends " + remaining() + " bytes after " + position() +
+					                      ", expected " + bytes + " more");
+				}
+				map(position());
+			}
+			return buffer;
+		}
+
+
+		/**
+		 * Maps a few bytes without moving the window
+		 * @param position where they start in the file
+		 * @param bytes the amount of them
+		 * @return the bytes
+		 */
+		ByteBuffer peek(long position, int bytes) throws IOException {
+			return channel.map(mode, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+
+		/** Moves past bytes without reading them */
+		void skip(int bytes) throws IOException {
+			need(bytes).position(buffer.position() + bytes);
+		}
+
+
+		/** Writes an array, one bulk copy per window */
+		void put(byte[] values) throws IOException {
+			for(int done = 0; done < values.length; ) {
+				int count = Math.min(values.length - done, need(1).remaining());
+				buffer.put(values, done, count);
+				done += count;
+			}
+		}
+
+
+		/** Writes an array, one bulk copy per window */
+		void put(double[] values) throws IOException {
+			for(int done = 0; done < values.length; ) {
+				int count = Math.min(values.length - done, need(8).remaining() / 8);
+				buffer.asDoubleBuffer().put(values, done, count);
+				buffer.position(buffer.position() + count * 8);
+				done += count;
+			}
+		}
+
+
+		/**
+		 * Reads an array, one bulk copy per window
+		 * @param values the array to fill
+		 * @return values
+		 */
+		byte[] get(byte[] values) throws IOException {
+			for(int done = 0; done < values.length; ) {
+				int count = Math.min(values.length - done, need(1).remaining());
+				buffer.get(values, done, count);
+				done += count;
+			}
+			return values;
+		}
+
+
+		/**
+		 * Reads an array, one bulk copy per window
+		 * @param values the array to fill
+		 * @return values
+		 */
+		double[] get(double[] values) throws IOException {
+			for(int done = 0; done < values.length; ) {
+				int count = Math.min(values.length - done, need(8).remaining() / 8);
+				buffer.asDoubleBuffer().get(values, done, count);
+				buffer.position(buffer.position() + count * 8);
+				done += count;
+			}
+			return values;
+		}
+
+
+		/** Makes sure everything written has reached the disk */
+		void force() {
+			buffer.force();
+		}
+
+
+		/** @return the position of the next byte in the file */
+		long position() {
+			return start + buffer.position();
+		}
+
+
+		/** @return the bytes left after the position */
+		long remaining() {
+			return size - position();
+		}
+
+
+		/** @return the length of the file in bytes */
+		long size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package flow;
+
+import cell.Farm;
+import cell.GridStore;
+import cell.Soil;
+
+/**
+ * ConservationCheck makes sure that splitting the model over threads and tiles changes nothing. The same farm is run
+ * with 1 thread and the default tiles, then with every other thread count and several tilings, and every cell has to
+ * end up with exactly the same water as the first run. Every run also has to account for all of its water in its
+ * {@link WaterBalance}, up to rounding.<p />
+ * Exits with status 1 if anything doesn't match. This should only be used for testing purposes.
+ */
+public class ConservationCheck {
+	private static final double   SECONDS   = 10000; //Simulated time of every run
+	private static final double   TOLERANCE = 1e-9; //The largest conservation error allowed, relative to the water
+	private static final int[][]  TILINGS   = {{0, 0, 1}, {1, 1, 1}, {4, 4, 1}, {3, 5, 2}, {8, 1, 4}, {2, 7, 3}};
+
+
+	/**
+	 * Runs the checks
+	 * @param args optional: the most threads to check with, and the length and width of the farm
+	 */
+	public static void main(String[] args) {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+		                                 : Math.max(4, Runtime.getRuntime().availableProcessors());
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : Farm.SIZE;
+
+		double[] expected = run(size, 1, TILINGS[0]);
+		if(expected == null) {
+			System.exit(1);
+		}
+		boolean passed = true;
+		for(int threads = 1; threads <= maxThreads; threads++) {
+			for(int[] tiling : TILINGS) {
+				if(threads == 1 && tiling == TILINGS[0]) {
+					continue;
+				}
+				double[] water = run(size, threads, tiling);
+				if(water == null) {
+					passed = false;
+					continue;
+				}
+				int mismatches = 0;
+				for(int c = 0; c < water.length; c++) {
+					if(Double.doubleToLongBits(water[c]) != Double.doubleToLongBits(expected[c])) {
+						mismatches++;
+					}
+				}
+				System.out.println(name(threads, tiling) + ": " + mismatches + " cells differ from 1 thread" +
+				                   (mismatches == 0 ? "" : " FAILED"));
+				passed &= mismatches == 0;
+			}
+		}
+
+		if(!passed) {
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Runs the test farm and checks its water balance
+	 * @param size the length and width of the farm
+	 * @param threads the parallelism of the model
+	 * @param tiling the x, y and z tiles of the model
+	 * @return the water of every cell at the end, or null if the water balance didn't add up
+	 */
+	private static double[] run(int size, int threads, int[] tiling) {
+		Farm farm = FlowBenchmark.testFarm(Soil.GILASAND, true, size, 14, 42);
+		WaterFlow flow = new WaterFlow(farm, threads, tiling[0], tiling[1], tiling[2]);
+		try {
+			flow.setReport(false);
+			flow.update(SECONDS);
+		}
+		finally {
+			flow.shutdown();
+		}
+
+		WaterBalance balance = flow.getWaterBalance();
+		double error = Math.abs(balance.getConservationError());
+		boolean balanced = error <= TOLERANCE * Math.max(1, balance.getTotal());
+		System.out.println(name(threads, tiling) + ": conservation error " + error + " mL of " + balance.getTotal() +
+		                   " mL" + (balanced ? "" : " FAILED"));
+		if(!balanced) {
+			return null;
+		}
+
+		GridStore store = farm.getStore();
+		double[] water = new double[store.size()];
+		for(int c = 0; c < water.length; c++) {
+			water[c] = store.getWaterVolume(c);
+		}
+		return water;
+	}
+
+
+	/** @return a description of a run */
+	private static String name(int threads, int[] tiling) {
+		return threads + " thread(s), " + tiling[0] + "x" + tiling[1] + "x" + tiling[2] + " tiles";
+	}
+}
@@ -0,0 +1,293 @@
+package flow;
+
+import cell.Cell;
+import cell.Direction;
+import cell.Farm;
+import cell.Point3D;
+import cell.Soil;
+import server.FlowData;
+import topo.Topography;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * FlowBenchmark times every part of the water flow model on its own. Every benchmark is run for a few warmup
+ * iterations that are thrown away so the JIT compiler can settle, then for a few measured iterations. Each iteration
+ * repeats the operation until it has run for a fixed amount of time and reports the average time per operation. The
+ * mean and standard deviation over the measured iterations are printed for every combination of parameters.<p />
+ * Arguments are given as name=value,value,... and every combination of values is run:
+ * <ul>
+ * <li>size      - the length and width of the farm in cells (default 64,128)</li>
+ * <li>layers    - the number of cell layers in the farm (default 14,28)</li>
+ * <li>soil      - the soil of every cell (default GILASAND)</li>
+ * <li>state     - wet starts every other cell with water, dry only with traces of it (default wet,dry)</li>
+ * <li>threads   - the parallelism of the WaterFlow (default 1 and the number of processors)</li>
+ * <li>kernel    - how the flows are calculated: cell by cell, with the scalar row kernel, or with the vector kernel
+ *                 (default cell,row,vector). Only flux and step depend on it, so the other operations are only run
+ *                 with the first kernel. The vector kernel is left out if it isn't available, see
+ *                 {@link WaterFlow#setRowKernel(boolean, boolean)}</li>
+ * <li>benchmark - which operations to time (default all of them)</li>
+ * <li>time      - milliseconds per iteration (default 500)</li>
+ * </ul>
+ * The operations are head, flux and apply (the phases of a time step on their own), step (a whole time step), rain,
+ * flowIntoFarm, getTotalWater and createFarm. createFarm doesn't depend on the other parameters, so it is only run
+ * once.
+ */
+public class FlowBenchmark {
+	private static final String[] BENCHMARKS = {"head", "flux", "apply", "step", "rain", "flowIntoFarm", "getTotalWater",
+	                                            "createFarm"};
+	private static final String[] KERNEL_BENCHMARKS = {"flux", "step"}; //The operations that depend on the kernel
+	private static final int      WARMUP = 3; //iterations
+	private static final int      MEASURED = 5; //iterations
+
+	private static volatile double sink; //Results are written here so the JIT compiler can't drop the work
+
+	private long iterationTime = 500; //milliseconds
+
+
+	/**
+	 * Runs the benchmarks
+	 * @param args the parameters, as described in the class comment
+	 */
+	public static void main(String[] args) {
+		String[] sizes = {"" + Farm.SIZE, "" + 2 * Farm.SIZE};
+		String[] layers = {"14", "28"};
+		String[] soils = {Soil.GILASAND.name()};
+		String[] states = {"wet", "dry"};
+		int processors = Runtime.getRuntime().availableProcessors();
+		String[] threads = processors == 1 ? new String[] {"1"} : new String[] {"1", "" + processors};
+		String[] kernels = {"cell", "row", "vector"};
+		String[] benchmarks = BENCHMARKS;
+		FlowBenchmark bench = new FlowBenchmark();
+
+		for(String arg : args) {
+			int split = arg.indexOf('=');
+			if(split < 0) {
+				throw new IllegalArgumentException("Expected name=value,value,... but got " + arg);
+			}
+			String name = arg.substring(0, split);
+			String[] values = arg.substring(split + 1).split(",");
+			if(name.equals("size")) {
+				sizes = values;
+			}
+			else if(name.equals("layers")) {
+				layers = values;
+			}
+			else if(name.equals("soil")) {
+				soils = values;
+			}
+			else if(name.equals("state")) {
+				states = values;
+			}
+			else if(name.equals("threads")) {
+				threads = values;
+			}
+			else if(name.equals("kernel")) {
+				kernels = values;
+			}
+			else if(name.equals("benchmark")) {
+				benchmarks = values;
+			}
+			else if(name.equals("time")) {
+				bench.iterationTime = Long.parseLong(values[0]);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown parameter: " + name);
+			}
+		}
+
+		List<String> kernelList = new ArrayList<String>(Arrays.asList(kernels));
+		if(kernelList.contains("vector") && !WaterFlow.isVectorKernelAvailable()) {
+			kernelList.remove("vector");
+			System.out.println("The vector kernel isn't available. Compile incubator/flow and run with " +
+			                   "--add-modules jdk.incubator.vector to include it");
+		}
+
+		System.out.println(String.format("%-14s %5s %6s %-18s %-5s %7s %-6s %14s %12s", "benchmark", "size",
+		                                 "layers", "soil", "state", "threads", "kernel", "us/op", "error"));
+		List<String> farmBenchmarks = new ArrayList<String>(Arrays.asList(benchmarks));
+		if(farmBenchmarks.remove("createFarm")) {
+			bench.report("createFarm", "", "", "", "", "", "", bench.measure("createFarm", null, null));
+		}
+		if(farmBenchmarks.isEmpty()) {
+			return;
+		}
+
+		for(String size : sizes) {
+			for(String layer : layers) {
+				for(String soil : soils) {
+					for(String state : states) {
+						for(String thread : threads) {
+							for(String benchmark : farmBenchmarks) {
+								boolean anyKernel = !Arrays.asList(KERNEL_BENCHMARKS).contains(benchmark);
+								for(String kernel : kernelList) {
+									if(anyKernel && !kernel.equals(kernelList.get(0))) {
+										continue;
+									}
+									//Every benchmark gets a new farm, since most of them change the water
+									Farm farm = testFarm(Soil.valueOf(soil), state.equals("wet"),
+									                     Integer.parseInt(size), Integer.parseInt(layer), 42);
+									WaterFlow flow = new WaterFlow(farm, Integer.parseInt(thread), 0, 0, 1);
+									try {
+										flow.setRowKernel(!kernel.equals("cell"), kernel.equals("vector"));
+										double[] result = bench.measure(benchmark, flow, inflow(farm));
+										bench.report(benchmark, size, layer, soil, state, thread, kernel, result);
+									}
+									finally {
+										flow.shutdown();
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Times one benchmark
+	 * @param benchmark the name of the operation to time
+	 * @param flow the model to run it on
+	 * @param data the water to use for flowIntoFarm
+	 * @return the mean and the standard deviation of the time per operation, in microseconds
+	 */
+	private double[] measure(String benchmark, WaterFlow flow, FlowData data) {
+		if(flow != null) {
+			flow.refreshActiveColumns();
+		}
+		double[] times = new double[MEASURED];
+		for(int iteration = 0; iteration < WARMUP + MEASURED; iteration++) {
+			long end = System.nanoTime() + iterationTime * 1000000;
+			long start = System.nanoTime();
+			long operations = 0;
+			long now;
+			do {
+				run(benchmark, flow, data);
+				operations++;
+			} while((now = System.nanoTime()) < end);
+
+			if(iteration >= WARMUP) {
+				times[iteration - WARMUP] = (now - start) / 1000.0 / operations;
+			}
+		}
+
+		double mean = 0;
+		for(double time : times) {
+			mean += time / times.length;
+		}
+		double variance = 0;
+		for(double time : times) {
+			variance += (time - mean) * (time - mean) / (times.length - 1);
+		}
+		return new double[] {mean, Math.sqrt(variance)};
+	}
+
+
+	/**
+	 * Runs an operation once
+	 * @param benchmark the name of the operation
+	 * @param flow the model to run it on
+	 * @param data the water to use for flowIntoFarm
+	 */
+	private void run(String benchmark, WaterFlow flow, FlowData data) {
+		if(benchmark.equals("head")) {
+			flow.runSinglePhase(PhaseScheduler.Phase.HEAD);
+		}
+		else if(benchmark.equals("flux")) {
+			flow.runSinglePhase(PhaseScheduler.Phase.FLUX);
+		}
+		else if(benchmark.equals("apply")) {
+			flow.runSinglePhase(PhaseScheduler.Phase.APPLY);
+		}
+		else if(benchmark.equals("step")) {
+			flow.step();
+		}
+		else if(benchmark.equals("rain")) {
+			flow.rain(11);
+		}
+		else if(benchmark.equals("flowIntoFarm")) {
+			flow.flowIntoFarm(data);
+		}
+		else if(benchmark.equals("getTotalWater")) {
+			sink = flow.getTotalWater();
+		}
+		else if(benchmark.equals("createFarm")) {
+			sink = Topography.createFarm(1000, 1000).getZCellCount();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+		}
+	}
+
+
+	/** Prints one line of results */
+	private void report(String benchmark, String size, String layers, String soil, String state, String threads,
+	                    String kernel, double[] result) {
+		System.out.println(String.format("%-14s %5s %6s %-18s %-5s %7s %-6s %14.3f %12.3f", benchmark, size, layers,
+		                                 soil, state, threads, kernel, result[0], result[1]));
+	}
+
+
+	/**
+	 * Builds a farm of the default size with a bumpy surface, the same every time for the same arguments
+	 * @param soil the soil of every cell
+	 * @param wet true to give every other cell up to 100 mL of water, false for up to 0.1 mL
+	 * @param layers the number of layers of cells. The top few layers are 1 cm thick, the rest 1 m
+	 * @param seed the seed of the random numbers
+	 * @return the farm
+	 */
+	static Farm testFarm(Soil soil, boolean wet, int layers, long seed) {
+		return testFarm(soil, wet, Farm.SIZE, layers, seed);
+	}
+
+
+	/**
+	 * Builds a farm with a bumpy surface, the same every time for the same arguments
+	 * @param soil the soil of every cell
+	 * @param wet true to give every other cell up to 100 mL of water, false for up to 0.1 mL
+	 * @param size the length and width of the farm in cells
+	 * @param layers the number of layers of cells. The top few layers are 1 cm thick, the rest 1 m
+	 * @param seed the seed of the random numbers
+	 * @return the farm
+	 */
+	static Farm testFarm(Soil soil, boolean wet, int size, int layers, long seed) {
+		Random rand = new Random(seed);
+		Cell[][][] grid = new Cell[size][size][layers];
+		for(int i = 0; i < size; i++) {
+			for(int j = 0; j < size; j++) {
+				int top = layers - 4 + rand.nextInt(3);
+				for(int k = 0; k <= top; k++) {
+					Cell cell = new Cell(k < layers - 4 ? 100 : 1, 0, new Point3D(i, j, k));
+					cell.setSoil(soil);
+					cell.setSurface(k == top);
+					if(rand.nextDouble() < .5) {
+						cell.setWaterVolume(wet ? rand.nextInt(100) : rand.nextInt(100) * 0.001);
+					}
+					grid[i][j][k] = cell;
+				}
+			}
+		}
+		Farm farm = new Farm(size, size, Cell.getCellSize());
+		farm.setZCellCount(layers);
+		farm.setGrid(grid);
+		return farm;
+	}
+
+
+	/**
+	 * @param farm the farm that the water flows into
+	 * @return 1 mL for every cell on the north edge of the farm
+	 */
+	private static FlowData inflow(Farm farm) {
+		Double[][] water = new Double[farm.getXCellCount()][farm.zCellCount];
+		for(Double[] row : water) {
+			Arrays.fill(row, 1.0);
+		}
+		return new FlowData(Direction.NORTH, water);
+	}
+}
@@ -0,0 +1,352 @@
+package flow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * FlowMetrics keeps track of where a WaterFlow spends its time: latency histograms for every phase and event of a time
+ * step, step and cell counters, how long each worker waits for the others, and how fast the model threads allocate.
+ * Everything is recorded by the thread running the model without allocating, and can be read at any time, either
+ * through the getters or through JMX once {@link #register(String)} has been called.<p />
+ * Readers on other threads may see values that are a step behind.
+ */
+public class FlowMetrics implements FlowMetricsMBean {
+	/** The parts of a time step that are timed */
+	public enum Timer {
+		/** The hydraulic head phase */
+		HEAD,
+		/** The flux phase */
+		FLUX,
+		/** The apply phase */
+		APPLY,
+		/** The fused flux and apply phase */
+		FUSED,
+		/** Moving the flows out of the farm into the reservoirs and clearing them for the next step */
+		RESERVOIRS,
+		/** Scanning the grid for wet columns at the start of an update */
+		REFRESH,
+		/** Adding rain */
+		RAIN,
+		/** Sending the reservoirs to other farms */
+		FLOW_OUT,
+		/** A whole time step, including its events */
+		STEP
+	}
+
+	private static final Timer[] TIMERS = Timer.values();
+
+	private final LatencyHistogram[] timers = new LatencyHistogram[TIMERS.length];
+	private final FlowWorker[]       workers;
+	private final long[]             workerBusy; //nanoseconds
+	private final long[]             workerWait; //nanoseconds
+	private final long[]             workerAllocated; //Bytes the worker threads had allocated when the metrics started
+	private final ThreadMXBean       threads = ManagementFactory.getThreadMXBean();
+	private long                     steps;
+	private double                   simulated; //seconds
+	private long                     cellsProcessed;
+	private long                     activeCells;
+	private long                     masterAllocated; //Bytes allocated by the threads calling update
+	private long                     start; //nanoseconds
+	private ObjectName               name;
+
+
+	/**
+	 * Creates the metrics for a WaterFlow
+	 * @param workers the workers of the WaterFlow
+	 */
+	FlowMetrics(FlowWorker[] workers) {
+		this.workers = workers;
+		this.workerBusy = new long[workers.length];
+		this.workerWait = new long[workers.length];
+		this.workerAllocated = new long[workers.length];
+		for(int i = 0; i < timers.length; i++) {
+			timers[i] = new LatencyHistogram();
+		}
+		reset();
+	}
+
+
+	/**
+	 * Makes the metrics available through the platform MBean server
+	 * @param name the name to register under, for example "flow:type=WaterFlow,name=farm1"
+	 * @throws IllegalArgumentException if the name is not valid or is already taken
+	 */
+	public synchronized void register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(name);
+			unregister();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.name = objectName;
+		}
+		catch(JMException e) {
+			throw new IllegalArgumentException("Could not register the metrics as " + name, e);
+		}
+	}
+
+
+	/** Removes the metrics from the platform MBean server, if they were registered */
+	public synchronized void unregister() {
+		if(name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch(JMException e) {
+			//Somebody else already unregistered it
+		}
+		name = null;
+	}
+
+
+	/**
+	 * Adds a sample to a timer. Only the thread running the model calls this.
+	 * @param timer the timer
+	 * @param nanos how long it took, in nanoseconds
+	 */
+	void record(Timer timer, long nanos) {
+		timers[timer.ordinal()].record(nanos);
+	}
+
+
+	/**
+	 * Counts a time step
+	 * @param seconds the simulated seconds that the step covered
+	 * @param activeCells the cells in the active columns during the step
+	 */
+	void stepTaken(double seconds, long activeCells) {
+		this.steps++;
+		this.simulated += seconds;
+		this.activeCells = activeCells;
+		this.cellsProcessed += activeCells;
+	}
+
+
+	/**
+	 * Adds up how long each worker worked and waited during a phase
+	 * @param end when the phase ended, from System.nanoTime()
+	 */
+	void phaseFinished(long end) {
+		for(int i = 0; i < workers.length; i++) {
+			workerBusy[i] += workers[i].getPhaseNanos();
+			workerWait[i] += end - workers[i].getFinishedAt();
+		}
+	}
+
+
+	/** @param bytes bytes allocated by the thread calling update during one call */
+	void addMasterAllocation(long bytes) {
+		masterAllocated += bytes;
+	}
+
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if the JVM can't tell. Doesn't allocate.
+	 */
+	long currentThreadAllocatedBytes() {
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+
+	/**
+	 * @param timer a timer
+	 * @return the histogram of the timer
+	 */
+	public LatencyHistogram getTimer(Timer timer) {
+		return timers[timer.ordinal()];
+	}
+
+
+	public long getSteps() {
+		return steps;
+	}
+
+
+	public double getStepsPerSecond() {
+		return steps / elapsedSeconds();
+	}
+
+
+	public double getSimulatedSecondsPerSecond() {
+		return simulated / elapsedSeconds();
+	}
+
+
+	public long getCellsProcessed() {
+		return cellsProcessed;
+	}
+
+
+	public long getActiveCells() {
+		return activeCells;
+	}
+
+
+	public double getAllocationRate() {
+		long allocated = workerAllocatedBytes();
+		if(allocated < 0) {
+			return -1;
+		}
+		return (allocated + masterAllocated) / elapsedSeconds();
+	}
+
+
+	public String[] getTimerNames() {
+		String[] names = new String[TIMERS.length];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = TIMERS[i].name();
+		}
+		return names;
+	}
+
+
+	public long[] getTimerCounts() {
+		long[] counts = new long[timers.length];
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] = timers[i].getCount();
+		}
+		return counts;
+	}
+
+
+	public double[] getTimerMeanMicros() {
+		double[] means = new double[timers.length];
+		for(int i = 0; i < means.length; i++) {
+			means[i] = timers[i].getMean() / 1000;
+		}
+		return means;
+	}
+
+
+	public double[] getTimerP50Micros() {
+		return percentiles(50);
+	}
+
+
+	public double[] getTimerP99Micros() {
+		return percentiles(99);
+	}
+
+
+	public double[] getTimerMaxMicros() {
+		double[] maxes = new double[timers.length];
+		for(int i = 0; i < maxes.length; i++) {
+			maxes[i] = timers[i].getMax() / 1000.0;
+		}
+		return maxes;
+	}
+
+
+	public double[] getWorkerBusyMillis() {
+		return millis(workerBusy);
+	}
+
+
+	public double[] getWorkerWaitMillis() {
+		return millis(workerWait);
+	}
+
+
+	public synchronized void reset() {
+		for(LatencyHistogram timer : timers) {
+			timer.reset();
+		}
+		for(int i = 0; i < workers.length; i++) {
+			workerBusy[i] = 0;
+			workerWait[i] = 0;
+			workerAllocated[i] = 0;
+		}
+		steps = 0;
+		simulated = 0;
+		cellsProcessed = 0;
+		activeCells = 0;
+		masterAllocated = 0;
+		start = System.nanoTime();
+
+		long[] allocated = new long[workers.length];
+		if(workerAllocatedBytes(allocated) >= 0) {
+			System.arraycopy(allocated, 0, workerAllocated, 0, allocated.length);
+		}
+	}
+
+
+	/** @return the bytes the worker threads have allocated since the metrics started, or -1 if the JVM can't tell */
+	private long workerAllocatedBytes() {
+		return workerAllocatedBytes(new long[workers.length]);
+	}
+
+
+	/**
+	 * @param allocated where the bytes allocated by each worker thread so far are stored
+	 * @return the bytes the worker threads have allocated since the metrics started, or -1 if the JVM can't tell
+	 */
+	private long workerAllocatedBytes(long[] allocated) {
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		long total = 0;
+		for(int i = 0; i < workers.length; i++) {
+			Thread thread = workers[i].getThread();
+			if(thread != null) { //Workers run inline on the thread calling update are counted with that thread
+				allocated[i] = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread.getId());
+				total += Math.max(0, allocated[i] - workerAllocated[i]);
+			}
+		}
+		return total;
+	}
+
+
+	/** @return the wall-clock seconds since the metrics started */
+	private double elapsedSeconds() {
+		return Math.max(1, System.nanoTime() - start) / 1e9;
+	}
+
+
+	/**
+	 * @param percentile the percentile to find, from 0 to 100
+	 * @return the percentile of each timer, in microseconds
+	 */
+	private double[] percentiles(double percentile) {
+		double[] values = new double[timers.length];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = timers[i].getPercentile(percentile) / 1000.0;
+		}
+		return values;
+	}
+
+
+	/**
+	 * @param nanos durations in nanoseconds
+	 * @return the durations in milliseconds
+	 */
+	private static double[] millis(long[] nanos) {
+		double[] millis = new double[nanos.length];
+		for(int i = 0; i < millis.length; i++) {
+			millis[i] = nanos[i] / 1e6;
+		}
+		return millis;
+	}
+
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("%d steps, %.1f steps/s, %d cells processed, %d active cells, %.0f bytes/s allocated%n",
+		                       steps, getStepsPerSecond(), cellsProcessed, activeCells, getAllocationRate()));
+		for(Timer timer : TIMERS) {
+			if(timers[timer.ordinal()].getCount() != 0) {
+				s.append(String.format("  %-10s %s%n", timer, timers[timer.ordinal()]));
+			}
+		}
+		double[] busy = getWorkerBusyMillis();
+		double[] wait = getWorkerWaitMillis();
+		for(int i = 0; i < workers.length; i++) {
+			s.append(String.format("  worker %d  busy %.1f ms, waiting %.1f ms%n", i, busy[i], wait[i]));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,52 @@
+package flow;
+
+/**
+ * The management interface of {@link FlowMetrics}. The per-timer attributes are arrays in the same order as
+ * {@link #getTimerNames()}, and the per-worker attributes are arrays with one entry per FlowWorker.
+ */
+public interface FlowMetricsMBean {
+	/** @return the number of time steps taken */
+	long getSteps();
+
+	/** @return the time steps taken per second of wall-clock time since the metrics were started */
+	double getStepsPerSecond();
+
+	/** @return the simulated seconds run per second of wall-clock time since the metrics were started */
+	double getSimulatedSecondsPerSecond();
+
+	/** @return the number of cells visited by the flux phases */
+	long getCellsProcessed();
+
+	/** @return the number of cells in active columns during the last time step */
+	long getActiveCells();
+
+	/** @return the bytes allocated per second by the threads running the model, or -1 if the JVM can't tell */
+	double getAllocationRate();
+
+	/** @return the names of the timers */
+	String[] getTimerNames();
+
+	/** @return the number of samples of each timer */
+	long[] getTimerCounts();
+
+	/** @return the average of each timer, in microseconds */
+	double[] getTimerMeanMicros();
+
+	/** @return the median of each timer, in microseconds */
+	double[] getTimerP50Micros();
+
+	/** @return the 99th percentile of each timer, in microseconds */
+	double[] getTimerP99Micros();
+
+	/** @return the longest sample of each timer, in microseconds */
+	double[] getTimerMaxMicros();
+
+	/** @return the time each worker spent running phases, in milliseconds */
+	double[] getWorkerBusyMillis();
+
+	/** @return the time each worker spent waiting for the other workers to finish a phase, in milliseconds */
+	double[] getWorkerWaitMillis();
+
+	/** Starts every metric over */
+	void reset();
+}
@@ -1,161 +1,543 @@
 package flow;
 
-import cell.Cell;
-import cell.Farm;
+import cell.GridStore;
 import cell.Plant;
-import cell.Point3D;
+import cell.Soil;
 
 /**
- * A FlowWorker is a thread used by WaterFlow in order to split up the ground water calculations
+ * A FlowWorker is run by WaterFlow in order to split up the ground water calculations. During each phase, every
+ * worker keeps taking tiles from its WaterFlow until there are none left.
  * @author Max Ottesen
  */
-public class FlowWorker extends Thread {
-	private boolean      calculate;
-	private boolean      kill;
-	private int          minX, maxX;
-	private int          minY, maxY;
-	private int          zCellCount;
-	private double       timeStep;
+public class FlowWorker implements Runnable {
+	//Soil properties indexed by Soil ordinal, so the calculations don't have to go through the enum for every cell
+	private static final double[] CONDUCTIVITY;
+	private static final double[] CAPACITY;
+	private static final double[] ADHESION;
+
+	static {
+		Soil[] soils = Soil.values();
+		CONDUCTIVITY = new double[soils.length];
+		CAPACITY = new double[soils.length];
+		ADHESION = new double[soils.length];
+		for(int s = 0; s < soils.length; s++) {
+			CONDUCTIVITY[s] = soils[s].getHydraulicConductivity();
+			CAPACITY[s] = soils[s].getWaterCapacity();
+			ADHESION[s] = soils[s].getWaterAdhesion();
+		}
+	}
+
+	private PhaseScheduler scheduler;
+	private int          xCellCount, yCellCount, zCellCount;
+	private int          strideY, strideZ; //Index distance between neighbors in the y and z directions
+	private double       timeStep; //Time step of the current phase
+	private double       flowScale; //Fraction of the calculated flows that happen in the current phase
+	private double       maxOutflowRatio; //Largest fraction of its water that a cell gave in the last flux phase
+	private double       appliedFlow; //Net flow this worker added onto the water volumes in the last phase
+	private double       plantUptake; //Water this worker's plants drank in the last phase
+	private long         phaseNanos; //How long the last phase took this worker
+	private long         finishedAt; //When this worker finished the last phase, from System.nanoTime()
+	private volatile Thread thread; //The thread running this worker, or null if it is run by the master
+	private double       cellSize;
 	private WaterFlow    m;
-	private Cell[][][]   grid;
-	private Double[][][] change;
-	private Double[][][] reservoirs;
+	private boolean[]    valid;
+	private double[]     height;
+	private double[]     water;
+	private double[]     waterNext; //Buffer the fused phase writes new water volumes into
+	private byte[]       soil;
+	private Plant[]      plant;
+	private double[]     change;
+	private double[]     flow;
+	private double[]     percentSaturation;
+	private double[]     hydraulicHead;
+	private double[][][] reservoirFlow;
+	private ActiveColumns active;
+	private double[]     heightAbove; //Running height of the saturated cells above each column's current cell
+	private RowKernel    kernel; //Calculates whole rows of flows at once, or null to go cell by cell
+	private GridStore    store;
 
 
 	/**
-	 * Creates a worker thread to do part of the water flow calculations
-	 * @param minX starting value of this thread's x range (inclusive)
-	 * @param maxX ending value of this thread's x range (exclusive)
-	 * @param minY starting value of this thread's y range (inclusive)
-	 * @param maxY ending value of this thread's y range (exclusive)
-	 * @param zCellCount the ending of this thread's z range (exclusive). Goes from [0, zCellCount)
+	 * Creates a worker to do part of the water flow calculations
 	 * @param master the WaterFlow object that this thread reports to
-	 * @param grid the Cell[][][] that this thread works with
-	 * @param change the Double[][][] that the calculation results are stored in
-	 * @param reservoirs the Double[][][] that cross-farm calculation results are stored in
-	 * @param timeStep the time step that will be used in the flow calculations
+	 * @param scheduler the scheduler that tells this worker which phase to run. May be null if the master calls
+	 *                  {@link #runPhase(PhaseScheduler.Phase)} itself
+	 * @param store the GridStore holding the cells that this thread works with
+	 * @param change the array that water added from outside of the flow calculations is stored in, indexed like store
+	 * @param flow the array that the net flow into each cell is stored in, indexed like store
+	 * @param percentSaturation the array that percent saturations are stored in, indexed like store
+	 * @param hydraulicHead the array that hydraulic heads are stored in, indexed like store
+	 * @param reservoirFlow the double[][][] that the flows out of the farm are stored in
+	 * @param active the columns that have to be visited in each time step
 	 */
-	public FlowWorker(int minX, int maxX, int minY, int maxY, int zCellCount, WaterFlow master, Cell[][][] grid,
-	                  Double[][][] change, Double[][][] reservoirs, double timeStep) {
-		this.minX = minX;
-		this.maxX = maxX;
-		this.minY = minY;
-		this.maxY = maxY;
-		this.grid = grid;
+	FlowWorker(WaterFlow master, PhaseScheduler scheduler, GridStore store, double[] change, double[] flow,
+	           double[] percentSaturation, double[] hydraulicHead, double[][][] reservoirFlow, ActiveColumns active) {
+		this.xCellCount = store.getXCount();
+		this.yCellCount = store.getYCount();
+		this.zCellCount = store.getZCount();
+		this.strideY = xCellCount;
+		this.strideZ = xCellCount * yCellCount;
+		this.valid = store.getValidMask();
+		this.height = store.getHeights();
+		this.store = store;
+		this.soil = store.getSoils();
+		this.plant = store.getPlants();
 		this.change = change;
-		this.reservoirs = reservoirs;
+		this.flow = flow;
+		this.percentSaturation = percentSaturation;
+		this.hydraulicHead = hydraulicHead;
+		this.reservoirFlow = reservoirFlow;
+		this.active = active;
+		this.heightAbove = new double[xCellCount * yCellCount];
 		this.m = master;
-		this.timeStep = timeStep;
-		this.calculate = false;
-		this.kill = false;
-		this.zCellCount = zCellCount;
+		this.scheduler = scheduler;
+		this.cellSize = store.getCellSize();
 	}
 
 
-	/** Starts this worker in a loop where it will wait until it's told to do calculations or until it is killed */
+	/** Runs whichever phase the scheduler hands out until the scheduler is shut down */
 	public void run() {
-		//Keep going until it's killed
-		while(!kill) {
-			//The master has to tell this thread to calculate before it will
-			while(!calculate) {
-				if(kill){return;}
-				try{Thread.sleep(1);}
-				catch(InterruptedException e){}
+		PhaseScheduler.Phase phase;
+		int seen = 0;
+		thread = Thread.currentThread();
+		scheduler.register();
+		while((phase = scheduler.awaitPhase(seen)) != null) {
+			seen = scheduler.generation();
+			try {
+				runPhase(phase);
+			}
+			catch(Throwable t) {
+				scheduler.fail(t);
+			}
+			scheduler.phaseDone();
+		}
+	}
+
+
+	/**
+	 * Runs the given phase on tiles taken from the master until there are none left
+	 * @param phase the phase to run
+	 */
+	void runPhase(PhaseScheduler.Phase phase) {
+		long start = System.nanoTime();
+		timeStep = m.getStepSize();
+		flowScale = m.getFlowScale();
+		water = store.getWaterVolumes();
+		waterNext = m.getNextWaterVolumes();
+		if(m.getConductivities() == null) {
+			kernel = null;
+		}
+		else if(kernel == null || kernel.isVector() != m.isVectorKernel()) {
+			kernel = RowKernel.create(m.isVectorKernel(), store, m.getConductivities(), m.getAdhesions(),
+			                          percentSaturation, hydraulicHead);
+		}
+		if(phase == PhaseScheduler.Phase.FLUX || phase == PhaseScheduler.Phase.FUSED) {
+			maxOutflowRatio = 0;
+		}
+		appliedFlow = 0;
+		plantUptake = 0;
+
+		Tile tile;
+		while((tile = m.nextTile(phase)) != null) {
+			switch(phase) {
+				case HEAD:  calculateHeads(tile); break;
+				case FLUX:  calculateFlows(tile); break;
+				case APPLY: applyChanges(tile);   break;
+				case FUSED: calculateFused(tile); break;
+			}
+		}
+		finishedAt = System.nanoTime();
+		phaseNanos = finishedAt - start;
+	}
+
+
+	/**
+	 * Calculates hydraulic heads/percent saturations of cells. Also handles plant water consumption. The tile must
+	 *  cover whole columns, since heads depend on every cell above. Columns whose water can't have changed since the
+	 *  last time step keep their old values.<p />
+	 * The hydraulic head of a cell is its own water height plus the heights of the fully saturated cells directly above
+	 *  it. The layers are visited from the top down, and each column carries the height of the saturated run above the
+	 *  current layer along, so a whole column costs O(z). A column's heads only depend on the column itself.
+	 * @param t the tile to calculate
+	 */
+	private void calculateHeads(Tile t) {
+		if(!active.any(t, true)) {
+			return;
+		}
+		boolean plantDay = m.isPlantDay();
+		boolean[] heads = active.heads;
+		boolean[] rows = active.headRows;
+		for(int j = t.minY; j < t.maxY; j++) {
+			for(int col = j * xCellCount + t.minX, end = j * xCellCount + t.maxX; col < end; col++) {
+				heightAbove[col] = 0;
 			}
+		}
+		for(int k = t.maxZ - 1; k >= t.minZ; k--) { //k's count down so that the hydraulic head calculations can be
+		                                           // done in the same loop as the percent saturations
+			for(int j = t.minY; j < t.maxY; j++) {
+				if(!rows[j]) {
+					continue;
+				}
+				int c = (k * yCellCount + j) * xCellCount + t.minX;
+				for(int i = t.minX, col = j * xCellCount + t.minX; i < t.maxX; i++, c++, col++) {
+					if(!heads[col]) {
+						continue;
+					}
+					if(!valid[c]) {
+						percentSaturation[c] = -1;
+						hydraulicHead[c] = -1;
+						heightAbove[col] = 0;
+						continue;
+					}
+
+					double saturation = water[c] / CAPACITY[soil[c]];
+					percentSaturation[c] = saturation;
+					hydraulicHead[c] = saturation * height[c] + heightAbove[col];
+					//Only a fully saturated cell adds to the head of the cells below it
+					heightAbove[col] = saturation > .99 ? heightAbove[col] + height[c] : 0;
 
-			//Calculates hydraulic heads/percent saturations of cells. Also handles plant water consumption
-			synchronized(this) {
-				for(int k = zCellCount - 1; k >= 0; k--) { //k's count down so that the hydraulic head calculations can be
-				                                           // done in the same loop as the percent saturations
-					for(int j = minY; j < maxY; j++) {
-						for(int i = minX; i < maxX; i++) {
-							if(grid[i][j][k] == null) {
-								m.setPercentSaturation(i, j, k, new Double(-1));
-
-								m.setHydraulicHead(i, j, k, new Double(-1));
-								continue;
-							}
-
-							m.setPercentSaturation(i, j, k, new Double(percentSaturation(grid[i][j][k])));
-							m.setHydraulicHead(i, j, k, new Double(hydraulicHead(grid[i][j][k])));
-
-							Plant plant = grid[i][j][k].getPlant();
-							//If the simulation is within 1 time step of a day, there is a plant, and it is alive
-							if(plant != null && plant.isDeadOrAlive() && (m.getSimulatedTime() % 86400) < timeStep && m.getSimulatedTime() != 0) {
-								handlePlant(plant, i, j, k);
-							}
-
-						}
+					Plant p = plant[c];
+					//If a day has passed, there is a plant, and it is alive
+					if(p != null && p.isDeadOrAlive() && plantDay) {
+						handlePlant(p, c, k);
 					}
+
 				}
+			}
+		}
+	}
 
-				//Sets itself up so the master thread has to tell it to start before it does more calculations
-				this.calculate = false;
-				m.workerDone();
+
+	/**
+	 * Flows water between all cells synchronously. Only active columns are visited. The net flows are stored
+	 *  separately from change so that WaterFlow can still scale them down before they are applied.
+	 * @param t the tile to calculate
+	 */
+	private void calculateFlows(Tile t) {
+		if(!active.any(t, false)) {
+			return;
+		}
+		boolean[] columns = active.active;
+		boolean[] rows = active.activeRows;
+		for(int k = t.minZ; k < t.maxZ; k++) {
+			for(int j = t.minY; j < t.maxY; j++) {
+				if(!rows[j]) {
+					continue;
+				}
+				int c = (k * yCellCount + j) * xCellCount + t.minX;
+				if(kernel != null) {
+					rowNetFlows(c, t.minX, t.maxX, j, k);
+				}
+				for(int i = t.minX, col = j * xCellCount + t.minX; i < t.maxX; i++, c++, col++) {
+					if(!columns[col] || !valid[c]) {
+						continue;
+					}
+					flow[c] = kernel != null ? kernel.net[i - t.minX] : netFlow(c, i, j, k);
+				}
+			}
+		}
+	}
 
 
-				while(!calculate) {
-					if(kill){return;}
-					try{Thread.sleep(1);}
-					catch(InterruptedException e){}
+	/**
+	 * Updates water volume of cells in the active columns with their change and the scaled flow, clears their change,
+	 *  and records which columns will still be able to give water in the next time step
+	 * @param t the tile to update
+	 */
+	private void applyChanges(Tile t) {
+		if(!active.any(t, false)) {
+			return;
+		}
+		boolean[] columns = active.active;
+		boolean[] rows = active.activeRows;
+		for(int k = t.minZ; k < t.maxZ; k++) {
+			for(int j = t.minY; j < t.maxY; j++) {
+				if(!rows[j]) {
+					continue;
+				}
+				int c = (k * yCellCount + j) * xCellCount + t.minX;
+				for(int i = t.minX, col = j * xCellCount + t.minX; i < t.maxX; i++, c++, col++) {
+					if(!columns[col] || !valid[c]) {
+						continue;
+					}
+					double moved = flowScale * flow[c];
+					water[c] += change[c] + moved;
+					appliedFlow += moved;
+					change[c] = 0;
+					if(canGive(water[c], soil[c])) {
+						active.markWetNext(col);
+					}
 				}
+			}
+		}
+	}
 
-				//Flows water between all cells synchronously
-				for(int k = 0; k < zCellCount; k++) {
-					for(int j = minY; j < maxY; j++) {
-						for(int i = minX; i < maxX; i++) {
-							if(grid[i][j][k] == null || grid[i][j][k].getWaterVolume() <= 0) {
-								continue;
-							}
 
-							if(i != 0) flowWaterSide(grid[i][j][k], grid[i - 1][j][k]);
-							else flowToReservoir(grid[i][j][k], 3, j, k); //Flow to West reservoir
+	/**
+	 * Does the work of the flux and apply phases in one sweep. The new water volumes are written into waterNext, which
+	 *  WaterFlow swaps in afterwards, since the flows of the neighbouring cells still need the old volumes. Columns that
+	 *  were active in the previous time step but not in this one are copied over, so that waterNext holds the right
+	 *  volume for every column that has changed since it was last the current buffer.
+	 * @param t the tile to calculate
+	 */
+	private void calculateFused(Tile t) {
+		if(!active.any(t, true)) {
+			return;
+		}
+		boolean[] columns = active.active;
+		boolean[] visit = active.heads;
+		boolean[] rows = active.headRows;
+		for(int k = t.minZ; k < t.maxZ; k++) {
+			for(int j = t.minY; j < t.maxY; j++) {
+				if(!rows[j]) {
+					continue;
+				}
+				int c = (k * yCellCount + j) * xCellCount + t.minX;
+				if(kernel != null) {
+					rowNetFlows(c, t.minX, t.maxX, j, k);
+				}
+				for(int i = t.minX, col = j * xCellCount + t.minX; i < t.maxX; i++, c++, col++) {
+					if(!visit[col] || !valid[c]) {
+						continue;
+					}
+					if(!columns[col]) {
+						waterNext[c] = water[c];
+						continue;
+					}
+					double net = kernel != null ? kernel.net[i - t.minX] : netFlow(c, i, j, k);
+					double volume = water[c] + (change[c] + net);
+					appliedFlow += net;
+					waterNext[c] = volume;
+					if(change[c] != 0) {
+						change[c] = 0;
+					}
+					if(canGive(volume, soil[c])) {
+						active.markWetNext(col);
+					}
+				}
+			}
+		}
+	}
 
 
-							if(i != Farm.xCellCount - 1) flowWaterSide(grid[i][j][k], grid[i + 1][j][k]);
-							else flowToReservoir(grid[i][j][k], 1, j, k); //Flow to East reservoir
+	/**
+	 * Works out the flow across each face of a cell, both the water it gives and the water it receives. Every cell
+	 *  only ever writes its own entry, and a face between two threads' tiles is calculated by both of them from the
+	 *  same values, so the two sides always agree and no locking is needed. Also keeps track of the largest fraction
+	 *  of its water that a cell gives.
+	 * @param c the index of the cell
+	 * @param i the x coordinate of the cell
+	 * @param j the y coordinate of the cell
+	 * @param k the z coordinate of the cell
+	 * @return the net amount of water flowing into the cell
+	 */
+	private double netFlow(int c, int i, int j, int k) {
+		boolean wet = water[c] > 0;
+		double net = 0;
+		double out = 0; //Water given by this cell
+		double f;
+		int n;
+
+		if(i != 0) {
+			n = c - 1;
+			if(wet) { f = flowWaterSide(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterSide(n, c);
+		}
+		else if(wet) {
+			f = flowToReservoir(c, 3, j, k); //Flow to West reservoir
+			net -= f;
+			out += f;
+		}
 
+		if(i != xCellCount - 1) {
+			n = c + 1;
+			if(wet) { f = flowWaterSide(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterSide(n, c);
+		}
+		else if(wet) {
+			f = flowToReservoir(c, 1, j, k); //Flow to East reservoir
+			net -= f;
+			out += f;
+		}
 
-							if(j != 0) flowWaterSide(grid[i][j][k], grid[i][j - 1][k]);
-							else flowToReservoir(grid[i][j][k], 2, i, k); //Flow to South reservoir
+		if(j != 0) {
+			n = c - strideY;
+			if(wet) { f = flowWaterSide(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterSide(n, c);
+		}
+		else if(wet) {
+			f = flowToReservoir(c, 2, i, k); //Flow to South reservoir
+			net -= f;
+			out += f;
+		}
 
+		if(j != yCellCount - 1) {
+			n = c + strideY;
+			if(wet) { f = flowWaterSide(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterSide(n, c);
+		}
+		else if(wet) {
+			f = flowToReservoir(c, 0, i, k); //Flow to North reservoir
+			net -= f;
+			out += f;
+		}
 
-							if(j != Farm.yCellCount - 1) flowWaterSide(grid[i][j][k], grid[i][j + 1][k]);
-							else flowToReservoir(grid[i][j][k], 0, i, k); //Flow to North reservoir
+		//Water flows down from the cell above and up from the cell below
+		if(k != 0) {
+			n = c - strideZ;
+			if(wet) { f = flowWaterSide(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterUp(n, c);
+		}
+		if(k != zCellCount - 1) {
+			n = c + strideZ;
+			if(wet) { f = flowWaterUp(c, n); net -= f; out += f; }
+			if(water[n] > 0) net += flowWaterSide(n, c);
+		}
 
+		if(out > 0 && out / water[c] > maxOutflowRatio) {
+			maxOutflowRatio = out / water[c];
+		}
+		return net;
+	}
 
-							if(k != 0) flowWaterSide(grid[i][j][k], grid[i][j][k - 1]);
-							if(k != zCellCount - 1) flowWaterUp(grid[i][j][k], grid[i][j][k + 1]);
-						}
-					}
-				}
 
-				//Sets itself up so the master thread has to tell it to start before it does more calculations
-				this.calculate = false;
-				m.workerDone();
+	/**
+	 * Works out the net flow into every active cell of a row with the row kernel, in the same order as
+	 *  {@link #netFlow(int, int, int, int)} so that the results are identical. The results are left in kernel.net.
+	 * @param c the index of the first cell of the row
+	 * @param minX the x coordinate of the first cell of the row (inclusive)
+	 * @param maxX the x coordinate that the row ends at (exclusive)
+	 * @param j the y coordinate of the row
+	 * @param k the z coordinate of the row
+	 */
+	private void rowNetFlows(int c, int minX, int maxX, int j, int k) {
+		kernel.fill(water, timeStep, c, minX, maxX, j, k);
+		boolean[] columns = active.active;
+		for(int i = minX, t = 0, col = j * xCellCount + minX; i < maxX; i++, t++, c++, col++) {
+			if(!columns[col] || !valid[c]) {
+				continue;
+			}
+			//The kernel already gives 0 for cells without water, so only the reservoirs need to check
+			boolean wet = water[c] > 0;
+			double net = 0;
+			double out = 0;
+			double f;
+
+			if(i != 0) {
+				f = kernel.leftward[t]; net -= f; out += f;
+				net += kernel.rightward[t];
+			}
+			else if(wet) {
+				f = flowToReservoir(c, 3, j, k); //Flow to West reservoir
+				net -= f;
+				out += f;
+			}
 
+			if(i != xCellCount - 1) {
+				f = kernel.rightward[t + 1]; net -= f; out += f;
+				net += kernel.leftward[t + 1];
+			}
+			else if(wet) {
+				f = flowToReservoir(c, 1, j, k); //Flow to East reservoir
+				net -= f;
+				out += f;
+			}
 
-				while(!calculate) {
-					if(kill){return;}
-					try{Thread.sleep(1);}
-					catch(InterruptedException e){}
-				}
+			if(j != 0) {
+				f = kernel.southOut[t]; net -= f; out += f;
+				net += kernel.southIn[t];
+			}
+			else if(wet) {
+				f = flowToReservoir(c, 2, i, k); //Flow to South reservoir
+				net -= f;
+				out += f;
+			}
 
-				//Updates water volume of cells
-				for(int k = 0; k < zCellCount; k++) {
-					for(int j = minY; j < maxY; j++) {
-						for(int i = minX; i < maxX; i++) {
-							if(grid[i][j][k] == null) {
-								continue;
-							}
-							grid[i][j][k].setWaterVolume(grid[i][j][k].getWaterVolume() + change[i][j][k]);
-						}
-					}
-				}
-				//Sets itself up so the master thread has to tell it to start before it does more calculations
-				this.calculate = false;
-				m.workerDone();
+			if(j != yCellCount - 1) {
+				f = kernel.northOut[t]; net -= f; out += f;
+				net += kernel.northIn[t];
+			}
+			else if(wet) {
+				f = flowToReservoir(c, 0, i, k); //Flow to North reservoir
+				net -= f;
+				out += f;
 			}
+
+			if(k != 0) {
+				f = kernel.downOut[t]; net -= f; out += f;
+				net += kernel.downIn[t];
+			}
+			if(k != zCellCount - 1) {
+				f = kernel.upOut[t]; net -= f; out += f;
+				net += kernel.upIn[t];
+			}
+
+			if(out > 0 && out / water[c] > maxOutflowRatio) {
+				maxOutflowRatio = out / water[c];
+			}
+			kernel.net[t] = net;
+		}
+	}
+
+
+	/** @return how long the last phase took this worker, in nanoseconds */
+	long getPhaseNanos() {
+		return phaseNanos;
+	}
+
+
+	/** @return when this worker finished the last phase, from System.nanoTime() */
+	long getFinishedAt() {
+		return finishedAt;
+	}
+
+
+	/** @return the thread running this worker, or null if the master runs it */
+	Thread getThread() {
+		return thread;
+	}
+
+
+	/** @return the net flow that this worker added onto the water volumes during the last phase */
+	double getAppliedFlow() {
+		return appliedFlow;
+	}
+
+
+	/** @return the water that this worker's plants drank during the last phase */
+	double getPlantUptake() {
+		return plantUptake;
+	}
+
+
+	/** @return the largest fraction of its water that any cell gave during the last flux phase */
+	double getMaxOutflowRatio() {
+		return maxOutflowRatio;
+	}
+
+
+	/**
+	 * @param water the water in a cell
+	 * @param soil the soil ordinal of the cell
+	 * @return true if the cell is saturated enough for water to flow out of it
+	 */
+	static boolean canGive(double water, byte soil) {
+		return water / CAPACITY[soil] > ADHESION[soil];
+	}
+
+
+	/**
+	 * Looks up the soil properties the row kernel needs for every cell
+	 * @param soil the soil ordinal of each cell
+	 * @param valid the validity mask of the cells. Air gets 0 for everything
+	 * @param conductivity where the hydraulic conductivity of each cell is stored
+	 * @param adhesion where the water adhesion of each cell is stored
+	 */
+	static void soilProperties(byte[] soil, boolean[] valid, double[] conductivity, double[] adhesion) {
+		for(int c = 0; c < soil.length; c++) {
+			boolean known = valid[c] && soil[c] != GridStore.NO_SOIL;
+			conductivity[c] = known ? CONDUCTIVITY[soil[c]] : 0;
+			adhesion[c] = known ? ADHESION[soil[c]] : 0;
 		}
 	}
 
@@ -163,239 +545,147 @@ public class FlowWorker extends Thread {
 	/**
 	 * Calculates the amount of water that should flow from one cell to another. This
 	 *  should not be used to calculate water flowing upward!
-	 * @param cellI the cell to flow water from
-	 * @param cellX the cell to flow water to
+	 * @param i the index of the cell to flow water from
+	 * @param x the index of the cell to flow water to
+	 * @return the amount of water that flows from cell i to cell x
 	 */
-	private void flowWaterSide(Cell cellI, Cell cellX) {
-		if(cellX == null) {
-			return;
+	private double flowWaterSide(int i, int x) {
+		if(!valid[x]) {
+			return 0;
 		}
-		Point3D ci = cellI.getCoordinate();
-		Point3D cx = cellX.getCoordinate();
 
 		//The saturation of the giving cell
-		double iSatur = m.getPercentSaturation(ci.x, ci.y, ci.z);
+		double iSatur = percentSaturation[i];
 
 		//Only do calculations if...
 		//Percent saturation is greater than percent adhesion
-		if(iSatur <= cellI.getSoil().getWaterAdhesion()) {
-			return;
+		if(iSatur <= ADHESION[soil[i]]) {
+			return 0;
 		}
 		//The hydraulic head of the cell is greater than the cell its flowing to
-		if(m.getHydraulicHead(ci.x, ci.y, ci.z) <= m.getHydraulicHead(cx.x, cx.y, cx.z)) {
-			return;
+		if(hydraulicHead[i] <= hydraulicHead[x]) {
+			return 0;
 		}
 		//The cell being flowed to isn't full
-		if(m.getPercentSaturation(cx.x, cx.y, cx.z) >= .99) {
-			return;
+		if(percentSaturation[x] >= .99) {
+			return 0;
 		}
 
 		//The average hydraulic conductivity
-		double K = (cellI.getSoil().getHydraulicConductivity() + cellX.getSoil().getHydraulicConductivity()) / 2;
+		double K = (CONDUCTIVITY[soil[i]] + CONDUCTIVITY[soil[x]]) / 2;
 		//The area of the face of the cell being flowed from
-		double A = cellI.getHeight() * Cell.getCellSize();
-		double min = Math.min(1, (m.getHydraulicHead(ci.x, ci.y, ci.z) - m.getHydraulicHead(cx.x, cx.y, cx.z)));
-
-		double flowAmount = K * A * min * timeStep / Cell.getCellSize();
+		double A = height[i] * cellSize;
+		double min = Math.min(1, (hydraulicHead[i] - hydraulicHead[x]));
 
-		synchronized(change[cx.x][cx.y][cx.z]) {
-			synchronized(change[ci.x][ci.y][ci.z]) {
-				change[ci.x][ci.y][ci.z] -= flowAmount;
-				change[cx.x][cx.y][cx.z] += flowAmount;
-			}
-		}
+		return K * A * min * timeStep / cellSize;
 	}
 
 
 	/**
 	 * Calculates the amount of water that should flow from one cell to another. This
 	 *  should only be used for water flowing upwards!
-	 * @param cellI the cell to flow water from
-	 * @param cellX the cell to flow water to
+	 * @param i the index of the cell to flow water from
+	 * @param x the index of the cell to flow water to
+	 * @return the amount of water that flows from cell i to cell x
 	 */
-	private void flowWaterUp(Cell cellI, Cell cellX) {
-		if(cellX == null) {
-			return;
+	private double flowWaterUp(int i, int x) {
+		if(!valid[x]) {
+			return 0;
 		}
-		Point3D ci = cellI.getCoordinate();
-		Point3D cx = cellX.getCoordinate();
 
 		//The percent saturations of each cell
-		double iSatur = m.getPercentSaturation(ci.x, ci.y, ci.z);
-		double xSatur = m.getPercentSaturation(cx.x, cx.y, cx.z);
+		double iSatur = percentSaturation[i];
+		double xSatur = percentSaturation[x];
 
 		//Only do calculations if...
 		//Percent saturation is greater than percent adhesion in giving cell
-		if(iSatur <= cellI.getSoil().getWaterAdhesion()) {
-			return;
+		if(iSatur <= ADHESION[soil[i]]) {
+			return 0;
 		}
 		//Percent saturation is less than percent adhesion in receiving cell
-		if(xSatur > cellX.getSoil().getWaterAdhesion()) {
-			return;
+		if(xSatur > ADHESION[soil[x]]) {
+			return 0;
 		}
 		//Cell i is more saturated than cell x
 		if(iSatur <= xSatur) {
-			return;
+			return 0;
 		}
 
 		//The average hydraulic conductivity
-		double K = (cellI.getSoil().getHydraulicConductivity() + cellX.getSoil().getHydraulicConductivity()) / 2;
+		double K = (CONDUCTIVITY[soil[i]] + CONDUCTIVITY[soil[x]]) / 2;
 		//The area of the face of the cell being flowed from
-		double A = Cell.getCellSize() * cellI.getHeight();
-		double satDif = (iSatur - xSatur) / Cell.getCellSize();
+		double A = cellSize * height[i];
+		double satDif = (iSatur - xSatur) / cellSize;
 
-		double flowAmount = K * A * satDif * timeStep;
-
-		synchronized(change[cx.x][cx.y][cx.z]) {
-			synchronized(change[ci.x][ci.y][ci.z]) {
-				change[ci.x][ci.y][ci.z] -= flowAmount;
-				change[cx.x][cx.y][cx.z] += flowAmount;
-			}
-		}
+		return K * A * satDif * timeStep;
 	}
 
 
 	/**
-	 * Calculates the amount of water that should flow out of the edge of the farm
-	 * @param cell the cell that water is flowing from
+	 * Calculates the amount of water that should flow out of the edge of the farm and records it for the reservoir.
+	 *  Every reservoir entry is only ever written to by the one cell next to it, and a cell belongs to one tile.
+	 * @param c the index of the cell that water is flowing from
 	 * @param x the x coordinate of the reservoir to flow into
 	 * @param y the y coordinate of the reservoir to flow into
 	 * @param z the Z coordinate of the reservoir to flow into
+	 * @return the amount of water that flows out of the cell
 	 */
-	private void flowToReservoir(Cell cell, int x, int y, int z) {
-		Point3D p = cell.getCoordinate();
-		double iSatur = m.getPercentSaturation(p.x, p.y, p.z);
+	private double flowToReservoir(int c, int x, int y, int z) {
+		double iSatur = percentSaturation[c];
 
 		//Only do calculation if percent saturation is greater than the percent adhesion of the giving cell
-		if(iSatur <= cell.getSoil().getWaterAdhesion()) {
-			return;
+		if(iSatur <= ADHESION[soil[c]]) {
+			return 0;
 		}
 
-		double K = cell.getSoil().getHydraulicConductivity();
-		double A = Cell.getCellSize() * cell.getHeight();
-		double min = Math.min(1, m.getHydraulicHead(p.x, p.y, p.z)/Cell.getCellSize());
+		double K = CONDUCTIVITY[soil[c]];
+		double A = cellSize * height[c];
+		double min = Math.min(1, hydraulicHead[c]/cellSize);
 
 		double flowAmount = K * A * min * timeStep / 10000;
 
-		synchronized(reservoirs[x][y][z]) {
-			synchronized(change[p.x][p.y][p.z]) {
-				change[p.x][p.y][p.z] -= flowAmount;
-				reservoirs[x][y][z] += flowAmount;
-			}
-		}
-	}
-
-
-	/**
-	 * Computes the hydraulic head of the given cell
-	 * @param c the cell being considered
-	 * @return the hydraulic head of the given cell
-	 */
-	private double hydraulicHead(Cell c) {
-		double height = c.getHeight();
-		int x = c.getCoordinate().x;
-		int y = c.getCoordinate().y;
-		int z = c.getCoordinate().z;
-		double saturation = m.getPercentSaturation(x, y, z);
-
-		//Adds the heights of all the cells above the given cell that are fully saturated
-		double heightAbove = 0;
-		double s;
-		for(int i = 1; i < zCellCount; i++) {
-			s = m.getPercentSaturation(x, y, z + i);
-			if(s > .99) {
-				heightAbove += grid[x][y][z + i].getHeight();
-			}
-			else {
-				break;
-			}
-		}
-		//returns the hydraulic head
-		return saturation * height + heightAbove;
-	}
-
-
-	/**
-	 * Computes the percent saturation of the given cell
-	 * @param c the cell being considered
-	 * @return the percent saturation of the given cell
-	 */
-	private double percentSaturation(Cell c) {
-		return c.getWaterVolume() / c.getSoil().getWaterCapacity();
-	}
-
-
-	/** @return the total amount of water in this worker's system */
-	public double getTotalWater() {
-		synchronized(this) {
-			double totalWater = 0;
-			//k's count down so that the hydraulic head calculations can be done in the same loop as the percent saturations
-			for(int k = 0; k < zCellCount; k++) {
-				for(int j = minY; j < maxY; j++) {
-					for(int i = minX; i < maxX; i++) {
-						if(grid[i][j][k] == null) {
-							continue;
-						}
-						totalWater += grid[i][j][k].getWaterVolume();
-					}
-				}
-			}
-			return totalWater;
-		}
+		reservoirFlow[x][y][z] += flowAmount;
+		return flowAmount;
 	}
 
 
 	/**
 	 * Takes a plant and removes the water it will use from the system
-	 * @param plant the plant that will be handled
-	 * @param i its x coordinate
-	 * @param j its y coordinate
+	 * @param p the plant that will be handled
+	 * @param c the index of its cell
 	 * @param k its z coordinate
 	 */
-	private void handlePlant(Plant plant, int i, int j, int k) {
+	private void handlePlant(Plant p, int c, int k) {
 		if(!WaterFlow.includePlants) {
 			return;
 		}
 
 		double availableWater = 0;
-		int depth = plant.getMatureDepth();
+		int depth = p.getMatureDepth();
 		int z = k;
-		for(int x = depth; x > 0; x -= grid[i][j][z].getHeight()) {
-		  availableWater += grid[i][j][z--].getWaterVolume();
+		for(int x = depth, n = c; x > 0 && z >= 0; x -= height[n], n -= strideZ, z--) {
+			availableWater += water[n];
 		}
-		plant.grow(availableWater);
-		double toDrink = plant.getWaterConsumption(); //Amount of water that still needs to be removed
+		p.grow(availableWater);
+		double toDrink = p.getWaterConsumption(); //Amount of water that still needs to be removed
 		z = k;
-		for(int x = depth; x > 0; x -= grid[i][j][z].getHeight()) {
-		  if(toDrink == 0) {
-		    break;
-		  }
-			Cell c = grid[i][j][z];
-			
-			if(c.getWaterVolume() < toDrink) {
-				synchronized(change[i][j][z--]) {
-					change[i][j][z] -= c.getWaterVolume();
-				}
-				toDrink -= c.getWaterVolume();
+		for(int x = depth, n = c; x > 0 && z >= 0; x -= height[n], n -= strideZ, z--) {
+			if(toDrink == 0) {
+				break;
+			}
+
+			//Plant handling is done before any flows are calculated, and a column belongs to only one tile
+			active.markActive(c % strideZ);
+			if(water[n] < toDrink) {
+				change[n] -= water[n];
+				plantUptake += water[n];
+				toDrink -= water[n];
 			}
 			else {
-				synchronized(change[i][j][z--]) {
-					change[i][j][z] -= toDrink;
-				}
+				change[n] -= toDrink;
+				plantUptake += toDrink;
 				toDrink = 0;
 			}
 		}
 	}
-
-
-	/** Lets this thread now that it's OK to start doing its calculations */
-	public void startCalculations() {
-		this.calculate = true;
-	}
-
-
-	/** Kills this thread by letting its run() loop end */
-	public void kill() {
-		this.kill = true;
-	}
 }
@@ -0,0 +1,119 @@
+package flow;
+
+/**
+ * A LatencyHistogram counts how long something took in buckets that grow exponentially, four to every power of two,
+ * so any duration from a nanosecond to centuries is kept to within 25% without storing the samples. Recording is a few
+ * arithmetic operations and never allocates, so it can be done every time step.<p />
+ * Only one thread may record. Other threads may read at any time, but may see a sample that is only partly recorded.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 4; //Buckets per power of two
+
+	private final long[] buckets = new long[64 * SUB_BUCKETS];
+	private long         count;
+	private long         total; //nanoseconds
+	private long         max; //nanoseconds
+
+
+	/**
+	 * Adds a sample
+	 * @param nanos how long it took, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		buckets[bucket(nanos)]++;
+		count++;
+		total += nanos;
+		if(nanos > max) {
+			max = nanos;
+		}
+	}
+
+
+	/** Forgets every sample */
+	public void reset() {
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+
+	/** @return the number of samples */
+	public long getCount() {
+		return count;
+	}
+
+
+	/** @return the sum of the samples, in nanoseconds */
+	public long getTotal() {
+		return total;
+	}
+
+
+	/** @return the average sample in nanoseconds, or 0 if there are none */
+	public double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+
+	/** @return the largest sample, in nanoseconds */
+	public long getMax() {
+		return max;
+	}
+
+
+	/**
+	 * @param percentile the percentile to find, from 0 to 100
+	 * @return the upper bound of the bucket holding the given percentile in nanoseconds, or 0 if there are no samples
+	 */
+	public long getPercentile(double percentile) {
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if(seen >= rank && seen > 0) {
+				return Math.min(max, upperBound(i));
+			}
+		}
+		return max;
+	}
+
+
+	/**
+	 * @param nanos a duration
+	 * @return the bucket that the duration is counted in
+	 */
+	private static int bucket(long nanos) {
+		if(nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos); //Position of the highest bit, at least 2
+		int fraction = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1); //The two bits after the highest one
+		return (exponent - 1) * SUB_BUCKETS + fraction;
+	}
+
+
+	/**
+	 * @param bucket a bucket
+	 * @return the longest duration counted in the bucket
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + 1;
+		long fraction = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + fraction + 1) << (exponent - 2)) - 1;
+	}
+
+
+	public String toString() {
+		return String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", count, getMean() / 1000,
+		                     getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, max / 1000.0);
+	}
+}
@@ -0,0 +1,143 @@
+package flow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PhaseScheduler lines up the WaterFlow master thread and its FlowWorkers at the start and the end of every phase
+ * of a time step. Workers are parked instead of polling, so a phase starts as soon as the master asks for it and the
+ * master wakes up as soon as the last worker is done. Threads are parked and unparked directly rather than through a
+ * CyclicBarrier, whose lock queues allocate a node every time a thread waits, so running a phase creates no garbage.
+ */
+class PhaseScheduler {
+	/** The phases of one time step, in the order they are run */
+	enum Phase {
+		/** Percent saturation, hydraulic head and plant water consumption */
+		HEAD,
+		/** Flows between cells and into the reservoirs */
+		FLUX,
+		/** Adding the flows onto the water volumes */
+		APPLY,
+		/** FLUX and APPLY in one sweep, writing the new water volumes into a second buffer */
+		FUSED
+	}
+
+	private final int                          workers;
+	private final AtomicReferenceArray<Thread> threads; //Workers that have registered
+	private final AtomicInteger                registered = new AtomicInteger();
+	private final AtomicInteger                pending = new AtomicInteger(); //Workers still running the phase
+	private volatile int                       generation; //Goes up by one every time a phase starts
+	private volatile Thread                    master;
+	private volatile Phase                     phase;
+	private volatile boolean                   shutdown;
+	private volatile boolean                   broken; //True once a thread gave up waiting because it was interrupted
+	private volatile Throwable                 failure;
+
+
+	/**
+	 * Creates a scheduler for a master thread and the given number of workers
+	 * @param workers the number of worker threads that will call {@link #awaitPhase(int)}
+	 */
+	PhaseScheduler(int workers) {
+		this.workers = workers;
+		this.threads = new AtomicReferenceArray<Thread>(workers);
+	}
+
+
+	/**
+	 * Runs one phase on all the workers and returns once every worker has finished it. Only the master calls this.
+	 * @param phase the phase to run
+	 */
+	void runPhase(Phase phase) {
+		if(broken) {
+			throw new IllegalStateException("The phase scheduler was broken by an interrupt", failure);
+		}
+		this.phase = phase;
+		this.master = Thread.currentThread();
+		pending.set(workers);
+		generation++; //Only the master writes to generation
+		wakeWorkers();
+
+		while(pending.get() != 0 && !broken) {
+			LockSupport.park(this);
+			if(Thread.currentThread().isInterrupted()) {
+				broken = true;
+				throw new IllegalStateException("Interrupted while waiting for the " + phase + " phase");
+			}
+		}
+
+		if(failure != null) {
+			throw new IllegalStateException("A worker failed during the " + phase + " phase", failure);
+		}
+	}
+
+
+	/**
+	 * Registers a worker so that it gets woken up when a phase starts. Every worker calls this once before it first
+	 *  calls {@link #awaitPhase(int)}.
+	 */
+	void register() {
+		threads.set(registered.getAndIncrement(), Thread.currentThread());
+	}
+
+
+	/**
+	 * Blocks a worker until the master starts the next phase. The master can't start another phase until this one
+	 *  has called {@link #phaseDone()}, so {@link #generation()} still tells the phase apart once this returns.
+	 * @param seen the generation of the last phase this worker ran, 0 before the first one
+	 * @return the phase to run, or null if the scheduler has been shut down or the worker was interrupted
+	 */
+	Phase awaitPhase(int seen) {
+		while(generation == seen && !shutdown) {
+			LockSupport.park(this);
+			if(Thread.currentThread().isInterrupted()) {
+				fail(new IllegalStateException("A worker was interrupted while waiting for a phase"));
+				broken = true;
+				LockSupport.unpark(master);
+				return null;
+			}
+		}
+		return shutdown ? null : phase;
+	}
+
+
+	/** @return the generation of the phase that was started last */
+	int generation() {
+		return generation;
+	}
+
+
+	/** Tells the master that this worker has finished the current phase */
+	void phaseDone() {
+		if(pending.decrementAndGet() == 0) {
+			LockSupport.unpark(master);
+		}
+	}
+
+
+	/**
+	 * Records an exception thrown by a worker so the master can report it at the end of the phase
+	 * @param t the exception
+	 */
+	void fail(Throwable t) {
+		if(failure == null) {
+			failure = t;
+		}
+	}
+
+
+	/** Wakes up every waiting worker and tells them to stop. Only the master calls this. */
+	void shutdown() {
+		shutdown = true;
+		wakeWorkers();
+	}
+
+
+	/** Unparks every worker that has started waiting. Workers that start waiting later see the new state first. */
+	private void wakeWorkers() {
+		for(int i = 0, count = registered.get(); i < count; i++) {
+			LockSupport.unpark(threads.get(i));
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package flow;
+
+import cell.Farm;
+import server.FarmServer;
+import server.WireCodec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Region is a mosaic of farms too large for one process, split over several worker processes on this machine. It
+ * starts a {@link FarmServer}, then one Java process per worker running {@link RegionWorker}. Each worker gets a
+ * block of whole columns of farms, so the farms it runs are next to each other. The workers exchange the water that
+ * flows off the edges of their farms through the server every few time steps, the way a {@link World} exchanges
+ * between threads.<p />
+ * This is the local launcher. Workers on other machines can be started by hand with the same arguments, pointed at
+ * the server's address.
+ */
+public class Region {
+	private static final long POLL = 100; //milliseconds. How often the launcher checks whether a worker has died
+
+	private final int     xFarms, yFarms;
+	private final int     size; //cells. Length and width of every farm
+	private final int     processes;
+	private final int     exchangeSteps;
+	private final boolean wrap;
+	private double        before, after, lost, rain, plants; //mL
+	private long          steps, cells;
+	private long          nanos; //Wall-clock time of the slowest worker
+	private long          exchangeNanos; //Time spent exchanging by the slowest worker
+
+
+	/**
+	 * Creates a region
+	 * @param xFarms the width of the region in farms
+	 * @param yFarms the length of the region in farms
+	 * @param processes the amount of worker processes to split the farms over
+	 * @param exchangeSteps the amount of time steps between exchanges of water between farms
+	 * @param wrap true if the farms on opposite edges of the region are neighbours
+	 */
+	public Region(int xFarms, int yFarms, int processes, int exchangeSteps, boolean wrap) {
+		this(xFarms, yFarms, Farm.SIZE, processes, exchangeSteps, wrap);
+	}
+
+
+	/**
+	 * Creates a region of farms of any size
+	 * @param xFarms the width of the region in farms
+	 * @param yFarms the length of the region in farms
+	 * @param size the length and width of every farm in cells
+	 * @param processes the amount of worker processes to split the farms over
+	 * @param exchangeSteps the amount of time steps between exchanges of water between farms
+	 * @param wrap true if the farms on opposite edges of the region are neighbours
+	 */
+	public Region(int xFarms, int yFarms, int size, int processes, int exchangeSteps, boolean wrap) {
+		if(processes < 1 || processes > xFarms * yFarms || exchangeSteps < 1 || size < 1) {
+			throw new IllegalArgumentException("Invalid region: " + processes + " processes for " + xFarms * yFarms +
+			                                   " farms of " + size + " cells, exchanges every " + exchangeSteps +
+			                                   " time steps");
+		}
+		this.xFarms = xFarms;
+		this.yFarms = yFarms;
+		this.size = size;
+		this.processes = processes;
+		this.exchangeSteps = exchangeSteps;
+		this.wrap = wrap;
+	}
+
+
+	/**
+	 * Runs every farm of the region for the given amount of simulated time and waits for the workers to finish. If any
+	 *  worker fails, the rest are stopped straight away, since they would wait forever to exchange with it.
+	 * @param seconds the simulated time to run for
+	 * @throws IOException if a worker can't be started or fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public void run(double seconds) throws IOException, InterruptedException {
+		int farms = xFarms * yFarms;
+		FarmServer server = new FarmServer(new InetSocketAddress("127.0.0.1", 0), xFarms, yFarms, wrap,
+		                                   RegionWorker.getMaxFrame(size, WireCodec.Encoding.RAW));
+		Thread serverThread = new Thread(server, "FarmServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> workers = new ArrayList<Process>(processes);
+		final String[] results = new String[processes]; //The last line each worker printed
+		Thread[] readers = new Thread[processes];
+		try {
+			for(int p = 0; p < processes; p++) {
+				//Farms are numbered down each column, so an even split gives each worker whole columns when it can
+				int first = (int) ((long) farms * p / processes);
+				int end = (int) ((long) farms * (p + 1) / processes);
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				                                            RegionWorker.class.getName(), "127.0.0.1",
+				                                            String.valueOf(server.getAddress().getPort()),
+				                                            String.valueOf(xFarms), String.valueOf(yFarms),
+				                                            String.valueOf(first), String.valueOf(end),
+				                                            String.valueOf(exchangeSteps), String.valueOf(seconds),
+				                                            String.valueOf(wrap), String.valueOf(size));
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				final Process worker = builder.start();
+				workers.add(worker);
+
+				//Every worker's output is read on its own thread, so no worker can block the launcher while another dies
+				final int index = p;
+				readers[p] = new Thread("Region worker " + p) {
+					public void run() {
+						try(BufferedReader reader = new BufferedReader(new InputStreamReader(worker.getInputStream()))) {
+							for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+								results[index] = line;
+							}
+						}
+						catch(IOException e) {
+							//The worker is gone, which its exit code shows
+						}
+					}
+				};
+				readers[p].setDaemon(true);
+				readers[p].start();
+			}
+
+			//The first worker that fails ends the run, and the finally block stops every other worker
+			boolean[] finished = new boolean[processes];
+			for(int running = processes; running > 0; ) {
+				running = 0;
+				Process waiting = null;
+				for(int p = 0; p < processes; p++) {
+					if(finished[p]) {
+						continue;
+					}
+					Process worker = workers.get(p);
+					if(worker.isAlive()) {
+						running++;
+						waiting = waiting == null ? worker : waiting;
+						continue;
+					}
+					readers[p].join();
+					if(worker.exitValue() != 0 || results[p] == null) {
+						throw new IOException("Worker " + p + " failed with exit code " + worker.exitValue());
+					}
+					finished[p] = true;
+				}
+				if(waiting != null) {
+					waiting.waitFor(POLL, TimeUnit.MILLISECONDS);
+				}
+			}
+
+			before = after = lost = rain = plants = 0;
+			steps = cells = nanos = exchangeNanos = 0;
+			for(int p = 0; p < processes; p++) {
+				String[] values = results[p].trim().split(" ");
+				before += Double.parseDouble(values[0]);
+				after += Double.parseDouble(values[1]);
+				lost += Double.parseDouble(values[2]);
+				rain += Double.parseDouble(values[3]);
+				plants += Double.parseDouble(values[4]);
+				steps = Long.parseLong(values[5]);
+				cells += Long.parseLong(values[6]);
+				if(Long.parseLong(values[7]) > nanos) {
+					nanos = Long.parseLong(values[7]);
+					exchangeNanos = Long.parseLong(values[8]);
+				}
+			}
+		}
+		finally {
+			for(Process worker : workers) {
+				worker.destroy();
+			}
+			server.close();
+		}
+	}
+
+
+	/** @return the water in every farm at the start of the last run, in milliliters */
+	public double getWaterBefore() {
+		return before;
+	}
+
+
+	/** @return the water in every farm at the end of the last run, in milliliters */
+	public double getWaterAfter() {
+		return after;
+	}
+
+
+	/** @return the water that flowed off the edge of the region during the last run, in milliliters */
+	public double getLostWater() {
+		return lost;
+	}
+
+
+	/** @return the rain that fell on every farm during the last run, in milliliters */
+	public double getRain() {
+		return rain;
+	}
+
+
+	/** @return the water that plants drank during the last run, in milliliters */
+	public double getPlantUptake() {
+		return plants;
+	}
+
+
+	/**
+	 * @return how much water the last run created (positive) or destroyed, in milliliters, from what entered and left
+	 *         the region. Only rounding errors should show up here
+	 */
+	public double getConservationError() {
+		return after - (before + rain - plants - lost);
+	}
+
+
+	/** @return the amount of time steps every farm took during the last run */
+	public long getSteps() {
+		return steps;
+	}
+
+
+	/** @return the cells of every farm that are not air */
+	public long getCells() {
+		return cells;
+	}
+
+
+	/** @return the cells updated per second of wall-clock time during the last run, timed by the slowest worker */
+	public double getCellsPerSecond() {
+		return nanos == 0 ? 0 : cells * steps / (nanos / 1e9);
+	}
+
+
+	/** @return the fraction of the slowest worker's time that was spent exchanging water */
+	public double getExchangeFraction() {
+		return nanos == 0 ? 0 : exchangeNanos / (double) nanos;
+	}
+
+
+	/**
+	 * This should only be used for testing purposes. Runs the same region with 1 to the given amount of processes.
+	 *  Arguments: xFarms yFarms maxProcesses seconds exchangeSteps size
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int xFarms = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int yFarms = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int maxProcesses = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 100000;
+		int exchangeSteps = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int size = args.length > 5 ? Integer.parseInt(args[5]) : Farm.SIZE;
+
+		for(int processes = 1; processes <= Math.min(maxProcesses, xFarms * yFarms); processes *= 2) {
+			Region region = new Region(xFarms, yFarms, size, processes, exchangeSteps, false);
+			region.run(seconds);
+			System.out.println(processes + " process(es), " + xFarms + "x" + yFarms + " farms, " + region.getCells() +
+			                   " cells, " + region.getSteps() + " steps: " +
+			                   String.format("%.0f", region.getCellsPerSecond()) + " cells/s, " +
+			                   String.format("%.0f%%", 100 * region.getExchangeFraction()) + " exchanging");
+			System.out.println("  Water: " + region.getWaterBefore() + " mL at the start, " + region.getWaterAfter() +
+			                   " mL at the end, " + region.getRain() + " mL of rain, " + region.getLostWater() +
+			                   " mL lost off the edge, error " + region.getConservationError() + " mL");
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package flow;
+
+import cell.*;
+import server.FarmClient;
+import server.FlowListener;
+import server.NetworkData;
+import server.WireCodec;
+import topo.Topography;
+import topo.ValueNoise;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * A RegionWorker is one process of a {@link Region}. It runs a block of the region's farms on one thread, and
+ * exchanges the water that flows off their edges with every other farm of the region through a
+ * {@link server.FarmServer}, one {@link FarmClient} per farm. Farms next to each other in the same process exchange
+ * through the server too, so a farm doesn't care where its neighbours run.
+ */
+public class RegionWorker {
+	/** The most z layers a farm of a region can have, which bounds the size of every message */
+	public static final int MAX_LAYERS = 64;
+
+	private final int          xFarms, yFarms; //Size of the whole region in farms
+	private final int[]        a, b; //Index of each of this worker's farms in the region
+	private final WaterFlow[]  flows;
+	private final FarmClient[] clients;
+	private final FlowListener[] listeners;
+	private final int          exchangeSteps;
+	private final boolean      wrap;
+	private final WireCodec.Encoding encoding;
+	private final double[][]   scratch;
+	private final long         cells; //Cells that are not air, in every farm of this worker
+	private double             lost; //mL. Water that left the region, off its edge or into a farm that couldn't take it
+	private long               steps;
+	private long               nanos, exchangeNanos; //Wall-clock time spent updating, and the part spent exchanging
+
+
+	/**
+	 * Connects this worker's farms to the server. Returns once every farm of the region has connected.
+	 * @param server the address of the server
+	 * @param farms this worker's farms
+	 * @param a the x index of each farm in the region
+	 * @param b the y index of each farm in the region
+	 * @param xFarms the width of the region in farms
+	 * @param yFarms the length of the region in farms
+	 * @param exchangeSteps the amount of time steps between exchanges of water between farms
+	 * @param wrap true if the farms on opposite edges of the region are neighbours
+	 * @param encoding how to send the water
+	 * @throws IOException if the server can't be reached
+	 */
+	public RegionWorker(InetSocketAddress server, Farm[] farms, int[] a, int[] b, int xFarms, int yFarms,
+	                    int exchangeSteps, boolean wrap, WireCodec.Encoding encoding) throws IOException {
+		this.xFarms = xFarms;
+		this.yFarms = yFarms;
+		this.a = a;
+		this.b = b;
+		this.exchangeSteps = exchangeSteps;
+		this.wrap = wrap;
+		this.encoding = encoding;
+		this.flows = new WaterFlow[farms.length];
+		this.clients = new FarmClient[farms.length];
+		this.listeners = new FlowListener[farms.length];
+
+		long cells = 0;
+		int edge = 0; //Cells along the longest side of any farm
+		for(int f = 0; f < farms.length; f++) {
+			edge = Math.max(edge, Math.max(farms[f].getXCellCount(), farms[f].getYCellCount()));
+			if(farms[f].getZCellCount() > MAX_LAYERS) {
+				throw new IllegalArgumentException("A farm of a region has at most " + MAX_LAYERS + " layers: " +
+				                                   farms[f].getZCellCount());
+			}
+			final WaterFlow flow = new WaterFlow(farms[f], 1, 0, 0, 1);
+			flow.setReport(false);
+			flow.setFlowOut(false);
+			flows[f] = flow;
+			listeners[f] = new FlowListener() {
+				public void flow(Direction direction, double[][] water) {
+					//Water this farm can't take in, like into air or layers it doesn't have, leaves the region
+					double sent = 0;
+					for(double[] column : water) {
+						for(double w : column) {
+							sent += w;
+						}
+					}
+					lost += sent - flow.flowIntoFarm(direction, water);
+				}
+
+				public void signal(NetworkData.Type type) {
+				}
+			};
+
+			boolean[] valid = farms[f].getStore().getValidMask();
+			for(int c = 0; c < valid.length; c++) {
+				if(valid[c]) {
+					cells++;
+				}
+			}
+		}
+		this.cells = cells;
+		this.scratch = new double[edge][MAX_LAYERS];
+
+		int maxFrame = getMaxFrame(edge, encoding);
+		for(int f = 0; f < farms.length; f++) {
+			clients[f] = new FarmClient(server, a[f], b[f], maxFrame);
+		}
+	}
+
+
+	/**
+	 * @param edge the cells along the longest side of any farm of the region
+	 * @param encoding how the water is sent
+	 * @return the largest message the farms of a region can send, in bytes
+	 */
+	public static int getMaxFrame(int edge, WireCodec.Encoding encoding) {
+		return WireCodec.maxFlowLength(edge, MAX_LAYERS, encoding);
+	}
+
+
+	/**
+	 * Runs every farm for the given amount of simulated time, exchanging water with the rest of the region along the
+	 *  way. Every worker of the region has to be updated for the same time.
+	 * @param seconds the simulated time to run for
+	 * @throws IOException if the connection to the server fails
+	 */
+	public void update(double seconds) throws IOException {
+		long start = System.nanoTime();
+		double round = exchangeSteps * flows[0].getStepSize();
+		for(double done = 0; done < seconds; done += round) {
+			double roundSeconds = Math.min(round, seconds - done);
+			long before = flows[0].getMetrics().getSteps();
+			for(WaterFlow flow : flows) {
+				flow.update(roundSeconds);
+			}
+			steps += flows[0].getMetrics().getSteps() - before;
+
+			//Every farm has to send before any of them can receive, since the exchange ends when all of them have sent
+			long exchangeStart = System.nanoTime();
+			for(int f = 0; f < flows.length; f++) {
+				clients[f].sendEdges(flows[f].getReservoirs(), encoding);
+			}
+			for(int f = 0; f < flows.length; f++) {
+				clients[f].receiveExchange(scratch, listeners[f]);
+			}
+			for(int f = 0; f < flows.length; f++) {
+				if(!wrap) {
+					lost += edgeWater(f);
+				}
+				flows[f].sendReservoirs();
+			}
+			exchangeNanos += System.nanoTime() - exchangeStart;
+		}
+		nanos += System.nanoTime() - start;
+	}
+
+
+	/**
+	 * @param f one of this worker's farms
+	 * @return the water in the farm's reservoirs that face the edge of the region
+	 */
+	private double edgeWater(int f) {
+		double[][][] reservoirs = flows[f].getReservoirs();
+		boolean[] edge = {b[f] == yFarms - 1, a[f] == xFarms - 1, b[f] == 0, a[f] == 0};
+		double water = 0;
+		for(int d = 0; d < edge.length; d++) {
+			if(edge[d]) {
+				for(double[] column : reservoirs[d]) {
+					for(double w : column) {
+						water += w;
+					}
+				}
+			}
+		}
+		return water;
+	}
+
+
+	/** @return the water in every farm of this worker and its reservoirs, in milliliters */
+	public double getTotalWater() {
+		double total = 0;
+		for(WaterFlow flow : flows) {
+			total += flow.getWaterBalance().getTotal();
+		}
+		return total;
+	}
+
+
+	/** @return the rain that has fallen on every farm of this worker, in milliliters */
+	public double getRain() {
+		double rain = 0;
+		for(WaterFlow flow : flows) {
+			rain += flow.getWaterBalance().getRain();
+		}
+		return rain;
+	}
+
+
+	/** @return the water that the plants of every farm of this worker have drunk, in milliliters */
+	public double getPlantUptake() {
+		double plants = 0;
+		for(WaterFlow flow : flows) {
+			plants += flow.getWaterBalance().getPlantUptake();
+		}
+		return plants;
+	}
+
+
+	/**
+	 * @return the water that has flowed off the edge of the region from this worker's farms, plus what they couldn't
+	 *         take in from their neighbours, in milliliters
+	 */
+	public double getLostWater() {
+		return lost;
+	}
+
+
+	/** @return the amount of time steps every farm has taken */
+	public long getSteps() {
+		return steps;
+	}
+
+
+	/** @return the cells of every farm of this worker that are not air */
+	public long getCells() {
+		return cells;
+	}
+
+
+	/** @return the wall-clock time spent updating, in nanoseconds */
+	public long getNanos() {
+		return nanos;
+	}
+
+
+	/** @return the part of {@link #getNanos()} spent exchanging water, including waiting for the other workers */
+	public long getExchangeNanos() {
+		return exchangeNanos;
+	}
+
+
+	/** Disconnects from the server and stops the models */
+	public void close() throws IOException {
+		for(int f = 0; f < flows.length; f++) {
+			clients[f].close();
+			flows[f].shutdown();
+		}
+	}
+
+
+	/**
+	 * Runs one worker process of a region. Started by {@link Region}, which reads the last line it prints.<p />
+	 * Arguments: host port xFarms yFarms firstFarm endFarm exchangeSteps seconds wrap [size]. Farm f of the region is
+	 *  at x = f / yFarms, y = f % yFarms, and the worker runs farms [firstFarm, endFarm) of size by size cells.
+	 */
+	public static void main(String[] args) throws IOException {
+		InetSocketAddress server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		int xFarms = Integer.parseInt(args[2]);
+		int yFarms = Integer.parseInt(args[3]);
+		int first = Integer.parseInt(args[4]);
+		int end = Integer.parseInt(args[5]);
+		int exchangeSteps = Integer.parseInt(args[6]);
+		double seconds = Double.parseDouble(args[7]);
+		boolean wrap = Boolean.parseBoolean(args[8]);
+		int size = args.length > 9 ? Integer.parseInt(args[9]) : Farm.SIZE;
+		Random rand = new Random();
+
+		Farm[] farms = new Farm[end - first];
+		int[] a = new int[farms.length];
+		int[] b = new int[farms.length];
+		for(int f = 0; f < farms.length; f++) {
+			a[f] = (first + f) / yFarms;
+			b[f] = (first + f) % yFarms;
+			farms[f] = Topography.createFarm(1000, 1000, size, size, Cell.getCellSize(), new ValueNoise(), rand.nextLong());
+			GridStore store = farms[f].getStore();
+			for(int c = 0; c < store.size(); c++) {
+				if(store.isValid(c)) {
+					store.setSoil(c, Soil.GILASAND);
+					store.setWaterVolume(c, 20);
+				}
+			}
+		}
+
+		RegionWorker worker = new RegionWorker(server, farms, a, b, xFarms, yFarms, exchangeSteps, wrap,
+		                                       WireCodec.Encoding.RAW);
+		double before = worker.getTotalWater();
+		worker.update(seconds);
+		worker.close();
+		System.out.println(before + " " + worker.getTotalWater() + " " + worker.getLostWater() + " " +
+		                   worker.getRain() + " " + worker.getPlantUptake() + " " +
+		                   worker.getSteps() + " " + worker.getCells() + " " + worker.getNanos() + " " +
+		                   worker.getExchangeNanos());
+	}
+}
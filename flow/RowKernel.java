@@ -0,0 +1,277 @@
+package flow;
+
+import cell.Farm;
+import cell.GridStore;
+import cell.Soil;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * A RowKernel calculates the flows across the faces of a whole row of cells at once. Every loop runs over contiguous
+ * primitive arrays with the same arithmetic for every cell and no branches, picking the result with a select instead
+ * of returning early like {@link FlowWorker}'s per-cell methods do. Loops of that shape can be turned into SIMD
+ * instructions by the JIT compiler, and at worst they don't stall on mispredicted branches. The soil tables are
+ * looked up once per cell ahead of time so the loops don't have to gather through them.<p />
+ * The amounts are calculated with exactly the same operations as the per-cell methods, so both give the same
+ * results.<p />
+ * VectorRowKernel does the same loops with the incubating Vector API instead of leaving them to the JIT compiler. It
+ * lives in incubator/flow, outside of the other sources, since it only compiles and runs with
+ * --add-modules jdk.incubator.vector. It is found at run time by {@link #create}; if it wasn't compiled, or the module
+ * wasn't added to the JVM, this scalar kernel is used instead.
+ */
+class RowKernel {
+	//The vector kernel's constructor, or null if it isn't on the class path or the Vector API isn't there
+	private static final Constructor<? extends RowKernel> VECTOR = findVectorKernel();
+
+	//Flows across the x faces of the row. Face f lies between the cells f - 1 and f of the row
+	final double[] rightward, leftward;
+	//Flows between each cell of the row and its neighbor in the y or z direction, both ways
+	final double[] southOut, southIn, northOut, northIn;
+	final double[] downOut, downIn, upOut, upIn;
+	//Net flow into each cell of the row, filled in by FlowWorker
+	final double[] net;
+
+	private final int       xCount, yCount, zCount;
+	private final int       strideY, strideZ;
+	//Read by the vector kernel too
+	final double    cellSize;
+	final boolean[] valid;
+	final double[]  height;
+	final double[]  conductivity; //Hydraulic conductivity of each cell, 0 for air
+	final double[]  adhesion; //Water adhesion of each cell, 0 for air
+	final double[]  percentSaturation;
+	final double[]  hydraulicHead;
+
+
+	/**
+	 * Creates a kernel with its own row buffers. The arrays are shared with the other workers and only read.
+	 * @param store the GridStore holding the cells
+	 * @param conductivity the hydraulic conductivity of each cell, indexed like store
+	 * @param adhesion the water adhesion of each cell, indexed like store
+	 * @param percentSaturation the percent saturation of each cell, indexed like store
+	 * @param hydraulicHead the hydraulic head of each cell, indexed like store
+	 */
+	RowKernel(GridStore store, double[] conductivity, double[] adhesion, double[] percentSaturation,
+	          double[] hydraulicHead) {
+		this.xCount = store.getXCount();
+		this.yCount = store.getYCount();
+		this.zCount = store.getZCount();
+		this.strideY = xCount;
+		this.strideZ = xCount * yCount;
+		this.cellSize = store.getCellSize();
+		this.valid = store.getValidMask();
+		this.height = store.getHeights();
+		this.conductivity = conductivity;
+		this.adhesion = adhesion;
+		this.percentSaturation = percentSaturation;
+		this.hydraulicHead = hydraulicHead;
+
+		this.rightward = new double[xCount + 1];
+		this.leftward = new double[xCount + 1];
+		this.southOut = new double[xCount];
+		this.southIn = new double[xCount];
+		this.northOut = new double[xCount];
+		this.northIn = new double[xCount];
+		this.downOut = new double[xCount];
+		this.downIn = new double[xCount];
+		this.upOut = new double[xCount];
+		this.upIn = new double[xCount];
+		this.net = new double[xCount];
+	}
+
+
+	/**
+	 * Creates a kernel with its own row buffers. The arrays are shared with the other workers and only read.
+	 * @param vector true to use the vector kernel if it is available
+	 * @param store the GridStore holding the cells
+	 * @param conductivity the hydraulic conductivity of each cell, indexed like store
+	 * @param adhesion the water adhesion of each cell, indexed like store
+	 * @param percentSaturation the percent saturation of each cell, indexed like store
+	 * @param hydraulicHead the hydraulic head of each cell, indexed like store
+	 * @return the vector kernel if it was asked for and is available, otherwise the scalar one
+	 */
+	static RowKernel create(boolean vector, GridStore store, double[] conductivity, double[] adhesion,
+	                        double[] percentSaturation, double[] hydraulicHead) {
+		if(vector && VECTOR != null) {
+			try {
+				return VECTOR.newInstance(store, conductivity, adhesion, percentSaturation, hydraulicHead);
+			}
+			catch(InvocationTargetException e) {
+				throw new IllegalStateException("The vector kernel couldn't be created", e.getCause());
+			}
+			catch(ReflectiveOperationException e) {
+				throw new IllegalStateException("The vector kernel couldn't be created", e);
+			}
+		}
+		return new RowKernel(store, conductivity, adhesion, percentSaturation, hydraulicHead);
+	}
+
+
+	/** @return true if {@link #create} can make vector kernels */
+	static boolean isVectorAvailable() {
+		return VECTOR != null;
+	}
+
+
+	/** @return true if this kernel uses the Vector API */
+	boolean isVector() {
+		return false;
+	}
+
+
+	/**
+	 * Looks for the vector kernel. Loading it also loads the Vector API, which fails if the JVM wasn't started with
+	 *  --add-modules jdk.incubator.vector.
+	 * @return the vector kernel's constructor, or null if it can't be used
+	 */
+	private static Constructor<? extends RowKernel> findVectorKernel() {
+		try {
+			Class<? extends RowKernel> kernel = Class.forName("flow.VectorRowKernel").asSubclass(RowKernel.class);
+			return kernel.getDeclaredConstructor(GridStore.class, double[].class, double[].class, double[].class,
+			                                     double[].class);
+		}
+		catch(ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Calculates the flows across every face of a row of cells that has a neighbor on the other side. Faces on the
+	 *  edge of the farm are left alone, since those flow into the reservoirs.
+	 * @param water the current water volumes
+	 * @param timeStep the time step in seconds
+	 * @param c the index of the first cell of the row
+	 * @param minX the x coordinate of the first cell of the row (inclusive)
+	 * @param maxX the x coordinate that the row ends at (exclusive)
+	 * @param j the y coordinate of the row
+	 * @param k the z coordinate of the row
+	 */
+	void fill(double[] water, double timeStep, int c, int minX, int maxX, int j, int k) {
+		int length = maxX - minX;
+
+		int from = minX == 0 ? 1 : 0;
+		int to = maxX == xCount ? length : length + 1;
+		side(water, timeStep, c - 1, c, from, to, rightward);
+		side(water, timeStep, c, c - 1, from, to, leftward);
+
+		if(j != 0) {
+			side(water, timeStep, c, c - strideY, 0, length, southOut);
+			side(water, timeStep, c - strideY, c, 0, length, southIn);
+		}
+		if(j != yCount - 1) {
+			side(water, timeStep, c, c + strideY, 0, length, northOut);
+			side(water, timeStep, c + strideY, c, 0, length, northIn);
+		}
+
+		//Water flows down from the cell above and up from the cell below
+		if(k != 0) {
+			side(water, timeStep, c, c - strideZ, 0, length, downOut);
+			up(water, timeStep, c - strideZ, c, 0, length, downIn);
+		}
+		if(k != zCount - 1) {
+			up(water, timeStep, c, c + strideZ, 0, length, upOut);
+			side(water, timeStep, c + strideZ, c, 0, length, upIn);
+		}
+	}
+
+
+	/**
+	 * Calculates the water flowing sideways or down from the cells a + f to the cells b + f. Same as
+	 *  FlowWorker.flowWaterSide, except that a cell without water gives none.
+	 * @param water the current water volumes
+	 * @param timeStep the time step in seconds
+	 * @param a the index of the giving cell for f = 0
+	 * @param b the index of the receiving cell for f = 0
+	 * @param from the first f to calculate (inclusive)
+	 * @param to the last f to calculate (exclusive)
+	 * @param out where the flow for each f is stored
+	 */
+	void side(double[] water, double timeStep, int a, int b, int from, int to, double[] out) {
+		for(int f = from; f < to; f++) {
+			int i = a + f;
+			int x = b + f;
+			double K = (conductivity[i] + conductivity[x]) / 2;
+			double A = height[i] * cellSize;
+			double difference = hydraulicHead[i] - hydraulicHead[x];
+			double min = difference < 1 ? difference : 1; //Math.min(1, difference) keeps the loop from vectorizing
+			double amount = K * A * min * timeStep / cellSize;
+
+			boolean flows = valid[x] & water[i] > 0 & percentSaturation[i] > adhesion[i]
+			                & hydraulicHead[i] > hydraulicHead[x] & percentSaturation[x] < .99;
+			out[f] = flows ? amount : 0;
+		}
+	}
+
+
+	/**
+	 * Calculates the water flowing up from the cells a + f to the cells b + f. Same as FlowWorker.flowWaterUp, except
+	 *  that a cell without water gives none.
+	 * @param water the current water volumes
+	 * @param timeStep the time step in seconds
+	 * @param a the index of the giving cell for f = 0
+	 * @param b the index of the receiving cell for f = 0
+	 * @param from the first f to calculate (inclusive)
+	 * @param to the last f to calculate (exclusive)
+	 * @param out where the flow for each f is stored
+	 */
+	void up(double[] water, double timeStep, int a, int b, int from, int to, double[] out) {
+		for(int f = from; f < to; f++) {
+			int i = a + f;
+			int x = b + f;
+			double iSatur = percentSaturation[i];
+			double xSatur = percentSaturation[x];
+			double K = (conductivity[i] + conductivity[x]) / 2;
+			double A = cellSize * height[i];
+			double satDif = (iSatur - xSatur) / cellSize;
+			double amount = K * A * satDif * timeStep;
+
+			boolean flows = valid[x] & water[i] > 0 & iSatur > adhesion[i] & xSatur <= adhesion[x] & iSatur > xSatur;
+			out[f] = flows ? amount : 0;
+		}
+	}
+
+
+	/**
+	 * Runs the same farm with the per-cell flux calculations, the scalar row kernel and the vector kernel, on one
+	 *  thread and on every available processor, and checks that every cell ends up with exactly the same water. Exits
+	 *  with status 1 if they don't. Use {@link FlowBenchmark} with kernel=cell,row,vector to compare their speed.
+	 *  This should only be used for testing purposes.
+	 * @param args optional: the number of time steps to run, then the number of threads
+	 */
+	public static void main(String[] args) {
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		if(!isVectorAvailable()) {
+			System.out.println("The vector kernel isn't available, so the scalar row kernel is checked twice");
+		}
+
+		boolean passed = true;
+		for(int parallelism : threads == 1 ? new int[] {1} : new int[] {1, threads}) {
+			double[][] water = new double[3][];
+			for(int kernel = 0; kernel < water.length; kernel++) {
+				Farm farm = FlowBenchmark.testFarm(Soil.GILASAND, true, 14, 42);
+				WaterFlow flow = new WaterFlow(farm, parallelism, 0, 0, 1);
+				try {
+					flow.setReport(false);
+					flow.setRowKernel(kernel > 0, kernel == 2);
+					flow.update(steps * 1000.0);
+				}
+				finally {
+					flow.shutdown();
+				}
+				water[kernel] = farm.getStore().getWaterVolumes().clone();
+			}
+			boolean row = Arrays.equals(water[0], water[1]);
+			boolean vector = Arrays.equals(water[0], water[2]);
+			System.out.println(parallelism + " thread(s): row kernel " + (row ? "matches" : "MISMATCH") +
+			                   ", vector kernel " + (vector ? "matches" : "MISMATCH"));
+			passed &= row && vector;
+		}
+
+		if(!passed) {
+			System.exit(1);
+		}
+	}
+}
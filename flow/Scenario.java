@@ -0,0 +1,84 @@
+package flow;
+
+import cell.Plant;
+import cell.Soil;
+
+/**
+ * A Scenario is one what-if run for a {@link BatchRunner}: which soil the whole farm is made of, what grows at the
+ * surface, how hard it rains and how long to simulate.
+ */
+public class Scenario {
+	private final String name;
+	private final Soil   soil;
+	private final Plant  plant;
+	private final double rainPerCell; //mL
+	private final double seconds;
+	private double       initialWater; //mL per cell
+
+
+	/**
+	 * Creates a scenario that starts out dry
+	 * @param name a name to tell the scenario apart in the results
+	 * @param soil the soil of every cell
+	 * @param plant the plant growing in every surface cell, or null for bare ground
+	 * @param rainPerCell the rain that falls on each surface cell every time it rains, in milliliters
+	 * @param seconds the simulated time to run for
+	 */
+	public Scenario(String name, Soil soil, Plant plant, double rainPerCell, double seconds) {
+		if(seconds <= 0) {
+			throw new IllegalArgumentException("A scenario has to run for some time: " + seconds);
+		}
+		this.name = name;
+		this.soil = soil;
+		this.plant = plant;
+		this.rainPerCell = rainPerCell;
+		this.seconds = seconds;
+	}
+
+
+	/** @param initialWater the water that every cell starts out with, in milliliters */
+	public void setInitialWater(double initialWater) {
+		this.initialWater = initialWater;
+	}
+
+
+	/** @return the name of the scenario */
+	public String getName() {
+		return name;
+	}
+
+
+	/** @return the soil of every cell */
+	public Soil getSoil() {
+		return soil;
+	}
+
+
+	/** @return the plant growing in every surface cell, or null */
+	public Plant getPlant() {
+		return plant;
+	}
+
+
+	/** @return the rain per surface cell every time it rains, in milliliters */
+	public double getRainPerCell() {
+		return rainPerCell;
+	}
+
+
+	/** @return the simulated time to run for, in seconds */
+	public double getSeconds() {
+		return seconds;
+	}
+
+
+	/** @return the water that every cell starts out with, in milliliters */
+	public double getInitialWater() {
+		return initialWater;
+	}
+
+
+	public String toString() {
+		return name;
+	}
+}
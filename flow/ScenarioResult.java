@@ -0,0 +1,68 @@
+package flow;
+
+/**
+ * A ScenarioResult sums up how one {@link Scenario} of a {@link BatchRunner} went: where the water ended up, how many
+ * time steps it took and how long it ran, or why it failed.
+ */
+public class ScenarioResult {
+	private final Scenario     scenario;
+	private final WaterBalance balance;
+	private final long         steps;
+	private final long         millis; //Wall-clock time spent running
+	private final Throwable    failure;
+
+
+	/**
+	 * @param scenario the scenario that was run
+	 * @param balance the water balance at the end of the run, or null if it failed
+	 * @param steps the amount of time steps taken
+	 * @param millis the wall-clock time spent running, in milliseconds
+	 * @param failure what made the run fail, or null if it didn't
+	 */
+	ScenarioResult(Scenario scenario, WaterBalance balance, long steps, long millis, Throwable failure) {
+		this.scenario = scenario;
+		this.balance = balance;
+		this.steps = steps;
+		this.millis = millis;
+		this.failure = failure;
+	}
+
+
+	/** @return the scenario that was run */
+	public Scenario getScenario() {
+		return scenario;
+	}
+
+
+	/** @return the water balance at the end of the run, or null if it failed */
+	public WaterBalance getWaterBalance() {
+		return balance;
+	}
+
+
+	/** @return the amount of time steps taken */
+	public long getSteps() {
+		return steps;
+	}
+
+
+	/** @return the wall-clock time spent running, in milliseconds */
+	public long getMillis() {
+		return millis;
+	}
+
+
+	/** @return what made the run fail, or null if it succeeded */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+
+	public String toString() {
+		if(failure != null) {
+			return scenario + ": failed after " + millis + " ms: " + failure;
+		}
+		return scenario + ": " + steps + " steps in " + millis + " ms, " + balance.getStored() + " mL stored, " +
+		       balance.getSent() + " mL sent to other farms, " + balance.getPlantUptake() + " mL drunk by plants";
+	}
+}
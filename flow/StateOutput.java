@@ -0,0 +1,332 @@
+package flow;
+
+import cell.GridStore;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A StateOutput streams a time series of the state of a WaterFlow to a {@link StateSink} without making the model wait
+ * for I/O. At every sample the model thread only fills in one of a fixed pool of {@link StateSample}s and puts it on a
+ * bounded queue; a background thread takes the samples off the queue, hands them to the sink and puts them back in the
+ * pool. Nothing is allocated per sample.<p />
+ * When the writer falls behind and every sample in the pool is waiting to be written, the {@link Policy} decides
+ * whether the model waits for the writer or the new sample is dropped. A StateOutput is attached to a model with
+ * {@link WaterFlow#setOutput(StateOutput, double)} and can only be used by one model. Samples recorded after the
+ * output is closed are dropped.
+ */
+public class StateOutput {
+	/** What to do with a sample when the writer is too far behind to take it */
+	public enum Policy {
+		/** The model waits until the writer has written a sample. Nothing is lost, but I/O can slow the model down */
+		BLOCK,
+		/** The new sample is dropped and counted. The model never waits */
+		DROP
+	}
+
+	/** The summaries that can be recorded in each sample */
+	public enum Field {
+		/** The water in the surface cell of every column */
+		SURFACE_WATER,
+		/** The total water in every z layer */
+		LAYER_TOTALS,
+		/** The water that has flowed out of each side of the farm */
+		OUTFLOW
+	}
+
+	private final StateSink    sink;
+	private final int          capacity;
+	private final Policy       policy;
+	private final EnumSet<Field> fields;
+	private BlockingQueue<StateSample> free;    //Samples that can be filled in
+	private BlockingQueue<StateSample> pending; //Samples waiting to be written
+	private StateSample        stop;            //Tells the writer that there are no more samples
+	private Thread             writer;
+	private GridStore          store;
+	private int[]              surfaceCells;    //Index of the surface cell of each column, or -1
+	private int                xCount, yCount, zCount, sides;
+	private volatile long      written, dropped;
+	private volatile boolean   closed;
+	private volatile IOException failure;
+
+
+	/**
+	 * Creates an output that isn't attached to a model yet
+	 * @param sink where the samples go
+	 * @param capacity the most samples that can be waiting to be written at once
+	 * @param policy what to do when that many samples are waiting
+	 * @param fields the summaries to record in each sample. The simulated time, step count and total water are
+	 *               always recorded
+	 */
+	public StateOutput(StateSink sink, int capacity, Policy policy, Field... fields) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		}
+		this.sink = sink;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.fields = EnumSet.noneOf(Field.class);
+		for(Field field : fields) {
+			this.fields.add(field);
+		}
+	}
+
+
+	/**
+	 * Sizes the samples for a grid, opens the sink and starts the writer thread
+	 * @param store the grid of the model the output is attached to
+	 * @param sides the amount of reservoirs of the model
+	 * @throws IOException if the sink can't be opened
+	 */
+	synchronized void start(GridStore store, int sides) throws IOException {
+		if(writer != null) {
+			throw new IllegalStateException("The output is already attached to a model");
+		}
+		this.store = store;
+		this.xCount = store.getXCount();
+		this.yCount = store.getYCount();
+		this.zCount = store.getZCount();
+		this.sides = sides;
+		this.surfaceCells = findSurfaceCells(store);
+
+		int columns = has(Field.SURFACE_WATER) ? xCount * yCount : 0;
+		int layers = has(Field.LAYER_TOTALS) ? zCount : 0;
+		this.free = new ArrayBlockingQueue<StateSample>(capacity);
+		this.pending = new ArrayBlockingQueue<StateSample>(capacity + 1); //Room for the stop sample
+		for(int i = 0; i < capacity; i++) {
+			free.add(new StateSample(columns, layers, has(Field.OUTFLOW) ? sides : 0));
+		}
+		this.stop = new StateSample(0, 0, 0);
+
+		//The sink is opened on the writer thread like everything else it does, but a failure to open still comes back here
+		final CountDownLatch opened = new CountDownLatch(1);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					sink.open(StateOutput.this);
+				}
+				catch(IOException e) {
+					failure = e;
+				}
+				finally {
+					opened.countDown();
+				}
+				if(failure == null) {
+					write();
+				}
+			}
+		}, "StateOutput");
+		writer.setDaemon(true);
+		writer.start();
+		try {
+			opened.await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while opening the output", e);
+		}
+		if(failure != null) {
+			writer = null;
+			throw failure;
+		}
+	}
+
+
+	/**
+	 * Records a sample of the model's state, unless the policy drops it. Only the thread running the model calls this.
+	 * @param simulatedTime the simulated time, in seconds
+	 * @param steps the amount of time steps taken
+	 * @param totalWater the water in the farm and its reservoirs, in milliliters
+	 * @param outflow the water that has flowed out of each side of the farm so far, in milliliters
+	 */
+	void record(double simulatedTime, long steps, double totalWater, double[] outflow) {
+		if(failure != null) {
+			throw new IllegalStateException("Could not write the output", failure);
+		}
+		if(closed) {
+			dropped++;
+			return;
+		}
+
+		StateSample sample;
+		if(policy == Policy.DROP) {
+			sample = free.poll();
+			if(sample == null) {
+				dropped++; //Only the model thread writes to dropped
+				return;
+			}
+		}
+		else {
+			try {
+				sample = free.take();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the output to catch up", e);
+			}
+		}
+		//close() hands over the stop sample to wake up a model thread that is waiting for a sample
+		if(sample == stop) {
+			dropped++;
+			return;
+		}
+
+		sample.simulatedTime = simulatedTime;
+		sample.steps = steps;
+		sample.totalWater = totalWater;
+		if(sample.surfaceWater != null) {
+			double[] water = store.getWaterVolumes();
+			for(int col = 0; col < surfaceCells.length; col++) {
+				sample.surfaceWater[col] = surfaceCells[col] < 0 ? 0 : water[surfaceCells[col]];
+			}
+		}
+		if(sample.layerTotals != null) {
+			double[] water = store.getWaterVolumes();
+			boolean[] valid = store.getValidMask();
+			int columns = xCount * yCount;
+			for(int k = 0, c = 0; k < zCount; k++) {
+				double total = 0;
+				for(int end = c + columns; c < end; c++) {
+					if(valid[c]) {
+						total += water[c];
+					}
+				}
+				sample.layerTotals[k] = total;
+			}
+		}
+		if(sample.outflow != null) {
+			System.arraycopy(outflow, 0, sample.outflow, 0, sample.outflow.length);
+		}
+		pending.add(sample); //Never full, since there are only capacity samples
+	}
+
+
+	/** Hands samples to the sink until the output is closed, then closes the sink. Runs on the writer thread. */
+	private void write() {
+		while(true) {
+			StateSample sample;
+			try {
+				sample = pending.take();
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			if(sample == stop) {
+				try {
+					sink.close();
+				}
+				catch(IOException e) {
+					if(failure == null) {
+						failure = e;
+					}
+				}
+				return;
+			}
+
+			//Once the sink has failed, samples are only recycled so that a blocked model thread can get to the error
+			if(failure == null) {
+				try {
+					sink.write(sample);
+					written++; //Only the writer thread writes to written
+				}
+				catch(IOException e) {
+					failure = e;
+				}
+			}
+			free.add(sample);
+		}
+	}
+
+
+	/**
+	 * Waits for every recorded sample to be written, stops the writer thread and closes the sink. Call this once the
+	 *  model is done with the output; anything it records afterwards is dropped.
+	 * @throws IOException if a sample couldn't be written or the sink couldn't be closed
+	 */
+	public synchronized void close() throws IOException {
+		if(writer == null) {
+			return;
+		}
+		closed = true;
+		pending.add(stop);
+		try {
+			writer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the output to be written", e);
+		}
+		writer = null;
+		//Nothing takes samples off the queue any more, so a model thread waiting for one gets the stop sample instead
+		free.offer(stop);
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+
+	/**
+	 * @param store a grid
+	 * @return the index of the highest surface cell of each column, or -1 for columns without one
+	 */
+	private static int[] findSurfaceCells(GridStore store) {
+		int columns = store.getXCount() * store.getYCount();
+		int[] cells = new int[columns];
+		for(int col = 0; col < columns; col++) {
+			cells[col] = -1;
+			for(int c = col; c < store.size(); c += columns) {
+				if(store.isSurface(c)) {
+					cells[col] = c;
+				}
+			}
+		}
+		return cells;
+	}
+
+
+	/**
+	 * @param field a summary
+	 * @return true if it is recorded in each sample
+	 */
+	public boolean has(Field field) {
+		return fields.contains(field);
+	}
+
+
+	/** @return the amount of cells in the x axis of the model's grid */
+	public int getXCount() {
+		return xCount;
+	}
+
+
+	/** @return the amount of cells in the y axis of the model's grid */
+	public int getYCount() {
+		return yCount;
+	}
+
+
+	/** @return the amount of cells in the z axis of the model's grid */
+	public int getZCount() {
+		return zCount;
+	}
+
+
+	/** @return the amount of reservoirs of the model, one per side of the farm */
+	public int getSides() {
+		return sides;
+	}
+
+
+	/** @return the amount of samples that have been written */
+	public long getWritten() {
+		return written;
+	}
+
+
+	/** @return the amount of samples dropped because the writer was too far behind */
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,67 @@
+package flow;
+
+/**
+ * A StateSample is one row of the time series written by a {@link StateOutput}: a few summaries of the state of a
+ * WaterFlow at one simulated time. Samples are reused once they have been written, so a {@link StateSink} must not
+ * keep a sample after its write method returns. Fields that weren't selected are null.
+ */
+public class StateSample {
+	double   simulatedTime; //seconds
+	long     steps;
+	double   totalWater;    //mL. In the farm and its reservoirs
+	double[] surfaceWater;  //mL. Water in the surface cell of each column, indexed y * xCount + x
+	double[] layerTotals;   //mL. Water in each z layer
+	double[] outflow;       //mL. Water that has flowed out of each side of the farm so far
+
+
+	/**
+	 * Creates an empty sample
+	 * @param columns the amount of columns in the grid, or 0 if surface water isn't recorded
+	 * @param layers the amount of z layers in the grid, or 0 if layer totals aren't recorded
+	 * @param sides the amount of reservoirs, or 0 if outflows aren't recorded
+	 */
+	StateSample(int columns, int layers, int sides) {
+		this.surfaceWater = columns == 0 ? null : new double[columns];
+		this.layerTotals = layers == 0 ? null : new double[layers];
+		this.outflow = sides == 0 ? null : new double[sides];
+	}
+
+
+	/** @return the simulated time of the sample, in seconds */
+	public double getSimulatedTime() {
+		return simulatedTime;
+	}
+
+
+	/** @return the amount of time steps taken before the sample */
+	public long getSteps() {
+		return steps;
+	}
+
+
+	/** @return the water in the farm and its reservoirs, in milliliters */
+	public double getTotalWater() {
+		return totalWater;
+	}
+
+
+	/** @return the water in the surface cell of each column in milliliters, indexed y * xCount + x, or null */
+	public double[] getSurfaceWater() {
+		return surfaceWater;
+	}
+
+
+	/** @return the water in each z layer of the grid in milliliters, or null */
+	public double[] getLayerTotals() {
+		return layerTotals;
+	}
+
+
+	/**
+	 * @return the water that has flowed out of the north, east, south and west sides of the farm since the model
+	 *         started in milliliters, or null
+	 */
+	public double[] getOutflow() {
+		return outflow;
+	}
+}
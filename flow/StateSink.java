@@ -0,0 +1,29 @@
+package flow;
+
+import java.io.IOException;
+
+/**
+ * A StateSink is where a {@link StateOutput} sends its samples. Every method, open and close included, is called on
+ * the output's writer thread, never on the thread running the model, so a sink may take as long as it needs.
+ */
+public interface StateSink {
+	/**
+	 * Called once before the first sample
+	 * @param output the output that the samples come from, which tells the size of the grid and the fields recorded
+	 * @throws IOException if the sink can't be opened
+	 */
+	void open(StateOutput output) throws IOException;
+
+	/**
+	 * Writes one sample. The sample is reused afterwards, so it must not be kept.
+	 * @param sample the sample
+	 * @throws IOException if the sample can't be written
+	 */
+	void write(StateSample sample) throws IOException;
+
+	/**
+	 * Called once after the last sample
+	 * @throws IOException if the sink can't be closed
+	 */
+	void close() throws IOException;
+}
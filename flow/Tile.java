@@ -0,0 +1,65 @@
+package flow;
+
+/**
+ * A Tile is a box of cells that one FlowWorker handles at a time. Ranges are [min, max).
+ */
+final class Tile {
+	final int minX, maxX;
+	final int minY, maxY;
+	final int minZ, maxZ;
+
+
+	/**
+	 * Creates a tile covering the given ranges
+	 * @param minX starting value of the x range (inclusive)
+	 * @param maxX ending value of the x range (exclusive)
+	 * @param minY starting value of the y range (inclusive)
+	 * @param maxY ending value of the y range (exclusive)
+	 * @param minZ starting value of the z range (inclusive)
+	 * @param maxZ ending value of the z range (exclusive)
+	 */
+	Tile(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+	}
+
+
+	/**
+	 * Splits a grid into xTiles * yTiles * zTiles tiles of (nearly) equal size. Tile counts larger than the grid are
+	 *  clamped so that no tile is empty.
+	 * @param xCount the amount of cells in the x axis
+	 * @param yCount the amount of cells in the y axis
+	 * @param zCount the amount of cells in the z axis
+	 * @param xTiles the amount of tiles along the x axis
+	 * @param yTiles the amount of tiles along the y axis
+	 * @param zTiles the amount of tiles along the z axis
+	 * @return the tiles, ordered z-fastest then x then y
+	 */
+	static Tile[] split(int xCount, int yCount, int zCount, int xTiles, int yTiles, int zTiles) {
+		xTiles = Math.max(1, Math.min(xTiles, xCount));
+		yTiles = Math.max(1, Math.min(yTiles, yCount));
+		zTiles = Math.max(1, Math.min(zTiles, zCount));
+
+		Tile[] tiles = new Tile[xTiles * yTiles * zTiles];
+		int t = 0;
+		for(int j = 0; j < yTiles; j++) {
+			for(int i = 0; i < xTiles; i++) {
+				for(int k = 0; k < zTiles; k++) {
+					tiles[t++] = new Tile(i * xCount / xTiles, (i + 1) * xCount / xTiles,
+					                      j * yCount / yTiles, (j + 1) * yCount / yTiles,
+					                      k * zCount / zTiles, (k + 1) * zCount / zTiles);
+				}
+			}
+		}
+		return tiles;
+	}
+
+
+	public String toString() {
+		return "[" + minX + ", " + maxX + ") x [" + minY + ", " + maxY + ") x [" + minZ + ", " + maxZ + ")";
+	}
+}
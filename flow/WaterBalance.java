@@ -0,0 +1,188 @@
+package flow;
+
+/**
+ * A WaterBalance is a running ledger of the water that enters, leaves and moves around a farm. WaterFlow updates it as
+ * the model runs, so the total amount of water and how far the model has drifted from conserving it can be read at
+ * any time without walking the grid.<p />
+ * Water that is waiting to be added to a cell, like rain that falls between time steps, already counts as stored.
+ * Water put into the cells from outside of WaterFlow isn't seen until {@link WaterFlow#resetWaterBalance()} is called.
+ * The ledger is only written to by the thread running the model, so other threads may see it a step behind.
+ */
+public class WaterBalance {
+	static final int LEDGER_SIZE = 8; //Entries copied by copyTo
+
+	private double initial; //mL. Water in the farm and its reservoirs when the ledger was started
+	private double rain; //mL. Rain that has fallen on the farm
+	private double inflow; //mL. Water that has flowed in from other farms
+	private double outflow; //mL. Water that has flowed out of the farm into its reservoirs
+	private double sent; //mL. Water that has left the reservoirs for other farms
+	private double plants; //mL. Water that plants have drunk
+	private double stored; //mL. Water in the farm according to the time steps that have been applied
+	private double reservoirs; //mL. Water in the reservoirs
+
+
+	/**
+	 * Starts the ledger over
+	 * @param stored the water in the farm, in milliliters
+	 * @param reservoirs the water in the reservoirs, in milliliters
+	 */
+	void reset(double stored, double reservoirs) {
+		this.initial = stored + reservoirs;
+		this.rain = 0;
+		this.inflow = 0;
+		this.outflow = 0;
+		this.sent = 0;
+		this.plants = 0;
+		this.stored = stored;
+		this.reservoirs = reservoirs;
+	}
+
+
+	/**
+	 * Copies the ledger into an array, so that it can be saved with a checkpoint
+	 * @param ledger an array of at least LEDGER_SIZE entries
+	 */
+	void copyTo(double[] ledger) {
+		ledger[0] = initial;
+		ledger[1] = rain;
+		ledger[2] = inflow;
+		ledger[3] = outflow;
+		ledger[4] = sent;
+		ledger[5] = plants;
+		ledger[6] = stored;
+		ledger[7] = reservoirs;
+	}
+
+
+	/**
+	 * Picks the ledger back up from an array filled by {@link #copyTo(double[])}
+	 * @param ledger the saved ledger
+	 */
+	void copyFrom(double[] ledger) {
+		initial = ledger[0];
+		rain = ledger[1];
+		inflow = ledger[2];
+		outflow = ledger[3];
+		sent = ledger[4];
+		plants = ledger[5];
+		stored = ledger[6];
+		reservoirs = ledger[7];
+	}
+
+
+	/** @param amount rain that was added to the farm, in milliliters */
+	void addRain(double amount) {
+		rain += amount;
+		stored += amount;
+	}
+
+
+	/** @param amount water that was added to the farm from another farm, in milliliters */
+	void addInflow(double amount) {
+		inflow += amount;
+		stored += amount;
+	}
+
+
+	/** @param amount water that the time steps have moved into (positive) or out of the cells, in milliliters */
+	void addFlow(double amount) {
+		stored += amount;
+	}
+
+
+	/** @param amount water that flowed out of the farm into its reservoirs, in milliliters */
+	void addOutflow(double amount) {
+		outflow += amount;
+		reservoirs += amount;
+	}
+
+
+	/** Records that everything in the reservoirs has been sent to other farms */
+	void sendReservoirs() {
+		sent += reservoirs;
+		reservoirs = 0;
+	}
+
+
+	/** @param amount water that plants have taken out of the farm, in milliliters */
+	void addPlantUptake(double amount) {
+		plants += amount;
+		stored -= amount;
+	}
+
+
+	/** @return the water in the farm and its reservoirs when the ledger was started, in milliliters */
+	public double getInitial() {
+		return initial;
+	}
+
+
+	/** @return the rain that has fallen on the farm, in milliliters */
+	public double getRain() {
+		return rain;
+	}
+
+
+	/** @return the water that has flowed in from other farms, in milliliters */
+	public double getInflow() {
+		return inflow;
+	}
+
+
+	/** @return the water that has flowed out of the farm into its reservoirs, in milliliters */
+	public double getOutflow() {
+		return outflow;
+	}
+
+
+	/** @return the water that has left the reservoirs for other farms, in milliliters */
+	public double getSent() {
+		return sent;
+	}
+
+
+	/** @return the water that plants have drunk, in milliliters */
+	public double getPlantUptake() {
+		return plants;
+	}
+
+
+	/** @return the water in the farm, including water waiting to be added to it, in milliliters */
+	public double getStored() {
+		return stored;
+	}
+
+
+	/** @return the water in the reservoirs, in milliliters */
+	public double getReservoirs() {
+		return reservoirs;
+	}
+
+
+	/** @return the water in the farm and its reservoirs, in milliliters */
+	public double getTotal() {
+		return stored + reservoirs;
+	}
+
+
+	/** @return how much water there should be from what has entered and left the farm, in milliliters */
+	public double getExpected() {
+		return initial + rain + inflow - sent - plants;
+	}
+
+
+	/**
+	 * @return how much water the time steps have created (positive) or destroyed, in milliliters. Only rounding
+	 *         errors should show up here
+	 */
+	public double getConservationError() {
+		return getTotal() - getExpected();
+	}
+
+
+	public String toString() {
+		return "stored " + stored + " mL, reservoirs " + reservoirs + " mL, rain " + rain + " mL, inflow " + inflow +
+		       " mL, outflow " + outflow + " mL, sent " + sent + " mL, plants " + plants + " mL, error " +
+		       getConservationError() + " mL";
+	}
+}
@@ -3,7 +3,18 @@ package flow;
 import cell.*;
 import server.FlowData;
 import topo.Topography;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * WaterFlow is a class that computes how water should flow from cell to cell. <p />
@@ -17,116 +28,433 @@ public class WaterFlow {
 	private static final boolean startWithWater = false;
 	public  static final boolean includePlants  = false;
 
-	private int          timeStep = 1000; //seconds
-	private int          finishedWorkers;
+	private static final double MAX_OUTFLOW_FRACTION = 0.5; //Most of its water a cell may lose in one adaptive step
+	private static final int    DAY = 86400; //seconds
+	//The timer of each phase, indexed by the phase's ordinal
+	private static final FlowMetrics.Timer[] PHASE_TIMERS = {FlowMetrics.Timer.HEAD, FlowMetrics.Timer.FLUX,
+	                                                         FlowMetrics.Timer.APPLY, FlowMetrics.Timer.FUSED};
+
+	private int          timeStep = 1000; //seconds. Used as-is unless the time step is adaptive
+	private boolean      adaptive;
+	private boolean      fused;
+	private double       minStep, maxStep; //seconds. Bounds on adaptive time steps
+	private double       stepSize; //seconds. Time step the flows of the current step are calculated with
+	private double       desiredStep; //seconds. Adaptive time step to try next, before cutting it short for events
+	private double       flowScale; //Fraction of the calculated flows that actually happen in the current step
+	private boolean      plantDay; //True if plants drink during the current step
+	private double       nextReport, nextFlowOut, nextRain, nextPlantDay; //seconds. When the next events are due
+	private double       checkpointInterval; //seconds. 0 if checkpoints aren't written during updates
+	private double       nextCheckpoint; //seconds
+	private File         checkpointFile;
+	private ExecutorService checkpointWriter; //Writes checkpoints in the background, one at a time
+	private Future<?>    checkpointWrite; //The last checkpoint handed to the writer
+	private StateOutput  output;
+	private double       outputInterval; //seconds
+	private double       nextOutput; //seconds
+	private Cell         surfaceCell; //The surface cell shown in reports
+	private boolean      report = includeOutput; //True if reports are printed
+	private boolean      flowOut = true; //True if the reservoirs are fed back into this farm every 15 time steps
+	private double       rainPerCell = 11; //mL
 	private long         realTime;
-	private Integer      simulatedTime;
+	private long         steps;
+	private volatile double simulatedTime;
 	private Farm         farm;
-	private Cell[][][]   grid;
-	private Double[][][] change;
-	private Double[][][] hydraulicHead;
-	private Double[][][] percentSaturation;
-	private Double[][][] reservoirs;
+	private GridStore    store;
+	private double[]     change;
+	private double[]     flow;
+	private double[]     waterNext; //Second water buffer for the fused kernel
+	private boolean      nextStale; //True if waterNext may differ from the water outside of the visited columns
+	private boolean      rowKernel;
+	private boolean      vectorKernel; //True if the row kernel uses the Vector API
+	private double[]     conductivity; //Hydraulic conductivity of each cell for the row kernel
+	private double[]     adhesion; //Water adhesion of each cell for the row kernel
+	private double[]     hydraulicHead;
+	private double[]     percentSaturation;
+	private double[][][] reservoirs;
+	private double[][][] reservoirFlow;
+	private double[]     sideOutflow; //mL. Water that has flowed out of each side of the farm since this object was created
+	private ActiveColumns active;
+	private final WaterBalance balance = new WaterBalance();
+	private FlowMetrics  metrics;
+	private boolean[]    wetColumns; //Scratch space for refreshActiveColumns
 	private FlowWorker[] workers;
+	private PhaseScheduler scheduler;
+	private ExecutorService pool;
+	private Tile[]       tiles;   //Tiles for the flux and apply phases
+	private Tile[]       columns; //Tiles covering whole columns for the hydraulic head phase
+	private final AtomicInteger nextTile = new AtomicInteger();
 
 
 	/**
-	 * Creates a WaterFlow object that will simulate the water flowing in and through the given Farm
+	 * Creates a WaterFlow object that will simulate the water flowing in and through the given Farm. It uses one
+	 *  thread per available processor and picks the tiles itself.
 	 * @param farm the Farm that this object will simulate water flow for
 	 */
 	public WaterFlow(Farm farm) {
+		this(farm, Runtime.getRuntime().availableProcessors(), 0, 0, 1);
+	}
+
+
+	/**
+	 * Creates a WaterFlow object that will simulate the water flowing in and through the given Farm. Every phase is
+	 *  split into tiles that the worker threads take one at a time, so there should be a few tiles per thread to keep
+	 *  them all busy.
+	 * @param farm the Farm that this object will simulate water flow for
+	 * @param parallelism the number of threads to do the calculations with. With 1, the calculations are done on the
+	 *                    thread that calls update and no other threads are started
+	 * @param xTiles the number of tiles along the x axis. If this and yTiles are both 0, the farm is split into
+	 *               strips of whole rows, 4 per thread
+	 * @param yTiles the number of tiles along the y axis
+	 * @param zTiles the number of tiles along the z axis for the flux and apply phases. Hydraulic heads are always
+	 *               calculated on whole columns
+	 */
+	public WaterFlow(Farm farm, int parallelism, int xTiles, int yTiles, int zTiles) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+		}
+		if(xTiles <= 0 && yTiles <= 0) {
+			xTiles = 1;
+			yTiles = 4 * parallelism;
+		}
+
 		this.farm = farm;
-		this.grid = farm.getGrid();
-		this.change = new Double[Farm.xCellCount][Farm.yCellCount][farm.zCellCount];
-		this.hydraulicHead = new Double[Farm.xCellCount][Farm.yCellCount][farm.zCellCount];
-		this.percentSaturation = new Double[Farm.xCellCount][Farm.yCellCount][farm.zCellCount];
-		this.reservoirs = new Double[4][Farm.SIZE][farm.zCellCount];
-		this.finishedWorkers = 0;
-		this.workers = new FlowWorker[4];
+		this.store = farm.getStore();
+		this.change = new double[store.size()];
+		this.flow = new double[store.size()];
+		this.hydraulicHead = new double[store.size()];
+		this.percentSaturation = new double[store.size()];
+		int edge = Math.max(store.getXCount(), store.getYCount()); //Cells along the longest side
+		this.reservoirs = new double[4][edge][farm.zCellCount];
+		this.reservoirFlow = new double[4][edge][farm.zCellCount];
+		this.sideOutflow = new double[4];
+		this.active = new ActiveColumns(store.getXCount(), store.getYCount());
+		this.wetColumns = new boolean[store.getXCount() * store.getYCount()];
 		this.simulatedTime = 0;
-		reset(change);
-		reset(hydraulicHead);
-		reset(percentSaturation);
-		reset(reservoirs);
+		this.stepSize = timeStep;
+		this.nextPlantDay = DAY;
+		this.tiles = Tile.split(store.getXCount(), store.getYCount(), store.getZCount(), xTiles, yTiles, zTiles);
+		this.columns = Tile.split(store.getXCount(), store.getYCount(), store.getZCount(), xTiles, yTiles, 1);
+		resetWaterBalance();
 
-		workers[0] = new FlowWorker(0, Farm.xCellCount / 2, 0, Farm.yCellCount / 2, farm.zCellCount, this, grid, change,
-		                            reservoirs, timeStep);
-		workers[1] = new FlowWorker(Farm.xCellCount / 2, Farm.xCellCount, 0, Farm.yCellCount / 2, farm.zCellCount, this,
-		                            grid, change, reservoirs, timeStep);
-		workers[2] = new FlowWorker(0, Farm.xCellCount / 2, Farm.yCellCount / 2, Farm.yCellCount, farm.zCellCount, this,
-		                            grid, change, reservoirs, timeStep);
-		workers[3] = new FlowWorker(Farm.xCellCount / 2, Farm.xCellCount, Farm.yCellCount / 2, Farm.yCellCount,
-		                            farm.zCellCount, this, grid, change, reservoirs, timeStep);
+		if(parallelism == 1) {
+			this.workers = new FlowWorker[] {new FlowWorker(this, null, store, change, flow, percentSaturation,
+			                                                hydraulicHead, reservoirFlow, active)};
+			this.metrics = new FlowMetrics(workers);
+			return;
+		}
+
+		this.workers = new FlowWorker[parallelism];
+		this.scheduler = new PhaseScheduler(parallelism);
+		this.pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private int count = 0;
 
-		for(int i = 0; i < 4; i++) {
-			workers[i].start();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FlowWorker-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new FlowWorker(this, scheduler, store, change, flow, percentSaturation, hydraulicHead,
+			                            reservoirFlow, active);
+			pool.execute(workers[i]);
 		}
+		this.metrics = new FlowMetrics(workers);
+	}
+
+
+	/**
+	 * Lets the model choose each time step itself. Every step is as long as possible without any cell losing more than
+	 *  half of its water, within the given bounds. Steps are also cut short so that reports, rain, flows between farms,
+	 *  plant water consumption and the end of an update happen at the same simulated times as with a fixed time step.
+	 * @param minStep the shortest time step in seconds. Steps this short are taken even if a cell would lose more
+	 *                than half of its water
+	 * @param maxStep the longest time step in seconds
+	 */
+	public void setAdaptiveTimeStep(double minStep, double maxStep) {
+		if(minStep <= 0 || maxStep < minStep) {
+			throw new IllegalArgumentException("Invalid time step bounds: [" + minStep + ", " + maxStep + "]");
+		}
+		this.adaptive = true;
+		this.minStep = minStep;
+		this.maxStep = maxStep;
+		this.desiredStep = Math.min(maxStep, Math.max(minStep, timeStep));
+	}
+
+
+	/**
+	 * Chooses whether each time step calculates the flows and updates the water in one sweep over the grid instead of
+	 *  two. The new water volumes go into a second buffer that is swapped with the farm's, which costs one more array
+	 *  of doubles. The results are the same either way. Adaptive time steps always use separate sweeps.
+	 * @param fused true to use the fused kernel
+	 */
+	public void setFusedKernel(boolean fused) {
+		this.fused = fused;
+		if(fused && waterNext == null) {
+			waterNext = new double[store.size()];
+			nextStale = true;
+		}
+	}
+
+
+	/**
+	 * Chooses whether the flows are calculated a whole row of cells at a time with branch-free loops that the JIT
+	 *  compiler can vectorize, instead of one cell at a time. The row kernel costs two more arrays of doubles and
+	 *  visits every cell of a row that has an active column. The results are the same either way. Whether it is faster
+	 *  depends on the JVM and the processor, so compare them with FlowBenchmark kernel=cell,row,vector first.
+	 * @param rowKernel true to use the row kernel
+	 */
+	public void setRowKernel(boolean rowKernel) {
+		setRowKernel(rowKernel, false);
+	}
+
+
+	/**
+	 * Chooses the row kernel like {@link #setRowKernel(boolean)}, optionally with the loops written with the Vector
+	 *  API instead of left to the JIT compiler. The vector kernel is only there if incubator/flow was compiled and the
+	 *  JVM was started with --add-modules jdk.incubator.vector; otherwise the scalar row kernel is used, which gives
+	 *  the same results. See {@link #isVectorKernelAvailable()}.
+	 * @param rowKernel true to use the row kernel
+	 * @param vector true to use the vector kernel if it is available
+	 */
+	public void setRowKernel(boolean rowKernel, boolean vector) {
+		this.rowKernel = rowKernel;
+		this.vectorKernel = rowKernel && vector && RowKernel.isVectorAvailable();
+		if(rowKernel && conductivity == null) {
+			conductivity = new double[store.size()];
+			adhesion = new double[store.size()];
+		}
+	}
+
+
+	/** @return true if the vector kernel was compiled and the JVM can run it */
+	public static boolean isVectorKernelAvailable() {
+		return RowKernel.isVectorAvailable();
+	}
+
+
+	/** @return true if the flows are calculated with the vector kernel */
+	public boolean isVectorKernel() {
+		return vectorKernel;
+	}
+
+
+	/**
+	 * Writes a checkpoint every time the given amount of simulated time has passed during an update, replacing the
+	 *  previous one. The state is copied between two time steps and written to disk on a background thread, so the
+	 *  model only stops for as long as the copy takes. If the previous checkpoint is still being written when the next
+	 *  one is due, the model waits for it.
+	 * @param seconds the simulated time between checkpoints, or 0 to stop writing them
+	 * @param file the file to write them to
+	 */
+	public void setCheckpointInterval(double seconds, File file) {
+		if(seconds < 0) {
+			throw new IllegalArgumentException("Invalid checkpoint interval: " + seconds);
+		}
+		this.checkpointInterval = seconds;
+		this.checkpointFile = file;
+		this.nextCheckpoint = simulatedTime + seconds;
+		if(seconds > 0 && checkpointWriter == null) {
+			checkpointWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CheckpointWriter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Streams samples of the model's state to an output every time the given amount of simulated time has passed
+	 *  during an update. Taking a sample only copies a few summaries; they are written on the output's own thread.
+	 *  Close the output once the model is done with it.
+	 * @param output the output to send samples to, or null to stop sending them
+	 * @param seconds the simulated time between samples
+	 * @throws IOException if the output's sink can't be opened
+	 */
+	public void setOutput(StateOutput output, double seconds) throws IOException {
+		if(output != null && seconds <= 0) {
+			throw new IllegalArgumentException("Invalid output interval: " + seconds);
+		}
+		if(output != null && output != this.output) {
+			output.start(store, reservoirs.length);
+		}
+		this.output = output;
+		this.outputInterval = seconds;
+		this.nextOutput = simulatedTime;
+	}
+
+
+	/**
+	 * Chooses whether the model prints a report of the water every 200 time steps. Reports are on by default.
+	 * @param report true to print reports
+	 */
+	public void setReport(boolean report) {
+		this.report = report;
+	}
+
+
+	/**
+	 * Sets how much rain falls on each surface cell every time it rains
+	 * @param waterPerCell the rain per surface cell, in milliliters. 11 mL by default
+	 */
+	public void setRain(double waterPerCell) {
+		this.rainPerCell = waterPerCell;
+	}
+
+
+	/** Goes back to using the same time step for every step */
+	public void setFixedTimeStep() {
+		this.adaptive = false;
+		this.stepSize = timeStep;
 	}
 
 
 	/**
 	 * Runs the model for a given number of seconds
-	 * @param seconds the number of seconds to run the model for. This may or may not run the model for the exact amount
-	 *                of seconds because the time step may not match up evenly. In that case, it will simulate slightly
-	 *                farther in the future than the given time.
+	 * @param seconds the number of seconds to run the model for. With a fixed time step, this may or may not run the
+	 *                model for the exact amount of seconds because the time step may not match up evenly. In that
+	 *                case, it will simulate slightly farther in the future than the given time. An adaptive time step
+	 *                stops exactly at the given time.
 	 */
 	public void update(double seconds) {
-		for(double i = 0; i < seconds; i += this.timeStep) {
+		long allocated = metrics.currentThreadAllocatedBytes();
+
+		//The water may have been changed since the last update, so find the wet columns again
+		long start = System.nanoTime();
+		refreshActiveColumns();
+		metrics.record(FlowMetrics.Timer.REFRESH, System.nanoTime() - start);
+
+		double end = simulatedTime + seconds;
+		while(simulatedTime < end) {
 			long time = System.currentTimeMillis();
+			long stepStart = System.nanoTime();
+			double stepTime = simulatedTime;
+
+			//Save everything before this step's events, so a restored run starts by handling them again
+			if(checkpointInterval > 0 && simulatedTime >= nextCheckpoint) {
+				writeCheckpoint();
+				while(nextCheckpoint <= simulatedTime) {
+					nextCheckpoint += checkpointInterval;
+				}
+			}
+
+			if(output != null && simulatedTime >= nextOutput) {
+				output.record(simulatedTime, steps, balance.getTotal(), sideOutflow);
+				while(nextOutput <= simulatedTime) {
+					nextOutput += outputInterval;
+				}
+			}
 
 			//Check to see if model stats should be reported
-			if(simulatedTime % (timeStep * 200) == 0) {
+			if(simulatedTime >= nextReport && report) {
 				int avgTimeStep = 0;
-				if(simulatedTime != 0) {
-					avgTimeStep = (int) realTime / (simulatedTime / timeStep);
+				if(steps != 0) {
+					avgTimeStep = (int) (realTime / steps);
 				}
 				//Total up the water in the system
-				double totalWater = 0;
-				for(int x = 0; x < workers.length; x++) {
-					totalWater += workers[x].getTotalWater();
+				double totalWater = balance.getTotal();
+				if(surfaceCell == null) {
+					surfaceCell = getSurfaceCell();
 				}
-				for(int z = 0; z < reservoirs.length; z++) {
-					for(int y = 0; y < reservoirs[0][0].length; y++) {
-						for(int x = 0; x < reservoirs[0].length; x++) {
-							totalWater += reservoirs[z][x][y];
-						}
-					}
-				}
-				Cell c = getSurfaceCell();
+				Cell c = surfaceCell;
 
 
 				println(totalWater + " mL");
 				println(c.getWaterVolume() + " mL in " + c.getCoordinate());
-				println(simulatedTime + " s");
+				println(getSimulatedTime() + " s");
 				println(avgTimeStep + " ms\n");
 			}
+			if(simulatedTime >= nextReport) {
+				nextReport += timeStep * 200;
+			}
 			
 			//Flow between farms every 15 time steps
-			if(simulatedTime % (timeStep * 15) == 0 && simulatedTime != 0) {
-			  flowOutOfFarm();
+			if(simulatedTime >= nextFlowOut) {
+				if(simulatedTime != 0 && flowOut) {
+					start = System.nanoTime();
+					flowOutOfFarm();
+					metrics.record(FlowMetrics.Timer.FLOW_OUT, System.nanoTime() - start);
+				}
+				nextFlowOut += timeStep * 15;
 			}
 			
 			//This tests if my rain method works correctly
-			if(simulatedTime % (timeStep * 1000) == 0 && includeRain) {
-			  rain(11); //11 mL per cell
+			if(simulatedTime >= nextRain) {
+				if(includeRain) {
+					start = System.nanoTime();
+					rain(rainPerCell);
+					metrics.record(FlowMetrics.Timer.RAIN, System.nanoTime() - start);
+				}
+				nextRain += timeStep * 1000;
 			}
 
-			synchronized(grid) {
-				this.update();
+			//Plants drink once per day
+			plantDay = simulatedTime >= nextPlantDay;
+			if(plantDay) {
+				nextPlantDay += DAY;
 			}
-			synchronized(simulatedTime) {
-				simulatedTime += this.timeStep;
+
+			synchronized(store) {
+				if(adaptive) {
+					adaptiveUpdate(end);
+				}
+				else {
+					flowScale = 1;
+					this.update();
+					simulatedTime += stepSize;
+				}
 			}
+			steps++;
 			realTime += (System.currentTimeMillis() - time);
+			metrics.stepTaken(simulatedTime - stepTime, (long) active.activeCount * store.getZCount());
+			metrics.record(FlowMetrics.Timer.STEP, System.nanoTime() - stepStart);
+		}
+
+		if(allocated >= 0) {
+			metrics.addMasterAllocation(metrics.currentThreadAllocatedBytes() - allocated);
 		}
 	}
-	
+
+
+	/**
+	 * Runs one adaptive time step. The flows are calculated for the longest step that doesn't pass the next event,
+	 *  then scaled down if that would drain any cell by more than MAX_OUTFLOW_FRACTION. Since every flow is
+	 *  proportional to the time step, scaling keeps the water balanced.
+	 * @param end the simulated time that the current update stops at
+	 */
+	private void adaptiveUpdate(double end) {
+		double boundary = Math.min(Math.min(nextReport, nextFlowOut), Math.min(nextRain, end));
+		if(includePlants) {
+			boundary = Math.min(boundary, nextPlantDay);
+		}
+		stepSize = Math.min(desiredStep, boundary - simulatedTime);
+		flowScale = 1;
+
+		this.update();
+
+		if(flowScale < 1) {
+			simulatedTime += stepSize * flowScale;
+			desiredStep = Math.max(minStep, stepSize * flowScale);
+		}
+		else {
+			//Land exactly on the event instead of a rounding error away from it
+			simulatedTime = stepSize == boundary - simulatedTime ? boundary : simulatedTime + stepSize;
+			if(stepSize == desiredStep) {
+				desiredStep = Math.min(maxStep, desiredStep * 2);
+			}
+		}
+	}
+
+
 	private Cell getSurfaceCell() {
 		for(int k = 0; k < farm.zCellCount; k++) {
-			for(int j = 0; j < Farm.yCellCount; j++) {
-				for(int x = 0; x < Farm.xCellCount; x++) {
-					if(grid[x][j][k].isSurface()) {
-						return grid[x][j][k];
+			for(int j = 0; j < store.getYCount(); j++) {
+				for(int x = 0; x < store.getXCount(); x++) {
+					if(store.isSurface(store.index(x, j, k))) {
+						return farm.getGrid()[x][j][k];
 					}
 				}
 			}
@@ -137,78 +465,451 @@ public class WaterFlow {
 
 	/** Runs the model for one time step */
 	private void update() {
-		//Tell the workers to start the hydraulic head/percent saturation calculations
-		for(int i = 0; i < 4; i++) {
-			workers[i].startCalculations();
+		//Work out which columns can change during this time step
+		active.beginStep();
+		if(includePlants && plantDay) {
+			active.includeAllHeads();
 		}
-		//Wait for calculations to complete
-		while(finishedWorkers < 4) {
-			try{Thread.sleep(1);}
-			catch(InterruptedException e){}
+
+		//Have the workers do the hydraulic head/percent saturation calculations
+		runPhase(PhaseScheduler.Phase.HEAD);
+
+		//Adaptive steps need every flow before any can be applied, so they can't use the fused kernel
+		if(fused && !adaptive) {
+			//Columns that aren't visited keep whatever is in the second buffer, so it has to start out as a copy
+			if(nextStale) {
+				System.arraycopy(store.getWaterVolumes(), 0, waterNext, 0, waterNext.length);
+				nextStale = false;
+			}
+
+			//Calculate the flows and the new water in one sweep, then make the new water current
+			runPhase(PhaseScheduler.Phase.FUSED);
+			waterNext = store.swapWaterVolumes(waterNext);
 		}
-		finishedWorkers = 0;
+		else {
+			//Once heads/saturations have been calculated, have the workers do the flow calculations
+			runPhase(PhaseScheduler.Phase.FLUX);
+			if(adaptive) {
+				limitFlows();
+			}
 
+			//Once the flow calculations have completed, have the workers update the water
+			runPhase(PhaseScheduler.Phase.APPLY);
+			nextStale = true;
+		}
+		long start = System.nanoTime();
+		moveToReservoirs();
+		metrics.record(FlowMetrics.Timer.RESERVOIRS, System.nanoTime() - start);
+
+		//The apply phase zeroes out the change of every cell it updates
+		active.endStep();
+	}
 
-		//Once heads/saturations have been calculated, tell the workers to start flow calculations
-		for(int i = 0; i < 4; i++) {
-			workers[i].startCalculations();
+
+	/**
+	 * Works out how much of the calculated flows can happen without any cell losing more than MAX_OUTFLOW_FRACTION of
+	 *  its water, never going below the minimum time step
+	 */
+	private void limitFlows() {
+		double ratio = 0;
+		for(int i = 0; i < workers.length; i++) {
+			ratio = Math.max(ratio, workers[i].getMaxOutflowRatio());
 		}
-		//Wait for the calculations to complete
-		while(finishedWorkers < 4) {
-			try{Thread.sleep(1);}
-			catch(InterruptedException e){}
+		if(ratio > MAX_OUTFLOW_FRACTION) {
+			flowScale = Math.min(1, Math.max(MAX_OUTFLOW_FRACTION / ratio, minStep / stepSize));
 		}
-		finishedWorkers = 0;
+	}
 
 
-		//Once the flow calculations have completed, tell the workers to update the water
-		for(int i = 0; i < 4; i++) {
-			workers[i].startCalculations();
+	/** Adds the water that flowed out of the edge of the farm during this step to the reservoirs */
+	private void moveToReservoirs() {
+		double outflow = 0;
+		for(int d = 0; d < reservoirs.length; d++) {
+			double side = 0;
+			for(int x = 0; x < reservoirs[d].length; x++) {
+				for(int z = 0; z < reservoirs[d][x].length; z++) {
+					if(reservoirFlow[d][x][z] != 0) {
+						double amount = flowScale * reservoirFlow[d][x][z];
+						reservoirs[d][x][z] += amount;
+						outflow += amount;
+						side += amount;
+						reservoirFlow[d][x][z] = 0;
+					}
+				}
+			}
+			sideOutflow[d] += side;
 		}
-		//Wait for the calculations to complete
-		while(finishedWorkers < 4) {
-			try{Thread.sleep(1);}
-			catch(InterruptedException e){}
+		balance.addOutflow(outflow);
+	}
+
+
+	/** @return the time step in seconds that the flows of the current step are calculated with */
+	double getStepSize() {
+		return stepSize;
+	}
+
+
+	/** @return the fraction of the calculated flows that happen in the current step */
+	double getFlowScale() {
+		return flowScale;
+	}
+
+
+	/** @return the buffer that the fused kernel writes new water volumes into */
+	double[] getNextWaterVolumes() {
+		return waterNext;
+	}
+
+
+	/** @return the hydraulic conductivity of each cell, or null if the row kernel isn't used */
+	double[] getConductivities() {
+		return rowKernel ? conductivity : null;
+	}
+
+
+	/** @return the water adhesion of each cell, or null if the row kernel isn't used */
+	double[] getAdhesions() {
+		return rowKernel ? adhesion : null;
+	}
+
+
+	/** @return true if plants drink during the current step */
+	boolean isPlantDay() {
+		return plantDay;
+	}
+
+
+	/**
+	 * Scans the whole grid for columns that have water that can move or water waiting to be added. The soils may have
+	 *  changed as well, so the row kernel's soil properties are looked up again.
+	 */
+	void refreshActiveColumns() {
+		if(rowKernel) {
+			FlowWorker.soilProperties(store.getSoils(), store.getValidMask(), conductivity, adhesion);
 		}
-		finishedWorkers = 0;
+
+		boolean[] valid = store.getValidMask();
+		double[] water = store.getWaterVolumes();
+		byte[] soil = store.getSoils();
+		int columns = store.getXCount() * store.getYCount();
+		boolean[] wet = wetColumns;
+		Arrays.fill(wet, false);
+		for(int c = 0; c < water.length; c++) {
+			if(valid[c] && (change[c] != 0 || FlowWorker.canGive(water[c], soil[c]))) {
+				wet[c % columns] = true;
+			}
+		}
+		active.reset(wet);
+	}
+
+
+	/**
+	 * Runs one time step without any of the events around it and without advancing the simulated time. Only meant for
+	 *  benchmarking.
+	 */
+	void step() {
+		flowScale = 1;
+		update();
+	}
 
 
-		//Zero out my arrays
-		reset(change);
-		reset(hydraulicHead);
-		reset(percentSaturation);
+	/**
+	 * Runs one phase of a time step by itself. Only meant for benchmarking the phases separately, since a phase on its
+	 *  own doesn't leave the model in a consistent state.
+	 * @param phase the phase to run
+	 */
+	void runSinglePhase(PhaseScheduler.Phase phase) {
+		flowScale = 1;
+		active.beginStep();
+		runPhase(phase);
+	}
+
+
+	/**
+	 * Runs one phase over every tile, either on the worker threads or on this thread
+	 * @param phase the phase to run
+	 */
+	private void runPhase(PhaseScheduler.Phase phase) {
+		long start = System.nanoTime();
+		nextTile.set(0);
+		if(pool == null) {
+			workers[0].runPhase(phase);
+		}
+		else {
+			scheduler.runPhase(phase);
+		}
+		long end = System.nanoTime();
+		metrics.record(PHASE_TIMERS[phase.ordinal()], end - start);
+		metrics.phaseFinished(end);
+		for(int i = 0; i < workers.length; i++) {
+			balance.addFlow(workers[i].getAppliedFlow());
+			balance.addPlantUptake(workers[i].getPlantUptake());
+		}
+	}
+
+
+	/**
+	 * Hands out the tiles of the current phase to the workers, one at a time
+	 * @param phase the phase being run
+	 * @return the next tile to calculate, or null if every tile has been taken
+	 */
+	Tile nextTile(PhaseScheduler.Phase phase) {
+		Tile[] list = phase == PhaseScheduler.Phase.HEAD ? columns : tiles;
+		int t = nextTile.getAndIncrement();
+		return t < list.length ? list[t] : null;
+	}
+
+
+	/**
+	 * Copies the state of the model so that the run can be continued later with {@link #restore(Checkpoint)}, even in
+	 *  another process after {@link Checkpoint#write(File)}. Only call this between updates, or from the thread that
+	 *  calls update.
+	 * @return a copy of the model's state
+	 */
+	public Checkpoint checkpoint() {
+		Checkpoint cp = new Checkpoint();
+		synchronized(store) {
+			cp.copyGrid(store);
+			cp.latitude = farm.getLatitude();
+			cp.longitude = farm.getLongitude();
+			cp.relief = farm.getRelief();
+			cp.change = change.clone();
+			synchronized(reservoirs) {
+				cp.reservoirs = new double[reservoirs.length][reservoirs[0].length][];
+				for(int d = 0; d < reservoirs.length; d++) {
+					for(int x = 0; x < reservoirs[d].length; x++) {
+						cp.reservoirs[d][x] = reservoirs[d][x].clone();
+					}
+				}
+			}
+			cp.ledger = new double[WaterBalance.LEDGER_SIZE];
+			balance.copyTo(cp.ledger);
+
+			cp.timeStep = timeStep;
+			cp.adaptive = adaptive;
+			cp.minStep = minStep;
+			cp.maxStep = maxStep;
+			cp.stepSize = stepSize;
+			cp.desiredStep = desiredStep;
+			cp.simulatedTime = simulatedTime;
+			cp.nextReport = nextReport;
+			cp.nextFlowOut = nextFlowOut;
+			cp.nextRain = nextRain;
+			cp.nextPlantDay = nextPlantDay;
+			cp.steps = steps;
+			cp.realTime = realTime;
+		}
+		return cp;
+	}
+
+
+	/**
+	 * Picks up a run where a checkpoint left off. The model has to have been made for the Farm built by
+	 *  {@link Checkpoint#createFarm()}, or one with the same grid. The water, plants, reservoirs, water balance, time
+	 *  step settings and clock are all put back, so updating afterwards gives exactly the same results as the run
+	 *  that made the checkpoint would have. To end at the same time as that run, update it for the original end time
+	 *  minus {@link Checkpoint#getSimulatedTime()}. Only call this between updates.
+	 * @param cp the checkpoint to continue from
+	 */
+	public void restore(Checkpoint cp) {
+		if(cp.xCount != store.getXCount() || cp.yCount != store.getYCount() || cp.zCount != store.getZCount() ||
+		   cp.reservoirs.length != reservoirs.length || cp.reservoirs[0].length != reservoirs[0].length ||
+		   cp.reservoirs[0][0].length != reservoirs[0][0].length) {
+			throw new IllegalArgumentException("The checkpoint is for a " + cp.xCount + "x" + cp.yCount + "x" +
+			                                   cp.zCount + " grid, not " + store.getXCount() + "x" +
+			                                   store.getYCount() + "x" + store.getZCount());
+		}
+
+		synchronized(store) {
+			System.arraycopy(cp.water, 0, store.getWaterVolumes(), 0, cp.water.length);
+			System.arraycopy(cp.change, 0, change, 0, cp.change.length);
+			nextStale = true;
+			cp.restorePlants();
+			synchronized(reservoirs) {
+				for(int d = 0; d < reservoirs.length; d++) {
+					for(int x = 0; x < reservoirs[d].length; x++) {
+						System.arraycopy(cp.reservoirs[d][x], 0, reservoirs[d][x], 0, reservoirs[d][x].length);
+					}
+				}
+			}
+			balance.copyFrom(cp.ledger);
+
+			timeStep = cp.timeStep;
+			adaptive = cp.adaptive;
+			minStep = cp.minStep;
+			maxStep = cp.maxStep;
+			stepSize = cp.stepSize;
+			desiredStep = cp.desiredStep;
+			simulatedTime = cp.simulatedTime;
+			nextReport = cp.nextReport;
+			nextFlowOut = cp.nextFlowOut;
+			nextRain = cp.nextRain;
+			nextPlantDay = cp.nextPlantDay;
+			steps = cp.steps;
+			realTime = cp.realTime;
+			nextCheckpoint = simulatedTime + checkpointInterval;
+		}
+	}
+
+
+	/**
+	 * Waits for the checkpoint being written in the background, if there is one
+	 * @throws IOException if the checkpoint couldn't be written
+	 */
+	public void awaitCheckpoint() throws IOException {
+		if(checkpointWrite == null) {
+			return;
+		}
+		try {
+			checkpointWrite.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a checkpoint to be written", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Could not write a checkpoint to " + checkpointFile, e.getCause());
+		}
+		finally {
+			checkpointWrite = null;
+		}
+	}
+
+
+	/**
+	 * Copies the model's state and hands it to the background writer once the previous checkpoint is done. A
+	 *  checkpoint that can't be written stops the update, since the run could otherwise go on for months without one.
+	 */
+	private void writeCheckpoint() {
+		try {
+			awaitCheckpoint();
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e.getMessage(), e.getCause());
+		}
+
+		final Checkpoint cp = checkpoint();
+		final File file = checkpointFile;
+		checkpointWrite = checkpointWriter.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				cp.write(file);
+				return null;
+			}
+		});
+	}
+
+
+	/**
+	 * The metrics are recorded as the model runs. Call {@link FlowMetrics#register(String)} on them to read them
+	 *  through JMX.
+	 * @return the timers and counters of this model
+	 */
+	public FlowMetrics getMetrics() {
+		return metrics;
+	}
+
+
+	/**
+	 * The ledger is kept up to date as the model runs, so reading it doesn't cost anything
+	 * @return the running account of the water entering, leaving and stored in the farm
+	 */
+	public WaterBalance getWaterBalance() {
+		return balance;
+	}
+
+
+	/**
+	 * Starts the water balance over from the water that is in the farm right now. Call this after changing the water
+	 *  in the cells from outside of this class. Only call this between time steps.
+	 */
+	public void resetWaterBalance() {
+		boolean[] valid = store.getValidMask();
+		double[] water = store.getWaterVolumes();
+		double stored = 0;
+		for(int c = 0; c < water.length; c++) {
+			if(valid[c]) {
+				stored += water[c] + change[c];
+			}
+		}
+		double inReservoirs = 0;
+		for(int d = 0; d < reservoirs.length; d++) {
+			for(int x = 0; x < reservoirs[d].length; x++) {
+				for(int z = 0; z < reservoirs[d][x].length; z++) {
+					inReservoirs += reservoirs[d][x][z];
+				}
+			}
+		}
+		balance.reset(stored, inReservoirs);
+	}
+
+
+	/**
+	 * Walks the whole grid, so {@link #getWaterBalance()} is the cheaper way to keep track of the water. Only call
+	 *  this between time steps.
+	 * @return the total amount of water in the farm and its reservoirs
+	 */
+	public double getTotalWater() {
+		double totalWater = 0;
+		boolean[] valid = store.getValidMask();
+		double[] water = store.getWaterVolumes();
+		for(int c = 0; c < water.length; c++) {
+			if(valid[c]) {
+				totalWater += water[c];
+			}
+		}
+		for(int z = 0; z < reservoirs.length; z++) {
+			for(int y = 0; y < reservoirs[0][0].length; y++) {
+				for(int x = 0; x < reservoirs[0].length; x++) {
+					totalWater += reservoirs[z][x][y];
+				}
+			}
+		}
+		return totalWater;
 	}
 
 
 	/** Sends the server water that it will carry to a different farm */
 	private void flowOutOfFarm() {    
-		FlowData north = new FlowData(Direction.NORTH, reservoirs[0]);
-		FlowData east  = new FlowData(Direction.EAST,  reservoirs[1]);
-		FlowData south = new FlowData(Direction.SOUTH, reservoirs[2]);
-		FlowData west  = new FlowData(Direction.WEST,  reservoirs[3]);
-
-		flowIntoFarm(north);
-		flowIntoFarm(east);
-		flowIntoFarm(south);
-		flowIntoFarm(west);
-		
+		flowIntoFarm(Direction.NORTH, reservoirs[0]);
+		flowIntoFarm(Direction.EAST,  reservoirs[1]);
+		flowIntoFarm(Direction.SOUTH, reservoirs[2]);
+		flowIntoFarm(Direction.WEST,  reservoirs[3]);
+		sendReservoirs();
+	}
+
+
+	/** Empties the reservoirs once their water has been given to other farms */
+	void sendReservoirs() {
 		synchronized(reservoirs) {
 			reset(reservoirs);
+			balance.sendReservoirs();
 		}
 	}
 
 
 	/**
-	 * Sets a Double[][][] array to all 0s
+	 * @param flowOut false if something else takes the water out of the reservoirs, like a World, instead of this
+	 *                farm feeding it back into itself every 15 time steps
+	 */
+	void setFlowOut(boolean flowOut) {
+		this.flowOut = flowOut;
+	}
+
+
+	/** @return the water that has flowed out of each side of the farm since it was last sent, indexed [side][x][z] */
+	double[][][] getReservoirs() {
+		return reservoirs;
+	}
+
+
+	/**
+	 * Sets a double[][][] array to all 0s
 	 * @param array the array to be reset
 	 */
-	private void reset(Double[][][] array) {
-		//Reset the change holder
-		for(int k = 0; k < array[0][0].length; k++) {
-			for(int j = 0; j < array[0].length; j++) {
-				for(int i = 0; i < array.length; i++) {
-					array[i][j][k] = new Double(0);
-				}
+	private void reset(double[][][] array) {
+		for(int i = 0; i < array.length; i++) {
+			for(int j = 0; j < array[i].length; j++) {
+				Arrays.fill(array[i][j], 0);
 			}
 		}
 	}
@@ -222,21 +923,7 @@ public class WaterFlow {
 	 * @return the percent saturation of the cell
 	 */
 	protected double getPercentSaturation(int x, int y, int z) {
-		return percentSaturation[x][y][z];
-	}
-
-
-	/**
-	 * Sets a given cell to have a given percent saturation
-	 * @param x   x coordinate of cell
-	 * @param y   y coordinate of cell
-	 * @param z   z coordinate of cell
-	 * @param sat percent saturation of cell
-	 */
-	protected void setPercentSaturation(int x, int y, int z, Double sat) {
-		synchronized(this.percentSaturation[x][y][z]) {
-			this.percentSaturation[x][y][z] = sat;
-		}
+		return percentSaturation[store.index(x, y, z)];
 	}
 
 
@@ -248,21 +935,7 @@ public class WaterFlow {
 	 * @return the hydraulic head of the cell
 	 */
 	protected double getHydraulicHead(int x, int y, int z) {
-		return hydraulicHead[x][y][z];
-	}
-
-
-	/**
-	 * Sets a given cell to have a given hydraulic head
-	 * @param x    x coordinate of cell
-	 * @param y    y coordinate of cell
-	 * @param z    z coordinate of cell
-	 * @param head hydraulic head of cell
-	 */
-	protected void setHydraulicHead(int x, int y, int z, Double head) {
-		synchronized(this.hydraulicHead[x][y][z]) {
-			this.hydraulicHead[x][y][z] = head;
-		}
+		return hydraulicHead[store.index(x, y, z)];
 	}
 
 
@@ -271,19 +944,17 @@ public class WaterFlow {
 	 * @param waterPerCell the amount of water that each surface cell receives from the rain
 	 */
 	public void rain(double waterPerCell) {
-		for(int k = 0; k < farm.getZCellCount(); k++) {
-			for(int j = 0; j < Farm.yCellCount; j++) {
-				for(int i = 0; i < Farm.xCellCount; i++) {
-					if(grid[i][j][k] == null || !grid[i][j][k].isSurface()) {
-						continue;
-					}
-						
-					synchronized(change[i][j][k]) {
-					  change[i][j][k] += waterPerCell;
-					}
-				}
+		boolean[] surface = store.getSurfaceMask();
+		int columns = store.getXCount() * store.getYCount();
+		int cells = 0;
+		for(int c = 0; c < change.length; c++) {
+			if(surface[c]) {
+				change[c] += waterPerCell;
+				active.markWet(c % columns);
+				cells++;
 			}
 		}
+		balance.addRain(waterPerCell * cells);
 	}
 
 
@@ -292,86 +963,120 @@ public class WaterFlow {
 	 * @param data the water to be put into the farm
 	 */
 	public void flowIntoFarm(FlowData data) {
+		double[][] water = new double[data.water.length][];
+		for(int i = 0; i < water.length; i++) {
+			water[i] = new double[data.water[i].length];
+			for(int k = 0; k < water[i].length; k++) {
+				water[i][k] = data.water[i][k];
+			}
+		}
+		flowIntoFarm(data.direction, water);
+	}
+
+
+	/**
+	 * Takes water from another Farm and puts it into this Farm. Allocates nothing, so it can be used every time step.
+	 * @param direction the direction that the water is coming from
+	 * @param water the water to be put into the farm, indexed [position along the edge][z]
+	 * @return the water that made it into a cell, in milliliters. Water past the edge or the top layer of this farm, or
+	 *         aimed at air, is not taken
+	 */
+	public double flowIntoFarm(Direction direction, double[][] water) {
 		int minX, maxX;
 		int minY, maxY;
 
 		//Flow to the opposite side that the water is coming from
-		if(data.direction == Direction.NORTH) {
+		if(direction == Direction.NORTH) {
 			minX = 0;
-			maxX = Farm.xCellCount;
+			maxX = store.getXCount();
 			minY = 0;
 			maxY = 1;
 		}
-		else if(data.direction == Direction.EAST) {
+		else if(direction == Direction.EAST) {
 			minX = 0;
 			maxX = 1;
 			minY = 0;
-			maxY = Farm.yCellCount;
+			maxY = store.getYCount();
 		}
-		else if(data.direction == Direction.SOUTH) {
+		else if(direction == Direction.SOUTH) {
 			minX = 0;
-			maxX = Farm.xCellCount;
-			minY = Farm.yCellCount - 1;
-			maxY = Farm.yCellCount;
+			maxX = store.getXCount();
+			minY = store.getYCount() - 1;
+			maxY = store.getYCount();
 		}
-		else if(data.direction == Direction.WEST) {
-			minX = Farm.xCellCount - 1;
-			maxX = Farm.xCellCount;
+		else if(direction == Direction.WEST) {
+			minX = store.getXCount() - 1;
+			maxX = store.getXCount();
 			minY = 0;
-			maxY = Farm.yCellCount;
+			maxY = store.getYCount();
 		}
 		else {
-			return; //There's a problem if water is flowing from somewhere besides the 4 cardinal directions
+			return 0; //There's a problem if water is flowing from somewhere besides the 4 cardinal directions
 		}
 		
+		double added = 0;
 		int maxZ = farm.zCellCount;
 		for(int k = 0; k < maxZ; k++) {
 			for(int j = minY; j < maxY; j++) {
 				for(int i = minX; i < maxX; i++) {
-					if(grid[i][j][k] == null) {
+					int c = store.index(i, j, k);
+					if(!store.isValid(c)) {
 					  continue;
 					}
 					  
 					int index;
-					if(data.direction == Direction.NORTH || data.direction == Direction.SOUTH) {
+					if(direction == Direction.NORTH || direction == Direction.SOUTH) {
 						index = i;
 					}
 					else {
 						index = j;
 					}
 						
-					if(data.water.length <= index || data.water[0].length <= k) {
+					if(water.length <= index || water[0].length <= k) {
 						continue;
 					}
 
-					synchronized(change[i][j][k]) {
-						change[i][j][k] += data.water[index][k];
-					}
+					change[c] += water[index][k];
+					added += water[index][k];
+					active.markWet(j * store.getXCount() + i);
 				}
 			}
 		}
-		
-	}
-
 
-	/** @return the amount of simulated time that has elapsed */
-	public int getSimulatedTime() {
-		synchronized(simulatedTime) {
-			return simulatedTime;
-		}
+		//Water that lands on air is lost, so only the water that made it into a cell counts
+		balance.addInflow(added);
+		return added;
 	}
 
 
-	/** Lets a worker thread tell the master that it's done */
-	protected synchronized void workerDone() {
-		finishedWorkers++;
+	/** @return the amount of simulated time that has elapsed, in whole seconds */
+	public int getSimulatedTime() {
+		return (int) simulatedTime;
 	}
 
 
-	/** Lets all the worker threads die */
-	public void kill() {
-		for(int i = 0; i < workers.length; i++) {
-			workers[i].kill();
+	/** Stops all the worker threads and waits for them to finish. The model can't be updated afterwards. */
+	public void shutdown() {
+		metrics.unregister();
+		if(checkpointWriter != null) {
+			checkpointWriter.shutdown(); //Lets the last checkpoint finish writing
+			try {
+				checkpointWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(pool == null) {
+			return;
+		}
+		scheduler.shutdown();
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -384,7 +1089,7 @@ public class WaterFlow {
 		print("  ...topography : ");
 		Farm farm = Topography.createFarm(1000, 1000); //ABQ lat/lon Topography.createFarm(35.0844, 106.6506);
 		println((System.currentTimeMillis() - time) + " ms");
-		println("    " + (farm.getZCellCount() * Farm.xCellCount * Farm.yCellCount) + " cells in system");
+		println("    " + (farm.getZCellCount() * farm.getXCellCount() * farm.getYCellCount()) + " cells in system");
 
 		time = System.currentTimeMillis();
 
@@ -395,8 +1100,8 @@ public class WaterFlow {
 		// .1/IDEA/Java/Groundwater_Flow/src/XML_Handler/FarmSetup.xml");
 		Cell[][][] grid = farm.getGrid();
 		for(int k = 0; k < farm.zCellCount; k++) {
-			for(int j = 0; j < Farm.yCellCount; j++) {
-				for(int i = 0; i < Farm.xCellCount; i++) {
+			for(int j = 0; j < farm.getYCellCount(); j++) {
+				for(int i = 0; i < farm.getXCellCount(); i++) {
 					if(grid[i][j][k] != null) {
 						grid[i][j][k].setSoil(Soil.GILASAND);
 						if(startWithWater && rand.nextDouble() < .75) {
@@ -427,14 +1132,14 @@ public class WaterFlow {
 
 		time = System.currentTimeMillis();
 		water.update(18408206); //8 months = 21037950 seconds //7 months = 18408206 seconds
-		println("Simulated " + water.simulatedTime + " seconds in " + (System.currentTimeMillis() - time) / 1000 + " " +
+		println("Simulated " + water.getSimulatedTime() + " seconds in " + (System.currentTimeMillis() - time) / 1000 + " " +
 		        "seconds");
 
 		println("\nWaiting");
 		try{Thread.sleep(2500);}
 		catch(InterruptedException e){}
 
-		water.kill();
+		water.shutdown();
 		println("done");
 	}
 
@@ -0,0 +1,331 @@
+package flow;
+
+import cell.*;
+import topo.Topography;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A World is a mosaic of farms laid out next to each other, with the water that flows off the edge of one farm flowing
+ * into the farm next to it. Farm [a][b] has farm [a + 1][b] to its east and farm [a][b + 1] to its north.<p />
+ * The farms are advanced together in rounds of a few time steps. During a round every farm runs on its own, one farm
+ * per thread of a fixed pool, collecting what flows off its edges in its reservoirs. Between rounds every farm takes
+ * the water in the facing reservoirs of its four neighbours, which serve as the halo: they are allocated once with
+ * the farm and read in place, so nothing is copied or allocated to move the water. Water that flows off the edge of
+ * the world is lost, unless the world wraps around, in which case the farms on opposite edges are neighbours. Water
+ * that a farm can't take in, because it is aimed at air or at layers deeper than the farm has, is lost too.
+ */
+public class World {
+	private static final Direction[] SIDES = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
+
+	private final WaterFlow[][]   flows;
+	private final int             xFarms, yFarms;
+	private final int             exchangeSteps; //Time steps between exchanges
+	private final boolean         wrap;
+	private final long            cells; //Cells that are not air, in every farm
+	private final ExecutorService pool;
+	private final List<Callable<Void>> advance;  //One task per farm, run each round
+	private final List<Callable<Void>> exchange; //One task per farm, run between rounds
+	private double                roundSeconds; //Simulated time of the current round
+	private double                lost; //mL. Water that has flowed off the edge of the world or couldn't be taken in
+	private final double[]        unabsorbed; //mL. Water each farm couldn't take in during the last exchange
+	private long                  steps;
+	private long                  nanos; //Wall-clock time spent updating
+
+
+	/**
+	 * Creates a world out of the given farms. Every farm gets a WaterFlow that runs on the thread advancing it.
+	 * @param farms the farms, indexed [x][y]
+	 * @param threads the amount of farms to advance at the same time, usually the amount of processors
+	 * @param exchangeSteps the amount of time steps between exchanges of water between farms
+	 * @param wrap true if the farms on opposite edges of the world are neighbours
+	 */
+	public World(Farm[][] farms, int threads, int exchangeSteps, boolean wrap) {
+		if(threads < 1 || exchangeSteps < 1) {
+			throw new IllegalArgumentException("Invalid world: " + threads + " threads, exchanges every " +
+			                                   exchangeSteps + " time steps");
+		}
+		this.xFarms = farms.length;
+		this.yFarms = farms[0].length;
+		this.exchangeSteps = exchangeSteps;
+		this.wrap = wrap;
+		this.flows = new WaterFlow[xFarms][yFarms];
+		this.advance = new ArrayList<Callable<Void>>(xFarms * yFarms);
+		this.exchange = new ArrayList<Callable<Void>>(xFarms * yFarms);
+		this.unabsorbed = new double[xFarms * yFarms];
+
+		long cells = 0;
+		for(int a = 0; a < xFarms; a++) {
+			for(int b = 0; b < yFarms; b++) {
+				final WaterFlow flow = new WaterFlow(farms[a][b], 1, 0, 0, 1);
+				flow.setReport(false);
+				flow.setFlowOut(false);
+				flows[a][b] = flow;
+
+				boolean[] valid = farms[a][b].getStore().getValidMask();
+				for(int c = 0; c < valid.length; c++) {
+					if(valid[c]) {
+						cells++;
+					}
+				}
+			}
+		}
+		this.cells = cells;
+
+		for(int a = 0; a < xFarms; a++) {
+			for(int b = 0; b < yFarms; b++) {
+				final WaterFlow flow = flows[a][b];
+				//The neighbour that each side's water comes from, or null at the edge of the world
+				final WaterFlow[] from = {neighbour(a, b - 1), neighbour(a - 1, b), neighbour(a, b + 1),
+				                          neighbour(a + 1, b)};
+				final int farm = a * yFarms + b;
+				advance.add(new Callable<Void>() {
+					public Void call() {
+						flow.update(roundSeconds);
+						return null;
+					}
+				});
+				exchange.add(new Callable<Void>() {
+					public Void call() {
+						unabsorbed[farm] = receive(flow, from);
+						return null;
+					}
+				});
+			}
+		}
+
+		this.pool = Executors.newFixedThreadPool(Math.min(threads, xFarms * yFarms), new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "World-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * @param a the x index of a farm, possibly off the edge of the world
+	 * @param b the y index of a farm, possibly off the edge of the world
+	 * @return the farm's model, wrapped around if the world wraps, or null if it is off the edge
+	 */
+	private WaterFlow neighbour(int a, int b) {
+		if(wrap) {
+			a = (a + xFarms) % xFarms;
+			b = (b + yFarms) % yFarms;
+		}
+		else if(a < 0 || a >= xFarms || b < 0 || b >= yFarms) {
+			return null;
+		}
+		return flows[a][b];
+	}
+
+
+	/**
+	 * Puts the water that flowed toward a farm during the last round into it. A north reservoir holds what flowed
+	 *  off the north edge, which comes in along the south edge of the farm to the north, and so on. Only reads the
+	 *  neighbours' reservoirs, so every farm can receive at the same time.
+	 * @param flow the farm receiving the water
+	 * @param from the neighbour whose reservoir on each side faces the farm, indexed like SIDES, or null
+	 * @return the water in the facing reservoirs that the farm couldn't take in, in milliliters
+	 */
+	private static double receive(WaterFlow flow, WaterFlow[] from) {
+		double unabsorbed = 0;
+		for(int d = 0; d < SIDES.length; d++) {
+			if(from[d] != null) {
+				double[][] reservoir = from[d].getReservoirs()[d];
+				double sent = 0;
+				for(double[] column : reservoir) {
+					for(double w : column) {
+						sent += w;
+					}
+				}
+				unabsorbed += sent - flow.flowIntoFarm(SIDES[d], reservoir);
+			}
+		}
+		return unabsorbed;
+	}
+
+
+	/**
+	 * Runs every farm for the given amount of simulated time, exchanging water between them along the way
+	 * @param seconds the simulated time to run for
+	 * @throws InterruptedException if the thread is interrupted while waiting for the farms
+	 */
+	public void update(double seconds) throws InterruptedException {
+		long start = System.nanoTime();
+		double round = exchangeSteps * flows[0][0].getStepSize();
+		WaterFlow first = flows[0][0];
+		double end = first.getSimulatedTime() + seconds;
+		while(first.getSimulatedTime() < end) {
+			long before = first.getMetrics().getSteps();
+			roundSeconds = Math.min(round, end - first.getSimulatedTime());
+			runAll(advance);
+			steps += first.getMetrics().getSteps() - before;
+
+			//Every farm has finished the round, so the reservoirs can be read
+			runAll(exchange);
+
+			//Every farm has taken its water, so the reservoirs can be emptied
+			for(int a = 0; a < xFarms; a++) {
+				for(int b = 0; b < yFarms; b++) {
+					lost += unabsorbed[a * yFarms + b];
+					if(!wrap) {
+						lost += edgeWater(a, b);
+					}
+					flows[a][b].sendReservoirs();
+				}
+			}
+		}
+		nanos += System.nanoTime() - start;
+	}
+
+
+	/**
+	 * @param a the x index of a farm
+	 * @param b the y index of a farm
+	 * @return the water in the farm's reservoirs that face the edge of the world
+	 */
+	private double edgeWater(int a, int b) {
+		double[][][] reservoirs = flows[a][b].getReservoirs();
+		boolean[] edge = {b == yFarms - 1, a == xFarms - 1, b == 0, a == 0};
+		double water = 0;
+		for(int d = 0; d < edge.length; d++) {
+			if(edge[d]) {
+				for(double[] column : reservoirs[d]) {
+					for(double w : column) {
+						water += w;
+					}
+				}
+			}
+		}
+		return water;
+	}
+
+
+	/**
+	 * Runs one task per farm on the pool and waits for all of them
+	 * @param tasks the tasks
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void runAll(List<Callable<Void>> tasks) throws InterruptedException {
+		for(Future<Void> future : pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			}
+			catch(ExecutionException e) {
+				throw new IllegalStateException("A farm failed", e.getCause());
+			}
+		}
+	}
+
+
+	/**
+	 * @param a the x index of a farm
+	 * @param b the y index of a farm
+	 * @return the model of the farm
+	 */
+	public WaterFlow getFlow(int a, int b) {
+		return flows[a][b];
+	}
+
+
+	/** @return the water in every farm and its reservoirs, in milliliters */
+	public double getTotalWater() {
+		double total = 0;
+		for(WaterFlow[] column : flows) {
+			for(WaterFlow flow : column) {
+				total += flow.getWaterBalance().getTotal();
+			}
+		}
+		return total;
+	}
+
+
+	/**
+	 * @return the water that has flowed off the edge of the world, or that a farm couldn't take in from its
+	 *         neighbour, in milliliters
+	 */
+	public double getLostWater() {
+		return lost;
+	}
+
+
+	/** @return the amount of time steps every farm has taken */
+	public long getSteps() {
+		return steps;
+	}
+
+
+	/** @return the cells of every farm that are not air */
+	public long getCells() {
+		return cells;
+	}
+
+
+	/** @return the cells updated per second of wall-clock time, counting every cell that isn't air once per step */
+	public double getCellsPerSecond() {
+		return nanos == 0 ? 0 : cells * steps / (nanos / 1e9);
+	}
+
+
+	/** Stops the threads */
+	public void shutdown() {
+		pool.shutdown();
+		for(WaterFlow[] column : flows) {
+			for(WaterFlow flow : column) {
+				flow.shutdown();
+			}
+		}
+	}
+
+
+	/** This should only be used for testing purposes */
+	public static void main(String[] args) throws InterruptedException {
+		int xFarms = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int yFarms = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 100000;
+
+		Farm[][] farms = new Farm[xFarms][yFarms];
+		for(int a = 0; a < xFarms; a++) {
+			for(int b = 0; b < yFarms; b++) {
+				farms[a][b] = Topography.createFarm(1000, 1000);
+				GridStore store = farms[a][b].getStore();
+				for(int c = 0; c < store.size(); c++) {
+					if(store.isValid(c)) {
+						store.setSoil(c, Soil.GILASAND);
+						store.setWaterVolume(c, 20);
+					}
+				}
+			}
+		}
+
+		World world = new World(farms, threads, 15, false);
+		double before = world.getTotalWater();
+		world.update(seconds);
+		System.out.println(xFarms + "x" + yFarms + " farms, " + world.getCells() + " cells, " + world.getSteps() +
+		                   " steps on " + threads + " thread(s): " + String.format("%.0f", world.getCellsPerSecond()) +
+		                   " cells/s");
+		double rain = 0, plants = 0;
+		for(int a = 0; a < xFarms; a++) {
+			for(int b = 0; b < yFarms; b++) {
+				rain += world.getFlow(a, b).getWaterBalance().getRain();
+				plants += world.getFlow(a, b).getWaterBalance().getPlantUptake();
+			}
+		}
+		double after = world.getTotalWater();
+		System.out.println("Water: " + before + " mL at the start, " + after + " mL at the end, " + rain +
+		                   " mL of rain, " + world.getLostWater() + " mL lost, error " +
+		                   (after - (before + rain - plants - world.getLostWater())) + " mL");
+		world.shutdown();
+	}
+}
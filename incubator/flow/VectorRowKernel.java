@@ -0,0 +1,93 @@
+package flow;
+
+import cell.GridStore;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A VectorRowKernel is a {@link RowKernel} whose loops are written with the Vector API, so they run on the widest
+ * SIMD registers the processor has whether or not the JIT compiler would have vectorized them. Every lane does the
+ * same operations in the same order as the scalar loops, so the results are the same to the bit. The cells at the end
+ * of a row that don't fill a whole vector are done by the scalar loops.<p />
+ * The Vector API is still incubating, so this is kept out of the other sources and has to be compiled and run with
+ * the module added:
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -cp classes -d classes incubator/flow/VectorRowKernel.java
+ * java --add-modules jdk.incubator.vector -cp classes ...
+ * </pre>
+ * {@link RowKernel#create} only uses it if both were done.
+ */
+final class VectorRowKernel extends RowKernel {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+
+	/**
+	 * Creates a kernel with its own row buffers. The arrays are shared with the other workers and only read.
+	 * @param store the GridStore holding the cells
+	 * @param conductivity the hydraulic conductivity of each cell, indexed like store
+	 * @param adhesion the water adhesion of each cell, indexed like store
+	 * @param percentSaturation the percent saturation of each cell, indexed like store
+	 * @param hydraulicHead the hydraulic head of each cell, indexed like store
+	 */
+	VectorRowKernel(GridStore store, double[] conductivity, double[] adhesion, double[] percentSaturation,
+	                double[] hydraulicHead) {
+		super(store, conductivity, adhesion, percentSaturation, hydraulicHead);
+	}
+
+
+	boolean isVector() {
+		return true;
+	}
+
+
+	void side(double[] water, double timeStep, int a, int b, int from, int to, double[] out) {
+		int f = from;
+		for(int end = from + SPECIES.loopBound(to - from); f < end; f += SPECIES.length()) {
+			int i = a + f;
+			int x = b + f;
+			DoubleVector iHead = DoubleVector.fromArray(SPECIES, hydraulicHead, i);
+			DoubleVector xHead = DoubleVector.fromArray(SPECIES, hydraulicHead, x);
+			DoubleVector iSatur = DoubleVector.fromArray(SPECIES, percentSaturation, i);
+			DoubleVector K = DoubleVector.fromArray(SPECIES, conductivity, i)
+			                             .add(DoubleVector.fromArray(SPECIES, conductivity, x)).div(2);
+			DoubleVector A = DoubleVector.fromArray(SPECIES, height, i).mul(cellSize);
+			//Where the head goes up the flow is thrown away, so Math.min's handling of -0 and NaN doesn't matter
+			DoubleVector min = iHead.sub(xHead).min(1);
+			DoubleVector amount = K.mul(A).mul(min).mul(timeStep).div(cellSize);
+
+			VectorMask<Double> flows = VectorMask.fromArray(SPECIES, valid, x)
+			        .and(DoubleVector.fromArray(SPECIES, water, i).compare(VectorOperators.GT, 0))
+			        .and(iSatur.compare(VectorOperators.GT, DoubleVector.fromArray(SPECIES, adhesion, i)))
+			        .and(iHead.compare(VectorOperators.GT, xHead))
+			        .and(DoubleVector.fromArray(SPECIES, percentSaturation, x).compare(VectorOperators.LT, .99));
+			DoubleVector.zero(SPECIES).blend(amount, flows).intoArray(out, f);
+		}
+		super.side(water, timeStep, a, b, f, to, out);
+	}
+
+
+	void up(double[] water, double timeStep, int a, int b, int from, int to, double[] out) {
+		int f = from;
+		for(int end = from + SPECIES.loopBound(to - from); f < end; f += SPECIES.length()) {
+			int i = a + f;
+			int x = b + f;
+			DoubleVector iSatur = DoubleVector.fromArray(SPECIES, percentSaturation, i);
+			DoubleVector xSatur = DoubleVector.fromArray(SPECIES, percentSaturation, x);
+			DoubleVector K = DoubleVector.fromArray(SPECIES, conductivity, i)
+			                             .add(DoubleVector.fromArray(SPECIES, conductivity, x)).div(2);
+			DoubleVector A = DoubleVector.broadcast(SPECIES, cellSize).mul(DoubleVector.fromArray(SPECIES, height, i));
+			DoubleVector satDif = iSatur.sub(xSatur).div(cellSize);
+			DoubleVector amount = K.mul(A).mul(satDif).mul(timeStep);
+
+			VectorMask<Double> flows = VectorMask.fromArray(SPECIES, valid, x)
+			        .and(DoubleVector.fromArray(SPECIES, water, i).compare(VectorOperators.GT, 0))
+			        .and(iSatur.compare(VectorOperators.GT, DoubleVector.fromArray(SPECIES, adhesion, i)))
+			        .and(xSatur.compare(VectorOperators.LE, DoubleVector.fromArray(SPECIES, adhesion, x)))
+			        .and(iSatur.compare(VectorOperators.GT, xSatur));
+			DoubleVector.zero(SPECIES).blend(amount, flows).intoArray(out, f);
+		}
+		super.up(water, timeStep, a, b, f, to, out);
+	}
+}
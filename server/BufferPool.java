@@ -0,0 +1,50 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A BufferPool hands out direct ByteBuffers of one size and takes them back, so messages can be encoded and sent over
+ * and over without allocating a buffer for each one. It never blocks: if every buffer is in use a new one is made, and
+ * a returned buffer is dropped if the pool is already full. Any thread may use it.
+ */
+public class BufferPool {
+	private final int                            capacity; //Bytes in each buffer
+	private final ArrayBlockingQueue<ByteBuffer> free;
+
+
+	/**
+	 * Creates a pool
+	 * @param capacity the size of every buffer, in bytes
+	 * @param buffers the most buffers kept in the pool while they are not in use
+	 */
+	public BufferPool(int capacity, int buffers) {
+		this.capacity = capacity;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+	}
+
+
+	/** @return a cleared buffer, from the pool if there is one */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if(buffer == null) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+
+	/** @param buffer a buffer from {@link #acquire()} that is no longer needed */
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity() == capacity) {
+			free.offer(buffer);
+		}
+	}
+
+
+	/** @return the size of every buffer, in bytes */
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,214 @@
+package server;
+
+import cell.Direction;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A FarmClient connects one farm to a {@link FarmServer}. Messages are encoded with {@link WireCodec} into one
+ * buffer and only sent when it fills up or {@link #flush()} is called, so the four edges of a farm go out in one
+ * write. A client is meant to be used by one thread at a time.
+ */
+public class FarmClient implements Closeable {
+	private static final Direction[] SIDES = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST};
+
+	private final SocketChannel channel;
+	private final int           maxFrame; //bytes
+	private final ByteBuffer    out; //Messages waiting to be sent
+	private final ByteBuffer    in;  //Bytes received that haven't been read yet
+	private Direction           lastDirection;
+	private boolean             started; //True once the server has said every farm has connected
+
+
+	/**
+	 * Connects to a server and tells it where the farm is. The first message sent waits until every other farm has
+	 *  connected too, so one thread can connect several farms before sending for any of them.
+	 * @param server the address of the server
+	 * @param x the x index of the farm in the mosaic
+	 * @param y the y index of the farm in the mosaic
+	 * @param maxFrame the largest message in bytes, the same as the server's
+	 * @throws IOException if the server can't be reached
+	 */
+	public FarmClient(InetSocketAddress server, int x, int y, int maxFrame) throws IOException {
+		this.maxFrame = maxFrame;
+		this.out = ByteBuffer.allocateDirect(8 * maxFrame);
+		this.in = ByteBuffer.allocateDirect(8 * maxFrame);
+		in.flip();
+		this.channel = SocketChannel.open(server);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		WireCodec.encode(new NameData(x, y), WireCodec.Encoding.RAW, out);
+		flush();
+	}
+
+
+	/** Waits for the server to say that every farm has connected, unless it already has */
+	private void awaitStart() throws IOException {
+		if(!started) {
+			NetworkData.Type type = receive(null);
+			if(type != NetworkData.Type.Start) {
+				throw new IOException("Expected Start from the server, got " + type);
+			}
+			started = true;
+		}
+	}
+
+
+	/**
+	 * Queues the water that flowed off one edge of the farm, to be sent to the neighbour it flows into
+	 * @param direction the edge the water flowed off of
+	 * @param water the water, indexed [position along the edge][z]
+	 * @param encoding how to send the water
+	 * @throws IOException if the connection fails
+	 */
+	public void sendFlow(Direction direction, double[][] water, WireCodec.Encoding encoding) throws IOException {
+		awaitStart();
+		makeRoom();
+		WireCodec.encodeFlow(direction, water, encoding, out);
+	}
+
+
+	/**
+	 * Queues a message that carries nothing but its type, like TimeKeeper, Rain or Quit
+	 * @param type the type of the message
+	 * @throws IOException if the connection fails
+	 */
+	public void send(NetworkData.Type type) throws IOException {
+		if(type != NetworkData.Type.Quit) {
+			awaitStart();
+		}
+		makeRoom();
+		WireCodec.encode(new SignalData(type), WireCodec.Encoding.RAW, out);
+	}
+
+
+	/** Sends what has been queued if another message might not fit */
+	private void makeRoom() throws IOException {
+		if(out.remaining() < maxFrame) {
+			flush();
+		}
+	}
+
+
+	/**
+	 * Sends every queued message
+	 * @throws IOException if the connection fails
+	 */
+	public void flush() throws IOException {
+		out.flip();
+		while(out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+
+	/**
+	 * Waits for the next message
+	 * @param into the array to read FlowWater messages into, indexed [position along the edge][z]. Entries that the
+	 *             message doesn't have are set to 0. If null the water is skipped
+	 * @return the type of the message. The direction of a FlowWater message is {@link #getLastDirection()}
+	 * @throws IOException if the connection fails or the server closes it
+	 */
+	public NetworkData.Type receive(double[][] into) throws IOException {
+		int length;
+		while((length = WireCodec.frameLength(in)) < 0 || in.remaining() < length) {
+			if(length > in.capacity()) {
+				throw new IOException("A frame of " + length + " bytes is larger than the buffer");
+			}
+			in.compact();
+			int read = channel.read(in);
+			in.flip();
+			if(read < 0) {
+				throw new IOException("The server closed the connection");
+			}
+		}
+		NetworkData.Type type = WireCodec.peekType(in);
+		if(type == NetworkData.Type.FlowWater && into != null) {
+			lastDirection = WireCodec.decodeFlow(in, into);
+		}
+		else {
+			in.position(in.position() + length);
+		}
+		return type;
+	}
+
+
+	/** @return the direction of the last FlowWater message received */
+	public Direction getLastDirection() {
+		return lastDirection;
+	}
+
+
+	/**
+	 * Sends the water that flowed off every edge of the farm, then receives what flowed in from the neighbours until
+	 *  every farm has done the same
+	 * @param edges the water that flowed off each edge, indexed [NORTH, EAST, SOUTH, WEST][position along the edge][z]
+	 * @param encoding how to send the water
+	 * @param scratch the array to read the water received into, as large as the largest edge
+	 * @param listener told about every message received
+	 * @return the amount of FlowWater messages received
+	 * @throws IOException if the connection fails or the server closes it
+	 */
+	public int exchange(double[][][] edges, WireCodec.Encoding encoding, double[][] scratch, FlowListener listener)
+			throws IOException {
+		sendEdges(edges, encoding);
+		return receiveExchange(scratch, listener);
+	}
+
+
+	/**
+	 * Sends the water that flowed off every edge of the farm, followed by a TimeKeeper. This is the first half of
+	 *  {@link #exchange}, for when one thread exchanges for several farms: every farm has to send before any of them
+	 *  can receive.
+	 * @param edges the water that flowed off each edge, indexed [NORTH, EAST, SOUTH, WEST][position along the edge][z]
+	 * @param encoding how to send the water
+	 * @throws IOException if the connection fails
+	 */
+	public void sendEdges(double[][][] edges, WireCodec.Encoding encoding) throws IOException {
+		for(int d = 0; d < SIDES.length; d++) {
+			sendFlow(SIDES[d], edges[d], encoding);
+		}
+		send(NetworkData.Type.TimeKeeper);
+		flush();
+	}
+
+
+	/**
+	 * Receives what flowed in from the neighbours until every farm has finished the exchange. This is the second half
+	 *  of {@link #exchange}.
+	 * @param scratch the array to read the water received into, as large as the largest edge
+	 * @param listener told about every message received
+	 * @return the amount of FlowWater messages received
+	 * @throws IOException if the connection fails or the server closes it
+	 */
+	public int receiveExchange(double[][] scratch, FlowListener listener) throws IOException {
+		int flows = 0;
+		NetworkData.Type type;
+		while((type = receive(scratch)) != NetworkData.Type.TimeKeeper) {
+			if(type == NetworkData.Type.FlowWater) {
+				listener.flow(lastDirection, scratch);
+				flows++;
+			}
+			else {
+				listener.signal(type);
+			}
+		}
+		return flows;
+	}
+
+
+	/** Tells the server the farm is leaving and closes the connection */
+	public void close() throws IOException {
+		try {
+			send(NetworkData.Type.Quit);
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
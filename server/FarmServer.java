@@ -0,0 +1,569 @@
+package server;
+
+import cell.Direction;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A FarmServer relays water between farms that run in different processes, the way FlowData was meant to travel from
+ * one client through the server to another. Every farm connects with a {@link FarmClient} and names its place in an
+ * x by y mosaic of farms. From then on:
+ * <ul>
+ * <li>Once every farm of the mosaic has connected, every farm is sent a Start message, so no water is sent toward a
+ *     farm that isn't there yet. A farm that connects later, to take the place of one that left, is sent Start
+ *     right away.</li>
+ * <li>FlowWater messages go to the neighbour that the water flows toward: NORTH water to the farm at y + 1, EAST water
+ *     to x + 1, SOUTH to y - 1 and WEST to x - 1. Water that flows off the edge of the mosaic is dropped, unless it
+ *     wraps around.</li>
+ * <li>TimeKeeper messages mark the end of a farm's part of an exchange. Once every farm has sent one, the server sends
+ *     every farm a TimeKeeper back. Messages are relayed in order, so by then each farm has been sent all the water
+ *     its neighbours sent it during the exchange.</li>
+ * <li>Rain messages go to every other farm.</li>
+ * <li>Quit closes the connection. Every other message is ignored.</li>
+ * </ul>
+ * One thread runs everything with a Selector. Frames are relayed without being decoded, copied into pooled buffers
+ * and queued per connection. Each connection's queue is written once per pass of the selector with a gathering write,
+ * so everything that piled up for a farm goes out together. A farm whose queue grows past a limit isn't reading and is
+ * disconnected.
+ */
+public class FarmServer implements Runnable, Closeable {
+	private static final int GATHER = 16; //Most buffers written to a connection in one call
+	private static final int HEADER = 5; //bytes. Length and type, which every frame starts with
+	private static final NetworkData.Type[] TYPES = NetworkData.Type.values();
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private final ServerSocketChannel listener;
+	private final Selector            selector;
+	private final int                 xFarms, yFarms;
+	private final boolean             wrap;
+	private final int                 maxFrame; //bytes
+	private final long                maxQueued; //bytes. Most that can wait to be written to one connection
+	private final BufferPool          pool;
+	private final Connection[][]      farms;
+	private final List<Connection>    connections = new ArrayList<Connection>();
+	private final List<Connection>    dirty = new ArrayList<Connection>(); //Connections with new frames to write
+	private final List<Connection>    slow = new ArrayList<Connection>(); //Connections to drop for not reading
+	private final SignalData          timeKeeper = new SignalData(NetworkData.Type.TimeKeeper);
+	private final SignalData          start = new SignalData(NetworkData.Type.Start);
+	private final ByteBuffer          signalFrame = ByteBuffer.allocate(16);
+	private int                       named; //Connections that have named their farm
+	private boolean                   full; //True once every farm of the mosaic has connected
+	private int                       finished; //Named connections that have sent a TimeKeeper this exchange
+	private volatile boolean          closed;
+	private volatile long             routed, dropped, exchanges;
+
+
+	/** One farm's connection */
+	private class Connection {
+		final SocketChannel         channel;
+		final SelectionKey          key;
+		final ByteBuffer            in; //Bytes read that haven't been handled yet
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>(); //Frames waiting to be written
+		final ByteBuffer[]          gather = new ByteBuffer[GATHER];
+		long                        queued; //Bytes in out
+		int                         x = -1, y = -1;
+		boolean                     finished; //True if it has sent a TimeKeeper this exchange
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.in = ByteBuffer.allocateDirect(2 * maxFrame);
+			this.key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+	}
+
+
+	/**
+	 * Opens a server. Call {@link #run()}, usually on a thread of its own, to start relaying.
+	 * @param address the address to listen on. Port 0 picks a free port; see {@link #getAddress()}
+	 * @param xFarms the width of the mosaic of farms
+	 * @param yFarms the length of the mosaic of farms
+	 * @param wrap true if the farms on opposite edges of the mosaic are neighbours
+	 * @param maxFrame the largest message in bytes, see {@link WireCodec#maxFlowLength}
+	 * @throws IOException if the address can't be listened on
+	 */
+	public FarmServer(InetSocketAddress address, int xFarms, int yFarms, boolean wrap, int maxFrame) throws IOException {
+		this.xFarms = xFarms;
+		this.yFarms = yFarms;
+		this.wrap = wrap;
+		this.maxFrame = maxFrame;
+		this.maxQueued = 64L * maxFrame;
+		this.pool = new BufferPool(maxFrame, 4 * xFarms * yFarms);
+		this.farms = new Connection[xFarms][yFarms];
+		this.selector = Selector.open();
+		this.listener = ServerSocketChannel.open();
+		listener.bind(address);
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+
+	/** @return the address the server listens on */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) listener.getLocalAddress();
+	}
+
+
+	/** Relays messages until the server is closed */
+	public void run() {
+		try {
+			while(!closed) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid()) {
+						continue;
+					}
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection c = (Connection) key.attachment();
+					try {
+						if(key.isReadable()) {
+							read(c);
+						}
+						if(key.isValid() && key.isWritable()) {
+							write(c);
+						}
+					}
+					catch(IOException e) {
+						disconnect(c);
+					}
+					//A bug handling one connection's frames must not stop the relay for every other farm
+					catch(RuntimeException e) {
+						disconnect(c);
+					}
+				}
+
+				//Write everything that was queued during this pass in one go per connection
+				for(int i = 0; i < dirty.size(); i++) {
+					Connection c = dirty.get(i);
+					if(c.key.isValid()) {
+						try {
+							write(c);
+						}
+						catch(IOException e) {
+							disconnect(c);
+						}
+						catch(RuntimeException e) {
+							disconnect(c);
+						}
+					}
+				}
+				dirty.clear();
+
+				//Dropped only now, so nothing is removed from the connections while they are being relayed to
+				for(int i = 0; i < slow.size(); i++) {
+					disconnect(slow.get(i));
+				}
+				slow.clear();
+			}
+		}
+		catch(IOException e) {
+			throw new IllegalStateException("The farm server stopped", e);
+		}
+		finally {
+			for(int i = connections.size() - 1; i >= 0; i--) {
+				disconnect(connections.get(i));
+			}
+			try {
+				listener.close();
+				selector.close();
+			}
+			catch(IOException e) {
+				//Nothing left to do with them
+			}
+		}
+	}
+
+
+	/** Takes a new connection */
+	private void accept() throws IOException {
+		SocketChannel channel = listener.accept();
+		if(channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		connections.add(new Connection(channel));
+	}
+
+
+	/** Reads what a connection has sent and handles every whole frame */
+	private void read(Connection c) throws IOException {
+		if(c.channel.read(c.in) < 0) {
+			disconnect(c);
+			return;
+		}
+		c.in.flip();
+		int length;
+		while((length = WireCodec.frameLength(c.in)) >= 0) {
+			//Checked before the frame is complete, so a connection can't stall waiting for a frame that never fits
+			if(length < HEADER || length > maxFrame) {
+				throw new IOException("A frame of " + length + " bytes is outside the limits of " + HEADER + " to " +
+				                      maxFrame);
+			}
+			if(c.in.remaining() < length) {
+				break;
+			}
+			int end = c.in.position() + length;
+			handle(c, length);
+			if(!c.key.isValid()) {
+				return;
+			}
+			c.in.position(end);
+		}
+		c.in.compact();
+	}
+
+
+	/**
+	 * Handles the frame at the position of a connection's input
+	 * @param c the connection the frame came from
+	 * @param length the length of the frame in bytes
+	 */
+	private void handle(Connection c, int length) throws IOException {
+		int ordinal = c.in.get(c.in.position() + 4);
+		if(ordinal < 0 || ordinal >= TYPES.length) {
+			throw new IOException("Unknown message type " + ordinal);
+		}
+		NetworkData.Type type = TYPES[ordinal];
+		if(type == NetworkData.Type.Name) {
+			//Decoded from a view that ends with the frame, so a short frame can't read into the next one
+			ByteBuffer frame = c.in.duplicate().order(c.in.order());
+			frame.limit(frame.position() + length);
+			NameData name;
+			try {
+				name = (NameData) WireCodec.decode(frame);
+			}
+			catch(RuntimeException e) {
+				throw new IOException("Malformed Name frame", e);
+			}
+			if(c.x >= 0 || name.x < 0 || name.x >= xFarms || name.y < 0 || name.y >= yFarms ||
+			   farms[name.x][name.y] != null) {
+				throw new IOException("Farm " + name.x + ", " + name.y + " can't be named");
+			}
+			c.x = name.x;
+			c.y = name.y;
+			farms[c.x][c.y] = c;
+			named++;
+			if(full) {
+				signal(c, start); //A farm taking the place of one that left
+			}
+			else if(named == xFarms * yFarms) {
+				full = true;
+				for(int i = 0; i < connections.size(); i++) {
+					if(connections.get(i).x >= 0) {
+						signal(connections.get(i), start);
+					}
+				}
+			}
+		}
+		else if(c.x < 0) {
+			dropped++; //Nothing is relayed for a farm that hasn't said where it is
+		}
+		else if(type == NetworkData.Type.FlowWater) {
+			if(length < HEADER + 1) {
+				throw new IOException("A FlowWater frame of " + length + " bytes has no direction");
+			}
+			int side = c.in.get(c.in.position() + HEADER);
+			if(side < 0 || side >= DIRECTIONS.length) {
+				throw new IOException("Unknown direction " + side);
+			}
+			Direction direction = DIRECTIONS[side];
+			Connection to = neighbour(c, direction);
+			if(to == null) {
+				dropped++;
+			}
+			else {
+				queue(to, c.in, length);
+				routed++;
+			}
+		}
+		else if(type == NetworkData.Type.Rain) {
+			for(int i = 0; i < connections.size(); i++) {
+				Connection to = connections.get(i);
+				if(to != c && to.x >= 0) {
+					queue(to, c.in, length);
+				}
+			}
+		}
+		else if(type == NetworkData.Type.TimeKeeper) {
+			if(!c.finished) {
+				c.finished = true;
+				finished++;
+			}
+			endExchange();
+		}
+		else if(type == NetworkData.Type.Quit) {
+			disconnect(c);
+		}
+	}
+
+
+	/** Sends every farm a TimeKeeper once all of them have finished the exchange */
+	private void endExchange() {
+		if(!full || named == 0 || finished < named) {
+			return;
+		}
+		finished = 0;
+		exchanges++;
+		for(int i = 0; i < connections.size(); i++) {
+			Connection to = connections.get(i);
+			if(to.x >= 0) {
+				to.finished = false;
+				signal(to, timeKeeper);
+			}
+		}
+	}
+
+
+	/**
+	 * Queues a message that carries nothing but its type
+	 * @param to the connection to send it to
+	 * @param signal the message
+	 */
+	private void signal(Connection to, SignalData signal) {
+		signalFrame.clear();
+		WireCodec.encode(signal, WireCodec.Encoding.RAW, signalFrame);
+		signalFrame.flip();
+		queue(to, signalFrame, signalFrame.remaining());
+	}
+
+
+	/**
+	 * @param c a farm's connection
+	 * @param direction the direction that water is flowing off the farm
+	 * @return the connection of the farm the water flows into, or null if there isn't one
+	 */
+	private Connection neighbour(Connection c, Direction direction) {
+		int x = c.x, y = c.y;
+		if(direction == Direction.NORTH) {
+			y++;
+		}
+		else if(direction == Direction.EAST) {
+			x++;
+		}
+		else if(direction == Direction.SOUTH) {
+			y--;
+		}
+		else if(direction == Direction.WEST) {
+			x--;
+		}
+		else {
+			return null;
+		}
+		if(wrap) {
+			x = (x + xFarms) % xFarms;
+			y = (y + yFarms) % yFarms;
+		}
+		else if(x < 0 || x >= xFarms || y < 0 || y >= yFarms) {
+			return null;
+		}
+		return farms[x][y];
+	}
+
+
+	/**
+	 * Copies a frame onto a connection's queue
+	 * @param to the connection to send it to
+	 * @param frame a buffer holding the frame at its position. The position isn't changed
+	 * @param length the length of the frame in bytes
+	 */
+	private void queue(Connection to, ByteBuffer frame, int length) {
+		if(to.queued + length > maxQueued) {
+			if(!slow.contains(to)) {
+				slow.add(to); //It has stopped reading, and would otherwise hold on to buffers forever
+			}
+			return;
+		}
+		ByteBuffer copy = pool.acquire();
+		ByteBuffer source = frame.duplicate();
+		source.limit(source.position() + length);
+		copy.put(source).flip();
+		to.out.add(copy);
+		to.queued += length;
+		if(to.out.size() == 1) {
+			dirty.add(to);
+		}
+	}
+
+
+	/** Writes as much of a connection's queue as the socket takes */
+	private void write(Connection c) throws IOException {
+		while(!c.out.isEmpty()) {
+			int count = 0;
+			for(ByteBuffer buffer : c.out) {
+				c.gather[count++] = buffer;
+				if(count == GATHER) {
+					break;
+				}
+			}
+			long written = c.channel.write(c.gather, 0, count);
+			c.queued -= written;
+			while(!c.out.isEmpty() && !c.out.peek().hasRemaining()) {
+				pool.release(c.out.poll());
+			}
+			if(written == 0 || c.gather[count - 1].hasRemaining()) {
+				break; //The socket is full
+			}
+		}
+		int ops = c.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		if(c.key.interestOps() != ops) {
+			c.key.interestOps(ops);
+		}
+	}
+
+
+	/** Closes a connection and forgets its farm */
+	private void disconnect(Connection c) {
+		if(!connections.remove(c)) {
+			return;
+		}
+		c.key.cancel();
+		try {
+			c.channel.close();
+		}
+		catch(IOException e) {
+			//It is gone either way
+		}
+		for(ByteBuffer buffer : c.out) {
+			pool.release(buffer);
+		}
+		c.out.clear();
+		if(c.x >= 0) {
+			farms[c.x][c.y] = null;
+			named--;
+			if(c.finished) {
+				finished--;
+			}
+			endExchange(); //The others may have only been waiting for this farm
+		}
+	}
+
+
+	/** @return the FlowWater messages relayed to a neighbour */
+	public long getRouted() {
+		return routed;
+	}
+
+
+	/** @return the messages dropped, because they flowed off the mosaic or came from a farm without a name */
+	public long getDropped() {
+		return dropped;
+	}
+
+
+	/** @return the exchanges that every farm has finished */
+	public long getExchanges() {
+		return exchanges;
+	}
+
+
+	/** Stops relaying and closes every connection */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+
+	/** This should only be used for testing purposes */
+	public static void main(String[] args) throws Exception {
+		final int xFarms = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int yFarms = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		final int rows = args.length > 3 ? Integer.parseInt(args[3]) : 100; //Cells along each edge
+		final int layers = 10;
+		final WireCodec.Encoding encoding = WireCodec.Encoding.RAW;
+		final int maxFrame = WireCodec.maxFlowLength(rows, layers, encoding);
+
+		final FarmServer server = new FarmServer(new InetSocketAddress("127.0.0.1", 0), xFarms, yFarms, true, maxFrame);
+		Thread serverThread = new Thread(server, "FarmServer");
+		serverThread.start();
+		final InetSocketAddress address = server.getAddress();
+
+		final long[][] latencies = new long[xFarms * yFarms][rounds];
+		final double[] received = new double[xFarms * yFarms];
+		Thread[] farms = new Thread[xFarms * yFarms];
+		for(int f = 0; f < farms.length; f++) {
+			final int farm = f;
+			farms[f] = new Thread(new Runnable() {
+				public void run() {
+					double[][][] edges = new double[4][rows][layers];
+					for(double[][] edge : edges) {
+						for(double[] column : edge) {
+							java.util.Arrays.fill(column, 1);
+						}
+					}
+					double[][] scratch = new double[rows][layers];
+					FlowListener listener = new FlowListener() {
+						public void flow(Direction direction, double[][] water) {
+							for(double[] column : water) {
+								for(double w : column) {
+									received[farm] += w;
+								}
+							}
+						}
+
+						public void signal(NetworkData.Type type) {
+						}
+					};
+					try {
+						FarmClient client = new FarmClient(address, farm % xFarms, farm / xFarms, maxFrame);
+						for(int r = 0; r < rounds; r++) {
+							long start = System.nanoTime();
+							client.exchange(edges, encoding, scratch, listener);
+							latencies[farm][r] = System.nanoTime() - start;
+						}
+						client.close();
+					}
+					catch(IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for(Thread farm : farms) {
+			farm.start();
+		}
+		for(Thread farm : farms) {
+			farm.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		server.close();
+		serverThread.join();
+
+		//The first rounds include connecting
+		long[] all = new long[farms.length * (rounds - rounds / 10)];
+		double total = 0;
+		for(int f = 0, k = 0; f < farms.length; f++) {
+			for(int r = rounds / 10; r < rounds; r++) {
+				all[k++] = latencies[f][r];
+			}
+			total += received[f];
+		}
+		java.util.Arrays.sort(all);
+		System.out.println(farms.length + " farms, " + rounds + " exchanges of " + rows + "x" + layers + " edges in " +
+		                   String.format("%.2f", seconds) + " s: " + String.format("%.0f", rounds / seconds) +
+		                   " exchanges/s, " + String.format("%.1f", server.getRouted() * (double) maxFrame / seconds / 1e6) +
+		                   " MB/s relayed");
+		System.out.println("Exchange latency: p50 " + all[all.length / 2] / 1000 + " us, p99 " +
+		                   all[(int) (all.length * 0.99)] / 1000 + " us");
+		System.out.println("Water: " + (double) farms.length * rounds * 4 * rows * layers + " sent, " + total +
+		                   " received, " + server.getDropped() + " messages dropped");
+	}
+}
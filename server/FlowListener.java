@@ -0,0 +1,19 @@
+package server;
+
+import cell.Direction;
+
+/**
+ * A FlowListener is told about the messages a {@link FarmClient} receives during an exchange of water
+ */
+public interface FlowListener {
+	/**
+	 * Called for each FlowWater message. The array is reused for the next message, so it has to be used right away.
+	 * @param direction the direction the water was flowing when it left the neighbouring farm
+	 * @param water the water, indexed [position along the edge][z]
+	 */
+	public void flow(Direction direction, double[][] water);
+
+
+	/** @param type the type of any other message, like Rain */
+	public void signal(NetworkData.Type type);
+}
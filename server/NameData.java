@@ -0,0 +1,18 @@
+package server;
+
+/**
+ * A NameData is the first message a farm sends to a {@link FarmServer}. It tells the server where the farm is in the
+ * mosaic of farms, so the server knows which farms are its neighbours.
+ */
+public class NameData extends NetworkData {
+	private static final long serialVersionUID = 1L;
+
+	public final int x; //Position of the farm along the x axis of the mosaic
+	public final int y; //Position of the farm along the y axis of the mosaic
+
+	public NameData(int x, int y) {
+		this.type = Type.Name;
+		this.x = x;
+		this.y = y;
+	}
+}
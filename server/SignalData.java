@@ -0,0 +1,14 @@
+package server;
+
+/**
+ * A SignalData is a message that carries nothing but its type, like Quit or Start. It is what {@link WireCodec}
+ * decodes every type without a message class of its own into.
+ */
+public class SignalData extends NetworkData {
+	private static final long serialVersionUID = 1L;
+
+	/** @param type the type of the message */
+	public SignalData(Type type) {
+		this.type = type;
+	}
+}
@@ -0,0 +1,401 @@
+package server;
+
+import cell.Direction;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * WireCodec turns NetworkData messages into compact little-endian frames of primitives and back, as a replacement for
+ * Java serialization. Every frame starts with an int holding the length of the rest of the frame and a byte holding
+ * the ordinal of the message's {@link NetworkData.Type}, so a reader can tell when a whole frame has arrived with
+ * {@link #frameLength(ByteBuffer)}.<p />
+ * FlowWater frames then hold the ordinal of the direction, the ordinal of the {@link Encoding}, the amount of rows
+ * (positions along the edge) and columns (z layers), and the water values row by row. The water can be decoded
+ * straight into an existing double[][] with {@link #decodeFlow(ByteBuffer, double[][])}, so a receiver that keeps its
+ * arrays allocates nothing per message. Name frames hold the x and y of the farm as ints. Every other type has no
+ * message class in this project yet and is sent as its type alone.<p />
+ * The codec sets the byte order of the buffers it is given to little-endian.
+ */
+public class WireCodec {
+	/** How the water values of a FlowWater message are stored */
+	public enum Encoding {
+		/** 8-byte doubles, bulk copied. Exact */
+		RAW,
+		/** 4-byte floats. Keeps about 7 significant digits, which is far more than the model's accuracy */
+		FLOAT32,
+		/**
+		 * Each double XORed with the one before and written as a variable-length integer. Exact, and small for runs of
+		 *  equal values and the zeros that fill most edges
+		 */
+		DELTA
+	}
+
+	private static final NetworkData.Type[] TYPES      = NetworkData.Type.values();
+	private static final Direction[]        DIRECTIONS = Direction.values();
+	private static final Encoding[]         ENCODINGS  = Encoding.values();
+	private static final int                FLOW_HEADER = 4 + 1 + 1 + 1 + 4 + 4; //Bytes before the water values
+
+
+	/**
+	 * Writes a message at the buffer's position
+	 * @param data the message
+	 * @param encoding how to store the water of a FlowData message
+	 * @param out the buffer to write to
+	 * @throws BufferOverflowException if the message doesn't fit, in which case the buffer's position is unchanged
+	 */
+	public static void encode(NetworkData data, Encoding encoding, ByteBuffer out) {
+		if(data instanceof FlowData) {
+			FlowData flow = (FlowData) data;
+			int start = beginFlow(flow.direction, encoding, flow.water.length, columns(flow.water), out);
+			long previous = 0;
+			try {
+				for(Double[] row : flow.water) {
+					for(int k = 0; k < row.length; k++) {
+						previous = put(out, encoding, row[k] == null ? 0 : row[k], previous);
+					}
+				}
+			}
+			catch(BufferOverflowException e) {
+				out.position(start);
+				throw e;
+			}
+			end(out, start);
+			return;
+		}
+
+		if(data.type == null) {
+			throw new IllegalArgumentException("A message needs a type: " + data);
+		}
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		if(data instanceof NameData) {
+			if(out.remaining() < 13) {
+				throw new BufferOverflowException();
+			}
+			out.putInt(9).put((byte) data.type.ordinal()).putInt(((NameData) data).x).putInt(((NameData) data).y);
+			return;
+		}
+		if(out.remaining() < 5) {
+			throw new BufferOverflowException();
+		}
+		out.putInt(1).put((byte) data.type.ordinal());
+	}
+
+
+	/**
+	 * Writes a FlowWater message straight from an array, without making a FlowData
+	 * @param direction the direction the water is flowing toward the receiver from
+	 * @param water the water, indexed [position along the edge][z]. Every row must be as long as the first
+	 * @param encoding how to store the water
+	 * @param out the buffer to write to
+	 * @throws BufferOverflowException if the message doesn't fit, in which case the buffer's position is unchanged
+	 */
+	public static void encodeFlow(Direction direction, double[][] water, Encoding encoding, ByteBuffer out) {
+		int columns = water.length == 0 ? 0 : water[0].length;
+		int start = beginFlow(direction, encoding, water.length, columns, out);
+		try {
+			if(encoding == Encoding.RAW) {
+				for(double[] row : water) {
+					out.asDoubleBuffer().put(row, 0, columns);
+					out.position(out.position() + 8 * columns);
+				}
+			}
+			else {
+				long previous = 0;
+				for(double[] row : water) {
+					for(int k = 0; k < columns; k++) {
+						previous = put(out, encoding, row[k], previous);
+					}
+				}
+			}
+		}
+		catch(BufferOverflowException e) {
+			out.position(start);
+			throw e;
+		}
+		end(out, start);
+	}
+
+
+	/**
+	 * @param in a buffer holding the start of a frame at its position
+	 * @return the size of the whole frame in bytes, or -1 if its length hasn't arrived yet
+	 */
+	public static int frameLength(ByteBuffer in) {
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		if(in.remaining() < 4) {
+			return -1;
+		}
+		return 4 + in.getInt(in.position());
+	}
+
+
+	/**
+	 * @param in a buffer holding a whole frame at its position
+	 * @return the type of the message, without reading it
+	 */
+	public static NetworkData.Type peekType(ByteBuffer in) {
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		return TYPES[in.get(in.position() + 4)];
+	}
+
+
+	/**
+	 * Reads a FlowWater message into an existing array. Entries of the array that the message doesn't have are set
+	 *  to 0, and values that don't fit in the array are skipped.
+	 * @param in a buffer holding a whole FlowWater frame at its position. The position is moved past it
+	 * @param into the array to fill, indexed [position along the edge][z]
+	 * @return the direction of the water
+	 */
+	public static Direction decodeFlow(ByteBuffer in, double[][] into) {
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		int end = in.position() + 4 + in.getInt();
+		if(TYPES[in.get()] != NetworkData.Type.FlowWater) {
+			throw new IllegalArgumentException("Not a FlowWater message");
+		}
+		Direction direction = DIRECTIONS[in.get()];
+		Encoding encoding = ENCODINGS[in.get()];
+		int rows = in.getInt();
+		int columns = in.getInt();
+
+		long previous = 0;
+		for(int i = 0; i < Math.max(rows, into.length); i++) {
+			double[] row = i < into.length ? into[i] : null;
+			int k = 0;
+			if(i < rows) {
+				if(encoding == Encoding.RAW && row != null && row.length >= columns) {
+					in.asDoubleBuffer().get(row, 0, columns);
+					in.position(in.position() + 8 * columns);
+					k = columns;
+				}
+				else {
+					for(; k < columns; k++) {
+						double value;
+						if(encoding == Encoding.RAW) {
+							value = in.getDouble();
+						}
+						else if(encoding == Encoding.FLOAT32) {
+							value = in.getFloat();
+						}
+						else {
+							previous ^= getVarLong(in);
+							value = Double.longBitsToDouble(previous);
+						}
+						if(row != null && k < row.length) {
+							row[k] = value;
+						}
+					}
+				}
+			}
+			for(; row != null && k < row.length; k++) {
+				row[k] = 0;
+			}
+		}
+		in.position(end);
+		return direction;
+	}
+
+
+	/**
+	 * Reads any message into a new object. FlowWater messages become FlowData, Name messages NameData and every other
+	 *  type a SignalData.
+	 * @param in a buffer holding a whole frame at its position. The position is moved past it
+	 * @return the message
+	 */
+	public static NetworkData decode(ByteBuffer in) {
+		NetworkData.Type type = peekType(in);
+		if(type == NetworkData.Type.Name) {
+			int start = in.position();
+			in.position(start + frameLength(in));
+			return new NameData(in.getInt(start + 5), in.getInt(start + 9));
+		}
+		if(type != NetworkData.Type.FlowWater) {
+			in.position(in.position() + frameLength(in));
+			return new SignalData(type);
+		}
+
+		int start = in.position();
+		int rows = in.getInt(start + 4 + 1 + 1 + 1);
+		int columns = in.getInt(start + 4 + 1 + 1 + 1 + 4);
+		double[][] water = new double[rows][columns];
+		Direction direction = decodeFlow(in, water);
+		Double[][] boxed = new Double[rows][columns];
+		for(int i = 0; i < rows; i++) {
+			for(int k = 0; k < columns; k++) {
+				boxed[i][k] = water[i][k];
+			}
+		}
+		return new FlowData(direction, boxed);
+	}
+
+
+	/**
+	 * @param rows the positions along the edge
+	 * @param columns the z layers
+	 * @param encoding how the water is stored
+	 * @return the most bytes a FlowWater message of that size can take
+	 */
+	public static int maxFlowLength(int rows, int columns, Encoding encoding) {
+		int perValue = encoding == Encoding.RAW ? 8 : encoding == Encoding.FLOAT32 ? 4 : 10;
+		return FLOW_HEADER + rows * columns * perValue;
+	}
+
+
+	/**
+	 * Writes the start of a FlowWater frame, leaving room for its length
+	 * @return the position of the frame
+	 */
+	private static int beginFlow(Direction direction, Encoding encoding, int rows, int columns, ByteBuffer out) {
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		if(out.remaining() < FLOW_HEADER) {
+			throw new BufferOverflowException();
+		}
+		int start = out.position();
+		out.putInt(0).put((byte) NetworkData.Type.FlowWater.ordinal());
+		out.put((byte) direction.ordinal()).put((byte) encoding.ordinal()).putInt(rows).putInt(columns);
+		return start;
+	}
+
+
+	/** Fills in the length of the frame that starts at the given position and ends at the buffer's position */
+	private static void end(ByteBuffer out, int start) {
+		out.putInt(start, out.position() - start - 4);
+	}
+
+
+	/** @return the length of the rows, which must all be the same */
+	private static int columns(Double[][] water) {
+		int columns = water.length == 0 ? 0 : water[0].length;
+		for(Double[] row : water) {
+			if(row.length != columns) {
+				throw new IllegalArgumentException("Every row of the water must have " + columns + " entries");
+			}
+		}
+		return columns;
+	}
+
+
+	/**
+	 * Writes one water value
+	 * @param previous the bits of the value before it, for DELTA
+	 * @return the bits of this value
+	 */
+	private static long put(ByteBuffer out, Encoding encoding, double value, long previous) {
+		long bits = Double.doubleToRawLongBits(value);
+		if(encoding == Encoding.RAW) {
+			out.putDouble(value);
+		}
+		else if(encoding == Encoding.FLOAT32) {
+			out.putFloat((float) value);
+		}
+		else {
+			putVarLong(out, bits ^ previous);
+		}
+		return bits;
+	}
+
+
+	/** Writes an unsigned long 7 bits at a time, lowest first, with the high bit set on every byte but the last */
+	private static void putVarLong(ByteBuffer out, long value) {
+		while((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+
+	/** Reads a long written by putVarLong */
+	private static long getVarLong(ByteBuffer in) {
+		long value = 0;
+		for(int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+	}
+
+
+	/**
+	 * Compares the codec with Java serialization on an edge of water like the ones farms send each other. This should
+	 *  only be used for testing purposes.
+	 * @param args the amount of messages to time, and the amount of z layers
+	 */
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int layers = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		//Most of an edge is dry, and the wet part is a band of similar amounts
+		Random rand = new Random(42);
+		double[][] water = new double[64][layers];
+		Double[][] boxed = new Double[64][layers];
+		for(int i = 0; i < water.length; i++) {
+			for(int k = 0; k < layers; k++) {
+				water[i][k] = k > layers / 2 && k < layers * 3 / 4 ? 0.05 + rand.nextDouble() * 1e-3 : 0;
+				boxed[i][k] = water[i][k];
+			}
+		}
+		FlowData data = new FlowData(Direction.NORTH, boxed);
+
+		System.out.println("Encoding and decoding " + messages + " messages of 64x" + layers + " values");
+		for(int round = 0; round < 2; round++) { //The first round warms up the JIT compiler
+			long time = System.nanoTime();
+			int size = 0;
+			for(int m = 0; m < messages; m++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(data);
+				out.close();
+				size = bytes.size();
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+				in.readObject();
+			}
+			report(round, "ObjectOutputStream", size, 64 * layers, messages, System.nanoTime() - time);
+
+			BufferPool pool = new BufferPool(maxFlowLength(64, layers, Encoding.DELTA), 4);
+			double[][] into = new double[64][layers];
+			for(Encoding encoding : ENCODINGS) {
+				time = System.nanoTime();
+				for(int m = 0; m < messages; m++) {
+					ByteBuffer buffer = pool.acquire();
+					encodeFlow(Direction.NORTH, water, encoding, buffer);
+					size = buffer.position();
+					buffer.flip();
+					decodeFlow(buffer, into);
+					pool.release(buffer);
+				}
+				report(round, "WireCodec " + encoding, size, 64 * layers, messages, System.nanoTime() - time);
+				double error = 0;
+				for(int i = 0; i < water.length; i++) {
+					for(int k = 0; k < layers; k++) {
+						error = Math.max(error, Math.abs(into[i][k] - water[i][k]));
+					}
+				}
+				if(round == 1) {
+					System.out.println(String.format("%-22s largest difference after decoding: %g", "", error));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Prints the results of one benchmark after the warm up round
+	 * @param values the water values in each message
+	 */
+	private static void report(int round, String name, int size, int values, int messages, long nanos) {
+		if(round == 0) {
+			return;
+		}
+		System.out.println(String.format("%-22s %8d bytes/message %10.1f us/message %8.1f million values/s", name,
+		                                 size, nanos / 1e3 / messages, (double) values * messages / (nanos / 1e3)));
+	}
+}
@@ -0,0 +1,114 @@
+package topo;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * DiamondSquare generates rough, fractal land with the diamond-square algorithm. The corners of a square get random
+ * heights, then the square is split over and over, each new point taking the average of its neighbours plus a random
+ * offset that shrinks with every split. The offsets are derived by hashing each point with the seed instead of drawing
+ * from a Random, so the rows of each split can be filled in parallel and still give the same land.
+ */
+public class DiamondSquare implements TerrainGenerator {
+	private static final int PARALLEL_COLUMNS = 1 << 16; //Land with fewer columns than this is filled on one thread
+
+	private final double roughness; //How much each offset shrinks per split. 1 halves it, smaller is rougher
+
+
+	/** Creates a generator of moderately rough land */
+	public DiamondSquare() {
+		this(1);
+	}
+
+
+	/**
+	 * Creates a generator
+	 * @param roughness how quickly the random offsets shrink as squares get smaller. Each split multiplies them by
+	 *                  2^-roughness, so 1 halves them and values closer to 0 give rougher land
+	 */
+	public DiamondSquare(double roughness) {
+		if(roughness <= 0) {
+			throw new IllegalArgumentException("roughness must be positive: " + roughness);
+		}
+		this.roughness = roughness;
+	}
+
+
+	public double[][] generate(int xSize, int ySize, final long seed) {
+		//The algorithm needs a square with 2^n + 1 points on a side, which is cut down to size at the end
+		int size = 1;
+		while(size + 1 < Math.max(xSize, ySize)) {
+			size *= 2;
+		}
+		final int n = size + 1;
+		final double[][] h = new double[n][n];
+		h[0][0] = offset(0, 0, seed);
+		h[size][0] = offset(size, 0, seed);
+		h[0][size] = offset(0, size, seed);
+		h[size][size] = offset(size, size, seed);
+
+		boolean parallel = (long) n * n >= PARALLEL_COLUMNS;
+		double amplitude = 1;
+		for(int step = size; step > 1; step /= 2) {
+			final int half = step / 2;
+			final double a = amplitude;
+			final int s = step;
+
+			//Diamond step: the center of every square
+			IntStream rows = IntStream.range(0, size / step);
+			(parallel ? rows.parallel() : rows).forEach(new IntConsumer() {
+				public void accept(int r) {
+					int j = r * s + half;
+					for(int i = half; i < n; i += s) {
+						double average = (h[i - half][j - half] + h[i + half][j - half] + h[i - half][j + half] +
+						                  h[i + half][j + half]) / 4;
+						h[i][j] = average + a * (offset(i, j, seed) - 0.5);
+					}
+				}
+			});
+
+			//Square step: the middle of every edge, from the points of the diamond around it that exist
+			rows = IntStream.range(0, 2 * (size / step) + 1);
+			(parallel ? rows.parallel() : rows).forEach(new IntConsumer() {
+				public void accept(int r) {
+					int j = r * half;
+					for(int i = (r % 2 == 0) ? half : 0; i < n; i += s) {
+						double sum = 0;
+						int count = 0;
+						if(i >= half) {
+							sum += h[i - half][j];
+							count++;
+						}
+						if(i + half < n) {
+							sum += h[i + half][j];
+							count++;
+						}
+						if(j >= half) {
+							sum += h[i][j - half];
+							count++;
+						}
+						if(j + half < n) {
+							sum += h[i][j + half];
+							count++;
+						}
+						h[i][j] = sum / count + a * (offset(i, j, seed) - 0.5);
+					}
+				}
+			});
+			amplitude *= Math.pow(2, -roughness);
+		}
+
+		double[][] heights = new double[xSize][];
+		for(int i = 0; i < xSize; i++) {
+			heights[i] = Arrays.copyOf(h[i], ySize);
+		}
+		return heights;
+	}
+
+
+	/** @return the random offset of a point, from 0 to 1 */
+	private static double offset(int i, int j, long seed) {
+		return ValueNoise.lattice(i, j, seed);
+	}
+}
@@ -0,0 +1,147 @@
+package topo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ElevationCache keeps the elevations of every piece of land another {@link ElevationProvider} has given it in a
+ * directory, one tile file per location and resolution. Asking for a piece of land that has been asked for before
+ * reads the tile instead of asking the provider again, so it never touches the network.<p />
+ * Tiles are keyed by the latitude and longitude to a millionth of a degree, the size in columns and the cell size.
+ * They are saved in a little-endian binary format: a magic number, a version, the size, and then the elevations in
+ * one bulk copy through a memory-mapped file. A tile is written to a temporary file first and then moved into place,
+ * so several processes can share one directory. Tiles that can't be read, or were written by another version, are
+ * fetched again.
+ */
+public class ElevationCache implements ElevationProvider {
+	private static final int MAGIC   = 0x56454c45; //"ELEV" when read as little-endian bytes
+	private static final int VERSION = 2; //1 held 64x64 Google tiles with only every 8th row and column filled in
+	private static final int HEADER  = 16; //bytes. Magic, version, xCount and yCount
+
+	private final ElevationProvider provider;
+	private final File              directory;
+	private final AtomicLong        hits   = new AtomicLong();
+	private final AtomicLong        misses = new AtomicLong();
+
+
+	/**
+	 * Creates a cache
+	 * @param provider where to get the elevations of land that isn't in the cache yet
+	 * @param directory where to keep the tiles. It is created if it doesn't exist. Only one kind of provider should be
+	 *                  cached in one directory, since the provider isn't part of the key
+	 */
+	public ElevationCache(ElevationProvider provider, File directory) {
+		this.provider = provider;
+		this.directory = directory;
+	}
+
+
+	public double[][] getElevations(double latitude, double longitude, int xCount, int yCount, double cellSize)
+			throws IOException {
+		File tile = getTile(latitude, longitude, xCount, yCount, cellSize);
+		double[][] elevations = read(tile, xCount, yCount);
+		if(elevations != null) {
+			hits.incrementAndGet();
+			return elevations;
+		}
+
+		misses.incrementAndGet();
+		elevations = provider.getElevations(latitude, longitude, xCount, yCount, cellSize);
+		write(tile, elevations);
+		return elevations;
+	}
+
+
+	/**
+	 * @return the file that holds the tile of the given piece of land, whether it exists or not
+	 */
+	public File getTile(double latitude, double longitude, int xCount, int yCount, double cellSize) {
+		return new File(directory, String.format(Locale.ROOT, "%.6f_%.6f_%dx%d_%.4fcm.elev", latitude, longitude,
+		                                         xCount, yCount, cellSize));
+	}
+
+
+	/**
+	 * Reads a tile
+	 * @param tile the tile
+	 * @param xCount the width the tile should have
+	 * @param yCount the length the tile should have
+	 * @return the elevations, indexed [x][y], or null if the tile doesn't exist or isn't valid
+	 */
+	private static double[][] read(File tile, int xCount, int yCount) {
+		if(!tile.isFile() || tile.length() != HEADER + 8L * xCount * yCount) {
+			return null;
+		}
+		try(FileChannel channel = FileChannel.open(tile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != xCount ||
+			   buffer.getInt() != yCount) {
+				return null;
+			}
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			double[][] elevations = new double[xCount][yCount];
+			for(double[] column : elevations) {
+				doubles.get(column);
+			}
+			return elevations;
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Saves a tile
+	 * @param tile the tile. It is replaced if it exists
+	 * @param elevations the elevations, indexed [x][y]
+	 * @throws IOException if the tile can't be written
+	 */
+	private void write(File tile, double[][] elevations) throws IOException {
+		Files.createDirectories(directory.toPath());
+		int xCount = elevations.length;
+		int yCount = elevations[0].length;
+
+		//Every writer gets its own temporary file, so two processes fetching the same tile don't get in each other's way
+		Path temp = Files.createTempFile(directory.toPath(), tile.getName(), ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 8L * xCount * yCount);
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(xCount).putInt(yCount);
+				DoubleBuffer doubles = buffer.asDoubleBuffer();
+				for(double[] column : elevations) {
+					doubles.put(column);
+				}
+				buffer.force();
+			}
+			Files.move(temp, tile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+
+	/** @return the amount of times a tile was read instead of asking the provider */
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	/** @return the amount of times the provider had to be asked */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -1,130 +1,68 @@
 package topo;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Arrays;
 
 
 
 public class ElevationData {
 
+  // address of the Google elevation web service
+  public static final String GOOGLE_URL = "http://maps.googleapis.com/maps/api/elevation/json";
+
   // elevation data 2d array
   public double[][] elevations = new double[640][640];
 
-  /**
-   * Retrieves Elevation data from GOOGLE Elevation web service
-   * @param url containing up to 10 unique lattitude and longitudes
-   * @param y Current Y coord of elevation array to be populated 
-   */
-  public void GetElevationsFromGoogle(String url, int y) {
-    // Declare Variables
-    URL googUrl = null;
-    BufferedReader reader = null;
-    String line;
-    double currElevationReading;
-
-    try {
-      // create the HttpURLConnection
-      googUrl = new URL(url);
-      HttpURLConnection connection = (HttpURLConnection) googUrl
-          .openConnection();
-
-      // just want to do an HTTP GET here
-      connection.setRequestMethod("GET");
-
-      // give it 15 seconds to respond
-      connection.setReadTimeout(15 * 1000);
-      connection.connect();
-
-      // read the output from the server
-      reader = new BufferedReader(new InputStreamReader(
-          connection.getInputStream()));
-
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    
-    //Read Google Response and populate 10 rows of data in elevations array
-    try {
-      while ((line = reader.readLine()) != null) {
-        if (line.contains("elevation")) {
-          if ((line
-              .substring(line.lastIndexOf(" "),
-                  line.indexOf(",") - 7).trim().length() > 1)) {
-            currElevationReading = Double.parseDouble(line
-                .substring(line.lastIndexOf(" "),
-                    line.indexOf(",") - 7).trim());
-
-            for (int i = 0; i < 640; i++) {
-              this.elevations[y][i] = currElevationReading;
-
-            }
-
-            y += 1;
-          }
-
-        }
-      }
-
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-
-  }
+  // shared by every ElevationData that isn't given a fetcher of its own
+  private static ElevationFetcher google;
 
   /**
-   * Troubleshooting responses from google that are sometimes null, believe timing 
-   * issue. Correct data by populating empty rows with elevation from previous row of data
+   * Create Elevation Data Object from the Google elevation web service
+   * @param longitude must be -180 to 180
+   * @param lattitude must be -90 to 90
+   * @throws IOException if the elevations can't be fetched
    */
-  public void DataCorrecton() {
-    for (int i = 0; i < 640; i++) {
-      for (int j = 0; j < 640; j++) {
-        if (this.elevations[i][j] == 0.0) {
-          this.elevations[i][j] = this.elevations[i-1][j];
-        }
-
-      }
-    }
+  public ElevationData(double longitude, double lattitude) throws IOException {
+    this(longitude, lattitude, getGoogleFetcher());
   }
 
   /**
    * Create Elevation Data Object
    * @param longitude must be -180 to 180
    * @param lattitude must be -90 to 90
+   * @param fetcher gets the elevations from the web service, 10 points per request
+   * @throws IOException if the elevations can't be fetched
    */
-  public ElevationData(double longitude, double lattitude) {
+  public ElevationData(double longitude, double lattitude, ElevationFetcher fetcher) throws IOException {
 
     int startLattitude = (int) ((Math.round(lattitude * 1000)) - 960);
-    int endLattitude = (int) ((Math.round(lattitude * 1000)) + 960);
-    int startLongitude = (int) ((Math.round(longitude * 1000)) - 960);
     int endLongitude = (int) ((Math.round(longitude * 1000)) + 960);
-    int currLatt = startLattitude, currLong = endLongitude;
 
-    StringBuilder builder = new StringBuilder();
-
-    int arryCnt = 0;
-
-    for (int x = 0; x < 640; x += 10) {
-      builder.setLength(0);
-      builder.append("http://maps.googleapis.com/maps/api/elevation/json?locations="
-          + (double) (currLong / 1000.0)
-          + ","
-          + (double) (currLatt / 1000.0));
-      for (int y = 1; y < 10; y++) {
-        currLatt += 3;
-        builder.append("|" + (double) (currLong / 1000.0) + ","
-            + (double) (currLatt / 1000.0));
+    // one reading every 3 thousandths of a degree of lattitude, each filling a row
+    double[] lattitudes = new double[640];
+    double[] longitudes = new double[640];
+    for (int y = 0; y < 640; y++) {
+      lattitudes[y] = (startLattitude + 3 * y) / 1000.0;
+      longitudes[y] = endLongitude / 1000.0;
+    }
 
-      }
-      builder.append("&sensor=true");
-      GetElevationsFromGoogle(builder.toString(), arryCnt);
-      currLatt += 3;
-      arryCnt += 10;
+    double[] readings = fetcher.fetch(lattitudes, longitudes);
+    for (int y = 0; y < 640; y++) {
+      Arrays.fill(this.elevations[y], readings[y]);
     }
+  }
 
-    //DataCorrecton();
+  /**
+   * @return the fetcher of the Google elevation web service, created the first time it is needed. Unfinished
+   *         fetches are kept in the elevations directory of the temporary directory, to be resumed
+   */
+  public static synchronized ElevationFetcher getGoogleFetcher() {
+    if (google == null) {
+      google = new ElevationFetcher(GOOGLE_URL, 10, 8, 4, 250, 15 * 1000);
+      google.setJournalDirectory(new File(System.getProperty("java.io.tmpdir"), "elevations"));
+    }
+    return google;
   }
 
   /**
@@ -142,6 +80,24 @@ public class ElevationData {
     }
     return ElevationsArray;
   }
+
+  /**
+   * Samples the elevations onto a grid of any size, taking the nearest
+   * reading for every column
+   * @param xCount the amount of columns along x
+   * @param yCount the amount of columns along y
+   * @return the elevations, indexed [x][y]
+   */
+  public double[][] getElevations(int xCount, int yCount) {
+    double[][] sampled = new double[xCount][yCount];
+    for (int i = 0; i < xCount; i++) {
+      int x = (int) ((long) i * elevations.length / xCount);
+      for (int j = 0; j < yCount; j++) {
+        sampled[i][j] = elevations[x][(int) ((long) j * elevations[x].length / yCount)];
+      }
+    }
+    return sampled;
+  }
   
 
 
@@ -0,0 +1,490 @@
+package topo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ElevationFetcher gets the elevations of many points from a web service that answers like the Google elevation
+ * service: a GET with up to a batch of "lat,lng" locations separated by '|', answered with JSON that has one
+ * "elevation" per location, in order.<p />
+ * Batches are requested at the same time by a fixed pool of threads, so there are never more requests in flight than
+ * it was given, and a whole fetch takes about as long as its slowest batch when the pool is large enough. A batch
+ * that fails is retried with exponential backoff. Failures that retrying can't fix, like a bad request, are not
+ * retried.<p />
+ * With a journal directory, every batch that arrives is written to a memory-mapped journal file for the points being
+ * fetched. A fetch of the same points that failed or was killed part way picks up where it left off, only asking for
+ * the batches that are missing. The journal is deleted once every batch has arrived.
+ */
+public class ElevationFetcher implements Closeable {
+	private static final int JOURNAL_MAGIC   = 0x4c4a5645; //"EVJL" when read as little-endian bytes
+	private static final int JOURNAL_VERSION = 1;
+	private static final int JOURNAL_HEADER  = 24; //bytes. Magic, version, points, batch size and the key
+
+	private final String          url;
+	private final int             batchSize;
+	private final int             retries;
+	private final long            backoff; //milliseconds. Wait before the first retry, doubled for every retry after
+	private final int             timeout; //milliseconds
+	private final ExecutorService pool;
+	private File                  journals;
+	private final AtomicLong      requests = new AtomicLong();
+	private final AtomicLong      failures = new AtomicLong();
+
+
+	/**
+	 * Creates a fetcher
+	 * @param url the address of the service, without the locations
+	 * @param batchSize the most locations to ask for in one request
+	 * @param maxInFlight the most requests to have waiting for an answer at once
+	 * @param retries the amount of times to retry a batch before giving up
+	 * @param backoff the time to wait before the first retry of a batch, in milliseconds. Every retry after that waits
+	 *                twice as long as the last, give or take a random half so batches don't retry in lockstep
+	 * @param timeout the time to wait to connect and for an answer, in milliseconds
+	 */
+	public ElevationFetcher(String url, int batchSize, int maxInFlight, int retries, long backoff, int timeout) {
+		if(batchSize < 1 || maxInFlight < 1 || retries < 0 || backoff < 0 || timeout < 0) {
+			throw new IllegalArgumentException("Invalid fetcher: batches of " + batchSize + ", " + maxInFlight +
+			                                   " in flight, " + retries + " retries, " + backoff + " ms backoff, " +
+			                                   timeout + " ms timeout");
+		}
+		this.url = url;
+		this.batchSize = batchSize;
+		this.retries = retries;
+		this.backoff = backoff;
+		this.timeout = timeout;
+		this.pool = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ElevationFetcher-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * Sets where to keep the journals of fetches, so failed fetches can be resumed
+	 * @param directory the directory of the journals. It is created if it doesn't exist. If null, nothing is kept
+	 */
+	public void setJournalDirectory(File directory) {
+		this.journals = directory;
+	}
+
+
+	/**
+	 * Gets the elevation of every point, and waits until all of them have arrived
+	 * @param latitudes the latitude of each point
+	 * @param longitudes the longitude of each point
+	 * @return the elevation of each point in meters, in the same order
+	 * @throws IOException if a batch still fails after every retry, or can't be retried. The batches that arrived are
+	 *                     kept in the journal, if there is one
+	 */
+	public double[] fetch(final double[] latitudes, final double[] longitudes) throws IOException {
+		if(latitudes.length != longitudes.length) {
+			throw new IllegalArgumentException(latitudes.length + " latitudes but " + longitudes.length + " longitudes");
+		}
+		final double[] elevations = new double[latitudes.length];
+		int batches = (latitudes.length + batchSize - 1) / batchSize;
+		final MappedByteBuffer journal = openJournal(latitudes, longitudes, batches);
+		final int journalValues = JOURNAL_HEADER + batches; //Where the elevations start in the journal, after the flags
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(batches);
+		for(int b = 0; b < batches; b++) {
+			final int batch = b;
+			final int from = b * batchSize;
+			final int to = Math.min(from + batchSize, latitudes.length);
+			if(journal != null && journal.get(JOURNAL_HEADER + b) != 0) {
+				for(int p = from; p < to; p++) {
+					elevations[p] = journal.getDouble(journalValues + 8 * p);
+				}
+				continue;
+			}
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					fetchBatch(latitudes, longitudes, from, to, elevations);
+					if(journal != null) {
+						//Each batch has its own part of the journal, but the flag goes in last so a batch is never
+						// marked done before its elevations are written
+						synchronized(journal) {
+							for(int p = from; p < to; p++) {
+								journal.putDouble(journalValues + 8 * p, elevations[p]);
+							}
+							journal.put(JOURNAL_HEADER + batch, (byte) 1);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		IOException failure = null;
+		try {
+			for(Future<Void> future : futures) {
+				try {
+					future.get();
+				}
+				catch(ExecutionException e) {
+					if(failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+						                                              : new IOException(e.getCause());
+						//The fetch has failed, so the batches that haven't started yet would only be wasted
+						for(Future<Void> other : futures) {
+							other.cancel(false);
+						}
+					}
+				}
+				catch(CancellationException e) {
+					//Cancelled after an earlier batch failed
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			for(Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching elevations");
+		}
+		if(failure != null) {
+			throw failure;
+		}
+		if(journal != null) {
+			Files.deleteIfExists(getJournal(latitudes, longitudes).toPath());
+		}
+		return elevations;
+	}
+
+
+	/**
+	 * Gets the elevations of one batch of points, retrying until it works or runs out of retries
+	 * @param latitudes the latitude of every point of the fetch
+	 * @param longitudes the longitude of every point of the fetch
+	 * @param from the first point of the batch
+	 * @param to the point after the last point of the batch
+	 * @param elevations where to put the elevations of the batch
+	 * @throws IOException if the batch can't be fetched
+	 */
+	private void fetchBatch(double[] latitudes, double[] longitudes, int from, int to, double[] elevations)
+			throws IOException {
+		StringBuilder address = new StringBuilder(url).append(url.indexOf('?') < 0 ? '?' : '&').append("locations=");
+		for(int p = from; p < to; p++) {
+			if(p > from) {
+				address.append("%7C"); //'|'
+			}
+			address.append(latitudes[p]).append(',').append(longitudes[p]);
+		}
+		String request = address.toString();
+
+		for(int attempt = 0; ; attempt++) {
+			try {
+				requests.incrementAndGet();
+				parse(get(request), elevations, from, to);
+				return;
+			}
+			catch(PermanentException e) {
+				failures.incrementAndGet();
+				throw e;
+			}
+			catch(IOException e) {
+				failures.incrementAndGet();
+				if(attempt >= retries) {
+					throw new IOException("Points " + from + " to " + (to - 1) + " failed after " + (attempt + 1) + " attempt(s)", e);
+				}
+			}
+
+			long wait = backoff << Math.min(attempt, 20);
+			wait = wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+			try {
+				Thread.sleep(wait);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry");
+			}
+		}
+	}
+
+
+	/**
+	 * Makes one request
+	 * @param request the address to get
+	 * @return the body of the answer
+	 * @throws IOException if there is no answer, or it isn't OK
+	 */
+	private String get(String request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(request).openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		int code = connection.getResponseCode();
+		if(code != HttpURLConnection.HTTP_OK) {
+			//Reading the error lets the connection be used again
+			InputStream error = connection.getErrorStream();
+			if(error != null) {
+				read(error);
+			}
+			//Too many requests and server errors might go away, anything else won't
+			String message = "HTTP " + code + " from " + url;
+			if(code == 429 || code >= 500) {
+				throw new IOException(message);
+			}
+			throw new PermanentException(message);
+		}
+		return read(connection.getInputStream());
+	}
+
+
+	/** @return everything left in the stream, which is closed */
+	private static String read(InputStream in) throws IOException {
+		try(InputStream stream = in) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for(int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+
+	/**
+	 * Reads the elevations out of an answer
+	 * @param body the answer
+	 * @param elevations where to put the elevations
+	 * @param from the first point of the batch
+	 * @param to the point after the last point of the batch
+	 * @throws IOException if the answer doesn't have exactly one elevation per point
+	 */
+	private static void parse(String body, double[] elevations, int from, int to) throws IOException {
+		int at = body.indexOf("\"status\"");
+		if(at >= 0) {
+			int start = body.indexOf('"', body.indexOf(':', at)) + 1;
+			String status = body.substring(start, body.indexOf('"', start));
+			if(!status.equals("OK")) {
+				if(status.equals("OVER_QUERY_LIMIT") || status.equals("UNKNOWN_ERROR")) {
+					throw new IOException("Status " + status);
+				}
+				throw new PermanentException("Status " + status);
+			}
+		}
+
+		int p = from;
+		at = 0;
+		while((at = body.indexOf("\"elevation\"", at)) >= 0) {
+			at = body.indexOf(':', at) + 1;
+			int end = at;
+			while(end < body.length() && "+-.eE0123456789 \t\r\n".indexOf(body.charAt(end)) >= 0) {
+				end++;
+			}
+			if(p == to) {
+				throw new IOException("More elevations than the " + (to - from) + " points asked for");
+			}
+			try {
+				elevations[p++] = Double.parseDouble(body.substring(at, end).trim());
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("Not an elevation: " + body.substring(at, end), e);
+			}
+			at = end;
+		}
+		if(p != to) {
+			throw new IOException((p - from) + " elevations for " + (to - from) + " points");
+		}
+	}
+
+
+	/**
+	 * Opens the journal of a fetch, or starts a new one if there is none or it belongs to other points
+	 * @return the journal, or null if there is no journal directory
+	 */
+	private MappedByteBuffer openJournal(double[] latitudes, double[] longitudes, int batches) throws IOException {
+		if(journals == null) {
+			return null;
+		}
+		Files.createDirectories(journals.toPath());
+		File file = getJournal(latitudes, longitudes);
+		long size = JOURNAL_HEADER + batches + 8L * latitudes.length;
+		boolean resume = file.isFile() && file.length() == size;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                                           StandardOpenOption.WRITE)) {
+			if(!resume) {
+				channel.truncate(0);
+			}
+			MappedByteBuffer journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			journal.order(ByteOrder.LITTLE_ENDIAN);
+			if(resume && (journal.getInt(0) != JOURNAL_MAGIC || journal.getInt(4) != JOURNAL_VERSION ||
+			              journal.getInt(8) != latitudes.length || journal.getInt(12) != batchSize ||
+			              journal.getLong(16) != key(latitudes, longitudes))) {
+				resume = false;
+			}
+			if(!resume) {
+				for(int b = 0; b < batches; b++) {
+					journal.put(JOURNAL_HEADER + b, (byte) 0);
+				}
+				journal.putInt(0, JOURNAL_MAGIC).putInt(4, JOURNAL_VERSION).putInt(8, latitudes.length);
+				journal.putInt(12, batchSize).putLong(16, key(latitudes, longitudes));
+			}
+			return journal;
+		}
+	}
+
+
+	/** @return the journal file of the fetch of the given points */
+	private File getJournal(double[] latitudes, double[] longitudes) {
+		return new File(journals, String.format("%016x.part", key(latitudes, longitudes)));
+	}
+
+
+	/** @return a hash of the service, the batch size and every point, which tells fetches apart */
+	private long key(double[] latitudes, double[] longitudes) {
+		long hash = 0xcbf29ce484222325L; //64 bit FNV-1a
+		hash = (hash ^ url.hashCode()) * 0x100000001b3L;
+		hash = (hash ^ batchSize) * 0x100000001b3L;
+		for(int p = 0; p < latitudes.length; p++) {
+			hash = (hash ^ Double.doubleToLongBits(latitudes[p])) * 0x100000001b3L;
+			hash = (hash ^ Double.doubleToLongBits(longitudes[p])) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+
+	/** @return the amount of requests made, including retries */
+	public long getRequests() {
+		return requests.get();
+	}
+
+
+	/** @return the amount of requests that failed */
+	public long getFailures() {
+		return failures.get();
+	}
+
+
+	/** Stops the threads of the fetcher. Fetches that are still running fail */
+	public void close() {
+		pool.shutdownNow();
+	}
+
+
+	/**
+	 * This should only be used for testing purposes. Fetches the points of an {@link ElevationData} from an
+	 *  {@link ElevationStub} one request at a time and all at once, with failures, and resumed after a failed fetch.
+	 *  Exits with status 1 if any of them goes wrong.
+	 */
+	public static void main(String[] args) throws IOException {
+		double[] latitudes = new double[640];
+		double[] longitudes = new double[640];
+		for(int p = 0; p < latitudes.length; p++) {
+			latitudes[p] = (39040 + 3 * p) / 1000.0;
+			longitudes[p] = -104.040;
+		}
+		boolean passed = true;
+
+		//Slow answers: the whole fetch should take about as long as one batch once every batch is in flight at once
+		for(int inFlight : new int[] {1, 8, 64}) {
+			try(ElevationStub stub = new ElevationStub(1);
+			    ElevationFetcher fetcher = new ElevationFetcher(stub.getUrl(), 10, inFlight, 0, 0, 5000)) {
+				stub.setLatency(50);
+				long start = System.nanoTime();
+				double[] elevations = fetcher.fetch(latitudes, longitudes);
+				boolean correct = check(elevations, latitudes, longitudes);
+				System.out.println(inFlight + " in flight: " + (System.nanoTime() - start) / 1000000 + " ms for " +
+				                   fetcher.getRequests() + " requests, at most " + stub.getMaxInFlight() +
+				                   " answered at once, " + (correct ? "correct" : "WRONG"));
+				passed &= correct;
+			}
+		}
+
+		//A third of the requests fail, and are retried
+		try(ElevationStub stub = new ElevationStub(2);
+		    ElevationFetcher fetcher = new ElevationFetcher(stub.getUrl(), 10, 16, 10, 5, 5000)) {
+			stub.setFailureRate(0.33);
+			double[] elevations = fetcher.fetch(latitudes, longitudes);
+			boolean correct = check(elevations, latitudes, longitudes);
+			System.out.println("Failing a third: " + fetcher.getRequests() + " requests, " + fetcher.getFailures() +
+			                   " failed, " + (correct ? "correct" : "WRONG"));
+			passed &= correct;
+		}
+
+		//Without retries the first fetch fails part way. The second only asks for the batches that are missing
+		File journals = Files.createTempDirectory("journals").toFile();
+		try(ElevationStub stub = new ElevationStub(3);
+		    ElevationFetcher fetcher = new ElevationFetcher(stub.getUrl(), 10, 4, 0, 0, 5000)) {
+			fetcher.setJournalDirectory(journals);
+			stub.setFailureRate(0.05);
+			try {
+				fetcher.fetch(latitudes, longitudes);
+				System.out.println("The first fetch should have failed");
+				passed = false;
+			}
+			catch(IOException e) {
+				System.out.println("First fetch failed after " + fetcher.getRequests() + " requests: " + e.getMessage());
+			}
+			stub.setFailureRate(0);
+			long before = fetcher.getRequests();
+			double[] elevations = fetcher.fetch(latitudes, longitudes);
+			boolean correct = check(elevations, latitudes, longitudes);
+			System.out.println("Resumed with " + (fetcher.getRequests() - before) + " requests, " +
+			                   (correct ? "correct" : "WRONG") + ", " + journals.list().length + " journals left");
+			passed &= correct;
+
+			ElevationData ed = new ElevationData(-104.0, 40.0, fetcher);
+			boolean rows = true;
+			for(int y = 0; y < 640; y++) {
+				rows &= ed.elevations[y][0] == ElevationStub.elevation((39040 + 3 * y) / 1000.0, -103.040) &&
+				        ed.elevations[y][639] == ed.elevations[y][0];
+			}
+			System.out.println("ElevationData from the stub: " + (rows ? "correct" : "WRONG"));
+			passed &= rows;
+		}
+
+		if(!passed) {
+			System.exit(1);
+		}
+	}
+
+
+	/** @return true if every elevation is what the stub answers for its point */
+	private static boolean check(double[] elevations, double[] latitudes, double[] longitudes) {
+		for(int p = 0; p < elevations.length; p++) {
+			if(elevations[p] != ElevationStub.elevation(latitudes[p], longitudes[p])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/** A failure that retrying won't fix */
+	private static class PermanentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		PermanentException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package topo;
+
+import java.io.IOException;
+
+/**
+ * An ElevationProvider knows the shape of real pieces of land. {@link Topography} asks one for the land under a farm
+ * whose latitude and longitude are a real location.<p />
+ * Providers are deterministic: the same location, size and cell size always give the same elevations, so they can be
+ * kept in an {@link ElevationCache}.
+ */
+public interface ElevationProvider {
+	/**
+	 * Gets the elevations of the land centered on a location
+	 * @param latitude the latitude of the center of the land, -90 to 90
+	 * @param longitude the longitude of the center of the land, -180 to 180
+	 * @param xCount the width of the land in columns, along the longitude
+	 * @param yCount the length of the land in columns, along the latitude
+	 * @param cellSize the length and width of every column in centimeters
+	 * @return the elevation of every column in meters, indexed [x][y]
+	 * @throws IOException if the elevations can't be read
+	 */
+	public double[][] getElevations(double latitude, double longitude, int xCount, int yCount, double cellSize)
+			throws IOException;
+}
@@ -0,0 +1,182 @@
+package topo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ElevationStub is a local web service that answers like the Google elevation service, so an
+ * {@link ElevationFetcher} can be tried without the network. The elevation of a point is always
+ * {@link #elevation(double, double)}. It can be made slow, made to fail some of its requests with a 503, or taken
+ * down altogether.<p />
+ * This should only be used for testing purposes.
+ */
+public class ElevationStub implements Closeable {
+	private final HttpServer      server;
+	private final ExecutorService threads;
+	private final Random          rand;
+	private volatile long         latency; //milliseconds
+	private volatile double       failureRate;
+	private volatile boolean      down;
+	private final AtomicLong      requests = new AtomicLong();
+	private final AtomicInteger   inFlight = new AtomicInteger();
+	private final AtomicInteger   maxInFlight = new AtomicInteger();
+
+
+	/**
+	 * Starts a stub on a free port of this machine
+	 * @param seed the seed of the requests that fail
+	 * @throws IOException if the server can't be started
+	 */
+	public ElevationStub(long seed) throws IOException {
+		this.rand = new Random(seed);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		//Every request gets its own thread, so slow requests are answered at the same time like a real service
+		this.threads = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ElevationStub");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(threads);
+		server.createContext("/maps/api/elevation/json", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				answer(exchange);
+			}
+		});
+		server.start();
+	}
+
+
+	/** Answers one request */
+	private void answer(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		int now = inFlight.incrementAndGet();
+		while(true) {
+			int max = maxInFlight.get();
+			if(now <= max || maxInFlight.compareAndSet(max, now)) {
+				break;
+			}
+		}
+
+		try {
+			Thread.sleep(latency);
+			boolean fail;
+			synchronized(rand) {
+				fail = down || rand.nextDouble() < failureRate;
+			}
+			if(fail) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+
+			String query = exchange.getRequestURI().getRawQuery();
+			String locations = null;
+			for(String parameter : query == null ? new String[0] : query.split("&")) {
+				if(parameter.startsWith("locations=")) {
+					locations = URLDecoder.decode(parameter.substring(10), "UTF-8");
+				}
+			}
+			if(locations == null) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+
+			StringBuilder body = new StringBuilder("{\n   \"results\" : [\n");
+			String[] points = locations.split("\\|");
+			for(int p = 0; p < points.length; p++) {
+				String[] latLng = points[p].split(",");
+				double latitude = Double.parseDouble(latLng[0]);
+				double longitude = Double.parseDouble(latLng[1]);
+				body.append("      {\n         \"elevation\" : ").append(elevation(latitude, longitude));
+				body.append(",\n         \"location\" : {\n            \"lat\" : ").append(latitude);
+				body.append(",\n            \"lng\" : ").append(longitude).append("\n         },\n");
+				body.append("         \"resolution\" : 4.771975994110107\n      }").append(p < points.length - 1 ? ",\n" : "\n");
+			}
+			body.append("   ],\n   \"status\" : \"OK\"\n}\n");
+
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch(RuntimeException e) {
+			exchange.sendResponseHeaders(400, -1);
+		}
+		finally {
+			inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * @param latitude the latitude of a point
+	 * @param longitude the longitude of a point
+	 * @return the elevation of the point in meters, as the stub answers it
+	 */
+	public static double elevation(double latitude, double longitude) {
+		return 1600 + 10 * Math.sin(latitude * 100) * Math.cos(longitude * 100);
+	}
+
+
+	/** @return the address to give an {@link ElevationFetcher} */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/maps/api/elevation/json";
+	}
+
+
+	/** @param latency how long every request takes to answer, in milliseconds */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+
+	/** @param failureRate the fraction of requests to answer with a 503 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+
+	/** @param down true to answer every request with a 503 */
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+
+	/** @return the amount of requests received */
+	public long getRequests() {
+		return requests.get();
+	}
+
+
+	/** @return the most requests that were being answered at once */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+
+	/** Stops the stub */
+	public void close() {
+		server.stop(0);
+		threads.shutdownNow();
+	}
+}
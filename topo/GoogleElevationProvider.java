@@ -0,0 +1,35 @@
+package topo;
+
+import java.io.IOException;
+
+/**
+ * Gets elevations from the Google elevation web service through {@link ElevationData}. Every call fetches 640
+ * points, 10 per request, so this should normally be wrapped in an {@link ElevationCache}. The cell size is ignored;
+ * the service is always sampled over the same area.
+ */
+public class GoogleElevationProvider implements ElevationProvider {
+	private final ElevationFetcher fetcher;
+
+
+	/** Creates a provider that uses {@link ElevationData#getGoogleFetcher()} */
+	public GoogleElevationProvider() {
+		this(ElevationData.getGoogleFetcher());
+	}
+
+
+	/**
+	 * Creates a provider
+	 * @param fetcher gets the elevations from the service, or from anything that answers like it
+	 */
+	public GoogleElevationProvider(ElevationFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+
+	public double[][] getElevations(double latitude, double longitude, int xCount, int yCount, double cellSize)
+			throws IOException {
+		ElevationData ed = new ElevationData(longitude, latitude, fetcher);
+		//Every column is sampled, whatever the size. getElevations() only fills every 8th row and column of a 64x64 farm
+		return ed.getElevations(xCount, yCount);
+	}
+}
@@ -0,0 +1,254 @@
+package topo;
+
+import cell.Farm;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Gets elevations from a raster file on disk, in latitude and longitude with elevations in meters, like SRTM or other
+ * digital elevation model downloads. Two formats are read:
+ * <ul>
+ * <li>ESRI ASCII grids (.asc), which are read into memory once</li>
+ * <li>ESRI raw float rasters (.flt with a .hdr next to it), which are memory-mapped, so only the parts that are
+ *     asked for are ever read from disk</li>
+ * </ul>
+ * The land is sampled around the location with bilinear interpolation, one sample every cell size. Cells with no data
+ * are taken to be at sea level.
+ */
+public class RasterElevationProvider implements ElevationProvider {
+	private static final double METERS_PER_DEGREE = 111320; //Along a meridian, and along the equator
+
+	private final int         columns, rows;
+	private final double      west, north; //degrees. Center of the top left cell
+	private final double      cellSize; //degrees
+	private final float       noData;
+	private final FloatBuffer values; //Row by row, starting with the northernmost
+
+
+	/**
+	 * Opens a raster
+	 * @param file an ESRI ASCII grid (.asc) or raw float raster (.flt). Any other file is read as an ASCII grid
+	 * @throws IOException if the raster can't be read
+	 */
+	public RasterElevationProvider(File file) throws IOException {
+		Map<String, String> header = new HashMap<String, String>();
+		FloatBuffer values;
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		if(name.endsWith(".flt")) {
+			File hdr = new File(file.getParentFile(), file.getName().substring(0, name.length() - 4) + ".hdr");
+			try(BufferedReader reader = new BufferedReader(new FileReader(hdr))) {
+				for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+					String[] words = line.trim().split("\\s+");
+					if(words.length == 2) {
+						header.put(words[0].toLowerCase(Locale.ROOT), words[1]);
+					}
+				}
+			}
+			ByteOrder order = "MSBFIRST".equalsIgnoreCase(header.get("byteorder")) ? ByteOrder.BIG_ENDIAN
+			                                                                       : ByteOrder.LITTLE_ENDIAN;
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				values = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(order).asFloatBuffer();
+			}
+		}
+		else {
+			values = readAscii(file, header);
+		}
+
+		this.columns = Integer.parseInt(get(header, "ncols"));
+		this.rows = Integer.parseInt(get(header, "nrows"));
+		this.cellSize = Double.parseDouble(get(header, "cellsize"));
+		this.noData = header.containsKey("nodata_value") ? Float.parseFloat(header.get("nodata_value")) : Float.NaN;
+		//The corner of a raster is the outside corner of its bottom left cell, the center is the middle of it
+		double offset = header.containsKey("xllcorner") ? cellSize / 2 : 0;
+		this.west = Double.parseDouble(header.containsKey("xllcorner") ? header.get("xllcorner")
+		                                                                : get(header, "xllcenter")) + offset;
+		this.north = Double.parseDouble(header.containsKey("yllcorner") ? header.get("yllcorner")
+		                                                                 : get(header, "yllcenter")) + offset +
+		             (rows - 1) * cellSize;
+		if(columns < 2 || rows < 2) {
+			throw new IOException(file + " needs at least 2 columns and 2 rows to be sampled");
+		}
+		if((long) columns * rows > values.capacity()) {
+			throw new IOException(file + " has " + values.capacity() + " values, expected " + (long) columns * rows);
+		}
+		this.values = values;
+	}
+
+
+	/**
+	 * Reads an ESRI ASCII grid: a header of keyword and value lines, followed by the values row by row
+	 * @param file the grid
+	 * @param header filled with the keywords of the header, in lower case
+	 * @return the values
+	 */
+	private static FloatBuffer readAscii(File file, Map<String, String> header) throws IOException {
+		try(BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+			StreamTokenizer tokens = new StreamTokenizer(reader);
+			tokens.resetSyntax();
+			tokens.wordChars(33, 255);
+			tokens.whitespaceChars(0, 32);
+
+			//The header ends at the first line that starts with a number
+			tokens.nextToken();
+			while(tokens.ttype == StreamTokenizer.TT_WORD && Character.isLetter(tokens.sval.charAt(0))) {
+				String key = tokens.sval.toLowerCase(Locale.ROOT);
+				tokens.nextToken();
+				header.put(key, tokens.sval);
+				tokens.nextToken();
+			}
+
+			long count = (long) Integer.parseInt(get(header, "ncols")) * Integer.parseInt(get(header, "nrows"));
+			if(count > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large for an ASCII grid, use a raw float raster instead");
+			}
+			float[] values = new float[(int) count];
+			for(int v = 0; v < values.length; v++) {
+				if(tokens.ttype != StreamTokenizer.TT_WORD) {
+					throw new IOException(file + " has " + v + " values, expected " + values.length);
+				}
+				values[v] = Float.parseFloat(tokens.sval);
+				tokens.nextToken();
+			}
+			return FloatBuffer.wrap(values);
+		}
+	}
+
+
+	/**
+	 * @return the value of a keyword of a raster's header
+	 * @throws IOException if the header doesn't have it
+	 */
+	private static String get(Map<String, String> header, String key) throws IOException {
+		String value = header.get(key);
+		if(value == null) {
+			throw new IOException("The raster's header has no " + key);
+		}
+		return value;
+	}
+
+
+	public double[][] getElevations(double latitude, double longitude, int xCount, int yCount, double cellSize)
+			throws IOException {
+		double spacing = cellSize / 100; //meters
+		double latStep = spacing / METERS_PER_DEGREE;
+		double lonStep = spacing / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+		double[][] elevations = new double[xCount][yCount];
+		for(int i = 0; i < xCount; i++) {
+			double column = (longitude + (i - (xCount - 1) / 2.0) * lonStep - west) / this.cellSize;
+			for(int j = 0; j < yCount; j++) {
+				//y grows to the north, but the rows of the raster grow to the south
+				double row = (north - (latitude + (j - (yCount - 1) / 2.0) * latStep)) / this.cellSize;
+				elevations[i][j] = sample(column, row, latitude, longitude);
+			}
+		}
+		return elevations;
+	}
+
+
+	/**
+	 * Interpolates the raster between the four cells around a point
+	 * @param column the column of the point, in cells from the center of the westernmost column
+	 * @param row the row of the point, in cells from the center of the northernmost row
+	 * @return the elevation at the point, in meters
+	 * @throws IOException if the point is outside the raster
+	 */
+	private double sample(double column, double row, double latitude, double longitude) throws IOException {
+		if(!(column >= 0 && column <= columns - 1 && row >= 0 && row <= rows - 1)) {
+			throw new IOException("The land around " + latitude + ", " + longitude + " is not all inside the raster");
+		}
+		int c = Math.min((int) column, columns - 2);
+		int r = Math.min((int) row, rows - 2);
+		double fc = column - c;
+		double fr = row - r;
+		double top = value(r, c) * (1 - fc) + value(r, c + 1) * fc;
+		double bottom = value(r + 1, c) * (1 - fc) + value(r + 1, c + 1) * fc;
+		return top * (1 - fr) + bottom * fr;
+	}
+
+
+	/** @return the elevation of one cell of the raster, in meters */
+	private double value(int row, int column) {
+		float value = values.get((int) ((long) row * columns + column));
+		return value == noData || Float.isNaN(value) ? 0 : value;
+	}
+
+
+	/**
+	 * This should only be used for testing purposes. Writes the same made up hills as an ASCII grid and a raw float
+	 *  raster, checks that both give the same land, and times creating a farm from them with and without a cache.
+	 */
+	public static void main(String[] args) throws IOException {
+		File directory = Files.createTempDirectory("raster").toFile();
+		int columns = 400, rows = 300;
+		double cellSize = 0.00001; //degrees, about a meter
+		double west = -105.002, south = 39.9985;
+		float[] heights = new float[columns * rows];
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < columns; c++) {
+				heights[r * columns + c] = (float) (1600 + 0.3 * Math.sin(c / 17.0) * Math.cos(r / 23.0));
+			}
+		}
+		heights[5] = -9999; //No data
+
+		String header = "ncols " + columns + "\nnrows " + rows + "\nxllcorner " + west + "\nyllcorner " + south +
+		                "\ncellsize " + cellSize + "\nNODATA_value -9999\n";
+		File asc = new File(directory, "hills.asc");
+		try(PrintWriter writer = new PrintWriter(asc)) {
+			writer.print(header);
+			for(int r = 0; r < rows; r++) {
+				for(int c = 0; c < columns; c++) {
+					writer.print(heights[r * columns + c]);
+					writer.print(c == columns - 1 ? '\n' : ' ');
+				}
+			}
+		}
+		File flt = new File(directory, "hills.flt");
+		try(PrintWriter writer = new PrintWriter(new File(directory, "hills.hdr"))) {
+			writer.print(header + "byteorder MSBFIRST\n");
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(4 * heights.length).order(ByteOrder.BIG_ENDIAN);
+		bytes.asFloatBuffer().put(heights);
+		Files.write(flt.toPath(), bytes.array());
+
+		double latitude = 40, longitude = -105;
+		RasterElevationProvider ascii = new RasterElevationProvider(asc);
+		RasterElevationProvider raw = new RasterElevationProvider(flt);
+		System.out.println("ASCII grid and raw float raster agree: " +
+		                   Arrays.deepEquals(ascii.getElevations(latitude, longitude, 64, 64, 10),
+		                                     raw.getElevations(latitude, longitude, 64, 64, 10)));
+		try {
+			raw.getElevations(latitude, longitude, 4096, 4096, 10);
+			System.out.println("A farm larger than the raster should have failed");
+		}
+		catch(IOException e) {
+			System.out.println("Larger than the raster: " + e.getMessage());
+		}
+
+		ElevationCache cache = new ElevationCache(raw, new File(directory, "cache"));
+		Topography.setElevationProvider(cache);
+		for(int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			Farm farm = Topography.createFarm(latitude, longitude, Farm.SIZE, Farm.SIZE, 10, null, 0);
+			long farmNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			cache.getElevations(latitude, longitude, Farm.SIZE, Farm.SIZE, 10);
+			System.out.println("Farm " + run + ": " + farmNanos / 1000 + " us, elevations " +
+			                   (System.nanoTime() - start) / 1000 + " us, relief " + farm.getRelief() + " m, " +
+			                   cache.getHits() + " hits, " + cache.getMisses() + " misses");
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package topo;
+
+/**
+ * A TerrainGenerator makes up the shape of a piece of land. Generators are deterministic: the same size and seed
+ * always give the same heights, no matter how many threads are used to compute them. Every column takes the same,
+ * bounded amount of work.<p />
+ * The heights only need to have the right shape. {@link Topography} scales them to fit its limits on relief and slope.
+ */
+public interface TerrainGenerator {
+	/**
+	 * Generates heights for a piece of land
+	 * @param xSize the width of the land in columns
+	 * @param ySize the length of the land in columns
+	 * @param seed the seed of the land. Different seeds give different land
+	 * @return the height of every column in any unit, indexed [x][y]
+	 */
+	public double[][] generate(int xSize, int ySize, long seed);
+}
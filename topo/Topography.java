@@ -2,8 +2,12 @@ package topo;
 
 import cell.Cell;
 import cell.Farm;
-import cell.Point3D;
+import cell.GridStore;
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Topography is a class that is only used to generate the shape of a piece of land.
@@ -12,9 +16,39 @@ import java.util.Random;
 public class Topography {
 	private static final double     MAX_RELIEF = 0.05; //meters. The most the topography over the entire grid is allowed to vary
 	private static final double     TOLERANCE  = 0.01; //meters. Changes larger this amount will not be accepted
-	private static final int        SIZE       = Farm.SIZE; //meters. length and width
+	private static final int        SIZE       = Farm.SIZE; //cells. Default length and width
 	private static final double[][] HEIGHTS    = {{100, 300}, {100, 300}, {100, 400}}; //centimeters. {height of each layer, height of all layers with the same height}
-	private static final Random     rand       = new Random();
+	private static final Random     rand       = new Random(); //Only picks seeds for farms that weren't given one
+	private static final TerrainGenerator TERRAIN = new ValueNoise();
+	private static final int        PARALLEL_COLUMNS = 1 << 16; //Farms with fewer columns than this are filled on one thread
+	private static ElevationProvider elevations = new ElevationCache(new GoogleElevationProvider(),
+	                                          new File(System.getProperty("java.io.tmpdir"), "elevations"));
+
+	//The layers below the topography are the same in every column, so their sizes are worked out once
+	private static final int        BASE_LAYERS = (int)(HEIGHTS[0][1]/HEIGHTS[0][0]) + (int)(HEIGHTS[1][1]/HEIGHTS[1][0]) + (int)(HEIGHTS[2][1]/HEIGHTS[2][0]);
+	private static final double[]   LAYER_HEIGHT = new double[BASE_LAYERS]; //centimeters. Height of each base layer
+	private static final double[]   LAYER_DEPTH  = new double[BASE_LAYERS]; //centimeters. Depth of each base layer below the topography
+
+	static {
+		for(int k = 0; k < BASE_LAYERS; k++) {
+			double depth = 0;
+			if(k >= 0 && k < HEIGHTS[2][1]/HEIGHTS[2][0]) {
+				LAYER_HEIGHT[k] = HEIGHTS[2][0];
+				depth += HEIGHTS[0][1]+HEIGHTS[1][1];
+				depth += ((HEIGHTS[2][1]/HEIGHTS[2][0]-1)-k)*HEIGHTS[2][0];
+			}
+			else if(k >= HEIGHTS[2][1]/HEIGHTS[2][0] && k < HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0]) {
+				LAYER_HEIGHT[k] = HEIGHTS[1][0];
+				depth += HEIGHTS[1][1];
+				depth += ((HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0]-1)-k)*HEIGHTS[1][0];
+			}
+			else {
+				LAYER_HEIGHT[k] = HEIGHTS[0][0];
+				depth += ((BASE_LAYERS-1)-k)*HEIGHTS[0][0];
+			}
+			LAYER_DEPTH[k] = depth;
+		}
+	}
 
 
 	/**
@@ -26,153 +60,178 @@ public class Topography {
 	 * @return a Farm that has been given topographic shape
 	 */
 	public static Farm createFarm(double latitude, double longitude) {
+		return createFarm(latitude, longitude, TERRAIN, rand.nextLong());
+	}
+
+
+	/**
+	 * Shapes a {@link Farm} like {@link #createFarm(double, double)}, but with a chosen generator for the random
+	 * land. The same generator and seed always give the same farm.
+	 * @param latitude  the latitude of the piece of land that the returned Farm will mimic
+	 * @param longitude the latitude of the piece of land that the returned Farm will mimic
+	 * @param generator makes up the land if the latitude and longitude aren't a real location
+	 * @param seed the seed of the made up land
+	 * @return a Farm that has been given topographic shape
+	 */
+	public static Farm createFarm(double latitude, double longitude, TerrainGenerator generator, long seed) {
+		return createFarm(latitude, longitude, SIZE, SIZE, Cell.getCellSize(), generator, seed);
+	}
+
+
+	/**
+	 * Shapes a {@link Farm} of any size. The same size, generator and seed always give the same farm.
+	 * @param latitude  the latitude of the piece of land that the returned Farm will mimic
+	 * @param longitude the latitude of the piece of land that the returned Farm will mimic
+	 * @param xCount the width of the farm in cells
+	 * @param yCount the length of the farm in cells
+	 * @param cellSize the length and width of every cell in centimeters
+	 * @param generator makes up the land if the latitude and longitude aren't a real location
+	 * @param seed the seed of the made up land
+	 * @return a Farm that has been given topographic shape
+	 */
+	public static Farm createFarm(double latitude, double longitude, final int xCount, int yCount, double cellSize,
+	                              TerrainGenerator generator, long seed) {
+		Farm farm = new Farm(xCount, yCount, cellSize);
 		double[][] deviation; //meters
 
 		//If the given lat/lon don't correspond to a real life location, use randomly generated topography
 		if(longitude < -180 || longitude > 180 || latitude < -90 || latitude > 90) {
 			//Generates a 2D array of doubles to correspond to heights of a specific i,j column. This is essentially the shape
 			// of the land that the program will run on. It's a random, but smooth, topography.
-			deviation = getDeviations();
+			deviation = fit(generator.generate(xCount, yCount, seed));
 		}
-		//Otherwise, get the elevation data from the internet
+		//Otherwise, get the elevation data of the real location
 		else {
-			//Queries a google database to get elevation data
-			ElevationData ed = new ElevationData(longitude, latitude);
-			deviation = ed.getElevations();
+			try {
+				deviation = elevations.getElevations(latitude, longitude, xCount, yCount, cellSize);
+			}
+			catch(IOException e) {
+				throw new IllegalStateException("Could not get the elevations of " + latitude + ", " + longitude, e);
+			}
 		}
 		
-    double[] minmax = adjustForMinMax(deviation);
-
-		int baseLayers = (int)(HEIGHTS[0][1]/HEIGHTS[0][0]) + (int)(HEIGHTS[1][1]/HEIGHTS[1][0]) + (int)(HEIGHTS[2][1]/HEIGHTS[2][0]);
-
-		Cell[][][] grid = new Cell[SIZE][SIZE][baseLayers+1+(int)(minmax[1]*100)];
-
-
-		//Sets the top to air (null)
-		for(int j = 0; j < SIZE; j++) {
-			for(int i = 0; i < SIZE; i++) {
-				grid[i][j][baseLayers+(int)(minmax[1]*100)] = null;
-			}
+		double[] minmax = adjustForMinMax(deviation);
+		final int layers = BASE_LAYERS + (int)(minmax[1]*100); //The top layer above these is always air
+		final GridStore store = new GridStore(xCount, yCount, layers + 1, cellSize);
+		final double[][] deviations = deviation;
+
+		//Every column only writes its own cells, so the columns can be filled in any order. The cells themselves are
+		// only created if the farm's grid is asked for.
+		IntStream rows = IntStream.range(0, yCount);
+		if((long) xCount * yCount >= PARALLEL_COLUMNS) {
+			rows = rows.parallel();
 		}
-
-
-		//Goes cell by cell and sets the height, depth, and coordinates of each cell.
-		//If you have a surface or air cell, set it to be one.
-		for(int k = 0; k < baseLayers+(int)(minmax[1]*100) ; k++) {
-			for(int j = 0; j < SIZE; j++) {
-				for(int i = 0; i < SIZE; i++) {
-					if(k >= 0 && k < HEIGHTS[2][1]/HEIGHTS[2][0]) {
-						grid[i][j][k] = new Cell(HEIGHTS[2][0], getDepth(i, j, k, deviation), new Point3D(i, j, k));
-						grid[i][j][k].setSurface(false);
-					}
-					else if(k >= HEIGHTS[2][1]/HEIGHTS[2][0] && k < HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0]) {
-						grid[i][j][k] = new Cell(HEIGHTS[1][0], getDepth(i, j, k, deviation), new Point3D(i, j, k));
-						grid[i][j][k].setSurface(false);
-					}
-					else if(k >= HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0] && k < baseLayers) {
-						grid[i][j][k] = new Cell(HEIGHTS[0][0], getDepth(i, j, k, deviation), new Point3D(i, j, k));
-						if(k == baseLayers-1 && deviation[i][j] == 0.0) {
-							grid[i][j][k].setSurface(true);
-						}
-						else {
-							grid[i][j][k].setSurface(false);
-						}
-					}
-					else {
-						double d = getDepth(i, j, k, deviation);
-						if(d != -1)
-						{
-							grid[i][j][k] = new Cell(1, d, new Point3D(i, j, k));
-
-							if(d == 0) {
-								grid[i][j][k].setSurface(true);
-							}
-							else {
-								grid[i][j][k].setSurface(false);
-							}
-						}
-						else {
-							grid[i][j][k] = null;
-						}
-					}
-
+		rows.forEach(new IntConsumer() {
+			public void accept(int j) {
+				for(int i = 0; i < xCount; i++) {
+					fillColumn(store, i, j, layers, deviations[i][j]);
 				}
 			}
-		}
+		});
 
-		Farm farm = new Farm();
 		farm.setLatitude(latitude);
 		farm.setLongitude(longitude);
 		farm.setRelief(minmax[1]);
-		farm.setGrid(grid);
-		farm.setZCellCount(grid[0][0].length);
+		farm.setStore(store);
+		farm.setZCellCount(store.getZCount());
 
 		return farm;
 	}
 
 
 	/**
-	 * Generates a random, but smooth topography using the given MAX_RELIEF, TOLERANCE, and SIZE. The MAX_RELIEF is the total
-	 *  amount of difference there is allowed to be in the elevations. The TOLERANCE is the largest height difference between
-	 *  two blocks that will be accepted. The SIZE is the length and width of the land
-	 * @return a 2D array of doubles that correspond to heights
+	 * Sets where the elevations of farms at real locations come from. By default they come from the Google elevation
+	 *  service, cached in the elevations directory of the temporary directory.
+	 * @param provider the provider of elevations, usually wrapped in an {@link ElevationCache}
 	 */
-	private static double[][] getDeviations() {
-		double chance; //that this height will used
-		double previous2, previous1; //the heights of surrounding cells
-		double num; //randomly generated number
-		double[][] deviation = new double[SIZE][SIZE]; //the heights of each column above the lowest point
-
-		for(int j = 0; j < SIZE; j++) {
-			for(int i = 0; i < SIZE; i++) {
-				chance = .5; //50/50 chance of taking the generated number
-				num = rand.nextDouble() * MAX_RELIEF; // 0 <= num < MAX_RELIEF
-
-				//Looks at cells to left to help decide whether or not the new number will be kept
-				if(i - 2 >= 0) {
-					previous2 = deviation[i - 2][j];
-					previous1 = deviation[i - 1][j];
-					chance += chance(previous1, previous2, num);
-				}
-				else if(i - 1 >= 0) {
-					previous1 = deviation[i - 1][j];
-					chance += chance(previous1, num);
-				}
+	public static void setElevationProvider(ElevationProvider provider) {
+		elevations = provider;
+	}
 
-				//Looks at cells above to help decide whether or not the new number will be kept
-				if(j - 2 >= 0) {
-					previous2 = deviation[i][j - 2];
-					previous1 = deviation[i][j - 1];
-					chance += chance(previous1, previous2, num);
-				}
-				else if(j - 1 >= 0) {
-					previous1 = deviation[i][j - 1];
-					chance += chance(previous1, num);
-				}
 
-				//Looks at cells diagonally up and left to help decide whether or not the new number will be kept
-				if(i - 2 >= 0 && j - 2 >= 0) {
-					previous2 = deviation[i - 2][j - 2];
-					previous1 = deviation[i - 1][j - 1];
-					chance += chance(previous1, previous2, num);
-				}
-				else if(i - 1 >= 0 && j - 1 >= 0) {
-					previous1 = deviation[i - 1][j - 1];
-					chance += chance(previous1, num);
+	/** @return where the elevations of farms at real locations come from */
+	public static ElevationProvider getElevationProvider() {
+		return elevations;
+	}
+
+
+	/**
+	 * Sets the height, depth and surface of every cell of one column. Cells that are air are left invalid.
+	 * @param store the store to fill
+	 * @param i the x coordinate of the column
+	 * @param j the y coordinate of the column
+	 * @param layers the amount of layers that might not be air
+	 * @param deviation the height of the column above the lowest column, in meters
+	 */
+	private static void fillColumn(GridStore store, int i, int j, int layers, double deviation) {
+		double topography = deviation*100; //centimeters
+		for(int k = 0; k < layers; k++) {
+			double height, depth;
+			boolean surface;
+			if(k < BASE_LAYERS) {
+				height = LAYER_HEIGHT[k];
+				depth = LAYER_DEPTH[k] + topography;
+				surface = k == BASE_LAYERS-1 && deviation == 0.0;
+			}
+			//Once you start hitting the topography, only add the depth of the topography above. -1 indicates air
+			else {
+				depth = (k > BASE_LAYERS + topography ? -1 : 0) + (topography - (k-BASE_LAYERS));
+				if(depth == -1) {
+					continue;
 				}
+				height = 1;
+				surface = depth == 0;
+			}
+			int c = store.index(i, j, k);
+			store.setValid(c, true);
+			store.setHeight(c, height);
+			store.setDepth(c, depth);
+			store.setSurface(c, surface);
+		}
+	}
 
-				//Roll and see if you come up successful. If so, keep the value.
-				if(rand.nextDouble() <= chance) {
-					deviation[i][j] = num;
+
+	/**
+	 * Scales generated heights so they look like the land this class is meant to make: no more than MAX_RELIEF from the
+	 *  lowest column to the highest, and no more than TOLERANCE between two columns next to each other, including
+	 *  diagonally. Scaling the whole land keeps its shape, unlike cutting off the steep parts.
+	 * @param heights the heights from a {@link TerrainGenerator}, which are replaced with the deviations in meters
+	 * @return the deviations, which are the same array as heights
+	 */
+	private static double[][] fit(double[][] heights) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		double steepest = 0; //The largest height difference between neighbouring columns
+		for(int i = 0; i < heights.length; i++) {
+			for(int j = 0; j < heights[i].length; j++) {
+				double h = heights[i][j];
+				min = Math.min(min, h);
+				max = Math.max(max, h);
+				if(i > 0) {
+					steepest = Math.max(steepest, Math.abs(h - heights[i - 1][j]));
+					if(j > 0) {
+						steepest = Math.max(steepest, Math.abs(h - heights[i - 1][j - 1]));
+					}
+					if(j + 1 < heights[i].length) {
+						steepest = Math.max(steepest, Math.abs(h - heights[i - 1][j + 1]));
+					}
 				}
-				//Otherwise, try again for this cell.
-				else {
-					i--;
-					continue;
+				if(j > 0) {
+					steepest = Math.max(steepest, Math.abs(h - heights[i][j - 1]));
 				}
 			}
 		}
-		return deviation;
+
+		//Just under MAX_RELIEF, like the heights that used to be drawn from [0, MAX_RELIEF)
+		double scale = max > min ? MAX_RELIEF * (1 - 1e-9) / (max - min) : 0;
+		if(steepest * scale > TOLERANCE) {
+			scale = TOLERANCE / steepest;
+		}
+		for(int i = 0; i < heights.length; i++) {
+			for(int j = 0; j < heights[i].length; j++) {
+				heights[i][j] = (heights[i][j] - min) * scale;
+			}
+		}
+		return heights;
 	}
 
 
@@ -182,11 +241,12 @@ public class Topography {
 	 * @return the minimum and maximum deviations
 	 */
 	private static double[] adjustForMinMax(double[][] deviation) {
-		double[] minmax = {MAX_RELIEF, 0.0}; //Start with the min at MAX and the max at 0
+		//Start with the min and max past anything, since real land is far above 0
+		double[] minmax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
 
 		//Find absolute minimum and maximum
-		for(int j = 0; j < SIZE; j++) {
-			for(int i = 0; i < SIZE; i++) {
+		for(int i = 0; i < deviation.length; i++) {
+			for(int j = 0; j < deviation[i].length; j++) {
 				if(deviation[i][j]  < minmax[0]) {
 					minmax[0] = deviation[i][j];
 				}
@@ -197,8 +257,8 @@ public class Topography {
 		}
 
 		//Force the deviations into a range from 0 to max deviation
-		for(int j = 0; j < SIZE; j++) {
-			for(int i = 0; i < SIZE; i++) {
+		for(int i = 0; i < deviation.length; i++) {
+			for(int j = 0; j < deviation[i].length; j++) {
 				deviation[i][j] -= minmax[0];
 				deviation[i][j] = (int)(100*deviation[i][j])/100.0; //Round off to 2 decimal places
 			}
@@ -212,114 +272,11 @@ public class Topography {
 	}
 
 
-	/**
-	 * Takes coordinates and tells you how deep in the ground they are
-	 * @param i the x coordinate of the cell
-	 * @param j the y coordinate of the cell
-	 * @param k the z coordinate of the cell
-	 * @param deviations the height deviations in the surface of the land
-	 * @return the depth of the cell
-	 */
-	private static double getDepth(int i, int j, int k, double[][] deviations) {
-		double depth = 0;
-		int baseLayers = (int)(HEIGHTS[0][1]/HEIGHTS[0][0]) + (int)(HEIGHTS[1][1]/HEIGHTS[1][0]) + (int)(HEIGHTS[2][1]/HEIGHTS[2][0]);
-
-		//if k is above the height of a given column, just set the depth to -1 to indicate air
-		if(k > (baseLayers + deviations[i][j]*100)) {
-			depth = -1;
-		}
-
-		//Up until the point where you start seeing topography, just add the depth of the solid block below the topography + the topography
-		if(k >= 0 && k < HEIGHTS[2][1]/HEIGHTS[2][0]) {
-			depth += HEIGHTS[0][1]+HEIGHTS[1][1];
-			depth += ((HEIGHTS[2][1]/HEIGHTS[2][0]-1)-k)*HEIGHTS[2][0];
-			depth += deviations[i][j] * 100;
-		}
-		else if(k >= HEIGHTS[2][1]/HEIGHTS[2][0] && k < HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0]) {
-			depth += HEIGHTS[1][1];
-			depth += ((HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0]-1)-k)*HEIGHTS[1][0];
-			depth += deviations[i][j] * 100;
-		}
-		else if(k >= HEIGHTS[1][1]/HEIGHTS[1][0] + HEIGHTS[2][1]/HEIGHTS[2][0] && k < baseLayers) {
-			depth += ((baseLayers-1)-k)*HEIGHTS[0][0];
-			depth += deviations[i][j] * 100;
-		}
-		//Once you start hitting the topography, only add the depth of the topography above
-		else {
-			depth +=  deviations[i][j]*100 - (k-baseLayers);
-		}
-
-		return depth;
-	}
-
-
-	/**
-	 * Takes a height and helps determine whether it will be kept or not depending on the surrounding heights.
-	 * @param previous1 the deviation in height of the square two squares away from the num in question
-	 * @param previous2 the deviation in height of the square one square away from the num in question
-	 * @param num the deviation in height of the square in question
-	 * @return a number that will affect the chance of num being picked
-	 */
-	private static double chance(double previous1, double previous2, double num) {
-		double chance = 0;
-		double change1 = previous1 - previous2;
-		double change2 = num - previous1;
-
-		//If the change being considered is smaller than change of the previous cell, the change being considered has a higher chance of
-		// being picked. This helps smooth some of the jerkiness (because the numbers are random) out.
-		if(Math.abs(change1) <= Math.abs(change2)) {
-			chance += .1;
-		}
-
-		//If the change being considered is larger than change of the previous cell, the change being considered has a lower chance of
-		// being picked. This again helps smooth jerkiness out.
-		else {
-			chance -= .1;
-
-			//If the slope of the change being considered and the change of the previous cell are both pointing the same way,
-			// the change being considered has a higher chance of being picked. This means that hills have a higher chance of
-			// occurring rather than just small bumps everywhere.
-			if(change1*change2 > 0) {
-				chance += .025;
-			}
-
-			//If the slope of the change being considered and the change of the previous cell are pointing in different directions,
-			// the change being considered has a lower chance of being picked. Again, this encourages hills.
-			else if(change1*change2 < 0) {
-				chance -= .025;
-			}
-		}
-
-		//If the change being considered is outside the range of TOLERANCE, then the chance of being picked is 0.
-		if(Math.abs(change2) > TOLERANCE) {
-			return -5.0;
-		}
-
-		return chance;
-	}
-
-
-	/**
-	 * Takes a given height and helps decide whether it will be kept based on surrounding heights
-	 * @param previous the deviation in height of the square next to the num in question
-	 * @param num the deviation in height of the square in question
-	 * @return a number that will affect the chance of num being picked
-	 */
-	private static double chance(double previous, double num) {
-		//If there is only 1 cell neighboring a cell you are calculating the height for (in a given direction), then simply
-		// pick a height that is within the range TOLERANCE
-		if(Math.abs(num - previous) <= TOLERANCE) {
-			return .1;
-		}
-		return -5.0;
-	}
-
-
 	/** This should only be used for testing */
 	public static void main(String[] args) {
 		Farm f = createFarm(1000, 1000);
 
-		System.out.println(f.zCellCount * Farm.xCellCount * Farm.yCellCount);
+		System.out.println(f.zCellCount * f.getXCellCount() * f.getYCellCount());
 
 		// Get maximum size of heap in bytes. The heap cannot grow beyond this size.
 		// Any attempt will result in an OutOfMemoryException.
@@ -331,5 +288,28 @@ public class Topography {
 		// Get amount of free memory within the heap in bytes. This size will increase
 		// after garbage collection and decrease as new objects are created.
 		System.out.println(Runtime.getRuntime().freeMemory());
+
+		//Every generator should give the same land for the same seed, in a time that only depends on the size
+		TerrainGenerator[] generators = {new ValueNoise(), new DiamondSquare()};
+		for(TerrainGenerator generator : generators) {
+			for(int size : new int[] {SIZE, 4096}) {
+				long start = System.nanoTime();
+				double[][] first = fit(generator.generate(size, size, 42));
+				long nanos = System.nanoTime() - start;
+				double[][] second = fit(generator.generate(size, size, 42));
+				double relief = 0, steepest = 0;
+				for(int i = 0; i < size; i++) {
+					for(int j = 0; j < size; j++) {
+						relief = Math.max(relief, first[i][j]);
+						if(i > 0) {
+							steepest = Math.max(steepest, Math.abs(first[i][j] - first[i - 1][j]));
+						}
+					}
+				}
+				System.out.println(generator.getClass().getSimpleName() + " " + size + "x" + size + ": " +
+				                   nanos / 1000000 + " ms, relief " + relief + " m, steepest " + steepest + " m, " +
+				                   (java.util.Arrays.deepEquals(first, second) ? "deterministic" : "NOT deterministic"));
+			}
+		}
 	}
 }
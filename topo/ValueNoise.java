@@ -0,0 +1,119 @@
+package topo;
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * ValueNoise generates smooth, rolling land by adding up a few octaves of value noise. Each octave gives every point
+ * of a square lattice a random height, derived by hashing the point with the seed, and interpolates smoothly between
+ * them. Since every column only depends on its own lattice points, columns can be computed in any order and rows are
+ * filled in parallel.
+ */
+public class ValueNoise implements TerrainGenerator {
+	private static final int PARALLEL_COLUMNS = 1 << 16; //Land with fewer columns than this is filled on one thread
+
+	private final double scale; //Columns between the lattice points of the first octave
+	private final int    octaves;
+	private final double persistence; //Height of each octave relative to the one before
+
+
+	/** Creates a generator with hills about 16 columns across and 3 octaves of detail */
+	public ValueNoise() {
+		this(16, 3, 0.5);
+	}
+
+
+	/**
+	 * Creates a generator
+	 * @param scale the columns between the lattice points of the first octave, which is about the width of a hill
+	 * @param octaves the amount of octaves. Each one has lattice points twice as close as the one before
+	 * @param persistence the height of each octave relative to the one before, usually 0.5
+	 */
+	public ValueNoise(double scale, int octaves, double persistence) {
+		if(scale <= 0 || octaves < 1) {
+			throw new IllegalArgumentException("Invalid value noise: scale " + scale + ", " + octaves + " octaves");
+		}
+		this.scale = scale;
+		this.octaves = octaves;
+		this.persistence = persistence;
+	}
+
+
+	public double[][] generate(final int xSize, final int ySize, final long seed) {
+		final double[][] heights = new double[xSize][ySize];
+		IntStream rows = IntStream.range(0, ySize);
+		if((long) xSize * ySize >= PARALLEL_COLUMNS) {
+			rows = rows.parallel();
+		}
+		rows.forEach(new IntConsumer() {
+			public void accept(int j) {
+				for(int i = 0; i < xSize; i++) {
+					heights[i][j] = height(i, j, seed);
+				}
+			}
+		});
+		return heights;
+	}
+
+
+	/**
+	 * @param i the x coordinate of a column
+	 * @param j the y coordinate of a column
+	 * @param seed the seed of the land
+	 * @return the height of the column
+	 */
+	private double height(int i, int j, long seed) {
+		double height = 0;
+		double amplitude = 1;
+		double frequency = 1 / scale;
+		for(int o = 0; o < octaves; o++) {
+			height += amplitude * noise(i * frequency, j * frequency, seed + o);
+			amplitude *= persistence;
+			frequency *= 2;
+		}
+		return height;
+	}
+
+
+	/**
+	 * @param x a point along x, in lattice spacings
+	 * @param y a point along y, in lattice spacings
+	 * @param seed the seed of the octave
+	 * @return the noise at the point, from 0 to 1
+	 */
+	private static double noise(double x, double y, long seed) {
+		long x0 = (long) Math.floor(x);
+		long y0 = (long) Math.floor(y);
+		double fx = smooth(x - x0);
+		double fy = smooth(y - y0);
+		double bottom = lerp(lattice(x0, y0, seed), lattice(x0 + 1, y0, seed), fx);
+		double top = lerp(lattice(x0, y0 + 1, seed), lattice(x0 + 1, y0 + 1, seed), fx);
+		return lerp(bottom, top, fy);
+	}
+
+
+	/** @return t eased so the slope is 0 at both ends, which keeps the land smooth across lattice points */
+	private static double smooth(double t) {
+		return t * t * (3 - 2 * t);
+	}
+
+
+	private static double lerp(double a, double b, double t) {
+		return a + (b - a) * t;
+	}
+
+
+	/**
+	 * @param x the x coordinate of a lattice point
+	 * @param y the y coordinate of a lattice point
+	 * @param seed the seed of the octave
+	 * @return the random height of the lattice point, from 0 to 1
+	 */
+	static double lattice(long x, long y, long seed) {
+		long h = seed ^ (x * 0x9E3779B97F4A7C15L) ^ (y * 0xC2B2AE3D27D4EB4FL);
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h ^= h >>> 31;
+		return (h >>> 11) * 0x1.0p-53;
+	}
+}